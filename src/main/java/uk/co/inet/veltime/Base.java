@@ -5,4 +5,13 @@ import java.io.*;
 abstract class Base implements Comparable, Serializable
 {
   public abstract int compareTo(Object o);
+
+  // The minute after which the record is of no use and may be purged, 0 for never
+  abstract int expiry();
+
+  // Join another record of the same kind, from another node or store
+  Base join(Base other)
+  {
+    return this;
+  }
 }
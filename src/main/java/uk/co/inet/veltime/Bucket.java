@@ -0,0 +1,108 @@
+package uk.co.inet.veltime;
+
+import java.io.*;
+
+/**
+ *  Token bucket state for rate limiting a key, 16 bytes: the tokens left in
+ *  thousandths of a permit, the minute the bucket will be full again and
+ *  so can be purged, as a missing bucket is a full one, and the time of the
+ *  last refill in microseconds.
+ *
+ *  A refill adds whole thousandths and moves the last refill on only by
+ *  the time they took, so the time towards the next thousandth is kept and
+ *  a key asked for more often than it earns one still fills.
+ */
+class Bucket extends Base implements Comparable, Serializable
+{
+  static final int SCALE = 1000;
+
+  public int tokens;
+  public int ts;
+  public long last;
+
+  public Bucket(int tokens, int ts, long last)
+  {
+    this.tokens = tokens;
+    this.ts = ts;
+    this.last = last;
+  }
+
+  /**
+   *  Refill for the time since the last refill then take permits if there
+   *  are enough, all in place
+   *
+   * @param  permits  The permits wanted
+   * @param  rate     Permits added a second
+   * @param  burst    The most permits the bucket holds
+   * @param  now      The time in milliseconds
+   * @return        true if the permits were taken
+   */
+  boolean acquire(int permits, double rate, int burst, long now)
+  {
+    long full = (long) burst * SCALE;
+    long t = tokens;
+    long us = now * 1000;
+
+    if (us > last)
+    {
+      long add = (long) ((us - last) * rate * SCALE / 1000000);
+
+      if (t + add >= full)
+      {
+        t = full;
+        last = us;
+      }
+      else if (add > 0)
+      {
+        t += add;
+        last = Math.min(us, last + (long) Math.ceil(add * 1000000 / (rate * SCALE)));
+      }
+    }
+
+    boolean ok = t >= (long) permits * SCALE;
+
+    if (ok)
+      t -= (long) permits * SCALE;
+
+    tokens = (int) t;
+    ts = (int) ((last / 1000 + (long) Math.ceil((full - t) * 1000 / (rate * SCALE))) / 60000) + 1;
+
+    return ok;
+  }
+
+  static Bucket full(int burst, long now)
+  {
+    return new Bucket(burst * SCALE, (int) (now / 60000) + 1, now * 1000);
+  }
+
+  int expiry()
+  {
+    return ts;
+  }
+
+  // The later refill has seen every acquire the other has, or a newer one
+  Base join(Base other)
+  {
+    return other instanceof Bucket && ((Bucket) other).last > last ? other : this;
+  }
+
+  public String toString()
+  {
+    return "bucket|" + tokens + "|" + ts + "|" + last;
+  }
+
+  public int compareTo(Object o)
+  {
+    if (o instanceof Bucket)
+    {
+      Bucket b = (Bucket) o;
+
+      if (last != b.last)
+        return Long.compare(last, b.last);
+      else
+        return tokens - b.tokens;
+    }
+    else
+      return -1;
+  }
+}
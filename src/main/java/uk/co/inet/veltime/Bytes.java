@@ -0,0 +1,51 @@
+package uk.co.inet.veltime;
+
+/**
+ *  The little endian primitives under the window codecs and key hashing.
+ *  This is the Java 8 version, a multi release jar replaces it on JDK 17
+ *  and later with one reading whole words through VarHandle byte views,
+ *  see src/main/java17. Both must give the same answers.
+ */
+final class Bytes
+{
+
+  private Bytes()
+  {
+  }
+
+  static String impl()
+  {
+    return "byte at a time";
+  }
+
+  static int getInt(byte[] b, int off)
+  {
+    return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8) | ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24);
+  }
+
+  static long getLong(byte[] b, int off)
+  {
+    return (getInt(b, off) & 0xFFFFFFFFL) | ((long) getInt(b, off + 4) << 32);
+  }
+
+  static void putInt(byte[] b, int off, int v)
+  {
+    b[off] = (byte) v;
+    b[off + 1] = (byte) (v >>> 8);
+    b[off + 2] = (byte) (v >>> 16);
+    b[off + 3] = (byte) (v >>> 24);
+  }
+
+  /**
+   *  Sum n ints spaced stride bytes apart, e.g. the items of an encoded window
+   */
+  static int sum(byte[] b, int off, int stride, int n)
+  {
+    int sum = 0;
+
+    for (int i = 0; i != n; i++, off += stride)
+      sum += getInt(b, off);
+
+    return sum;
+  }
+}
@@ -29,16 +29,26 @@ public class CompactVel extends Vel implements Serializable
  *  where if the key matches then the value should match too, if it does
  *  not then the counter is increased.
  */
-  private LongHashMap<byte[]> tm = new LongHashMap<>();
+  private final LongHashMap<byte[]> tm;
+
+  // Windows kept encoded outside the GC heap instead, see veltime.offheap
+  private final OffHeapLongMap oh;
 
   public CompactVel(String nm)
+  {
+    this(nm, OFFHEAP);
+  }
+
+  public CompactVel(String nm, boolean offHeap)
   {
     type = "CompactVel";
+    tm = offHeap ? null : new LongHashMap<>();
+    oh = offHeap ? new OffHeapLongMap() : null;
   }
 
   protected Base get(long key)
   {
-    byte[] bs = tm.get(key);
+    byte[] bs = oh != null ? oh.get(key) : tm.get(key);
 
     if (bs == null)
       return null;
@@ -48,7 +58,7 @@ public class CompactVel extends Vel implements Serializable
 
   protected Base removeKey(long key)
   {
-    byte[] bs = tm.remove(key);
+    byte[] bs = oh != null ? oh.remove(key) : tm.remove(key);
 
     if (bs == null)
       return null;
@@ -76,100 +86,95 @@ public class CompactVel extends Vel implements Serializable
     return context(db, "CompactVel");
   }
 
-  public String show(String key)
+  /**
+   *  A CompactVel's settings, held on or off the GC heap
+   */
+  public static class Config extends VelConfig
   {
-    return tm.get(vhash(key)).toString();
-  }
+    private boolean offHeap = OFFHEAP;
 
-  public synchronized Base set(long key, Base item)
-  {
-    if (item == null)
-      tm.remove(key);
-    else
+    public Config(String name)
     {
-      byte[] bs = Utils.fromBase(item);
+      super("CompactVel", name);
+    }
 
-      tm.put(key, bs);
+    public Config setOffHeap(boolean offHeap)
+    {
+      this.offHeap = offHeap;
+
+      return this;
     }
 
-    return item;
+    public boolean getOffHeap()
+    {
+      return offHeap;
+    }
   }
 
-  /**
-   *  show the database
-   *
-   * @return    The string representation of the className
-   */
-  public String toString()
+  public static class Factory implements VelFactory<Config>
   {
-    StringBuilder sb = new StringBuilder("{");
-    boolean first = true;
-
-    for (LongHashMap.HashMapIterator<byte[]> it = (LongHashMap.HashMapIterator<byte[]>) tm.valuesIterator(); it.hasNext(); )
+    public String type()
     {
-      LongHashMap.Entry<byte[]> e = it.nextEntry();
-
-      if (! first)
-        sb.append(",");
-      else
-        first = false;
-
-      Base base = Utils.toBase(e.value);
-
-      sb.append(showItem(e.key, base));
+      return "CompactVel";
     }
 
-    sb.append("}");
+    public Config config(String name)
+    {
+      return new Config(name);
+    }
 
-    return sb.toString();
+    public Vel create(Config c)
+    {
+      return new CompactVel(c.getName(), c.getOffHeap());
+    }
   }
 
-  // Copy from one implementation to another
-  public Vel copy(String type, String nm, boolean merge)
+  public String show(String key)
   {
-    Vel p = getVel(type, nm);
+    return String.valueOf(get(keyHash(key)));
+  }
 
-    if (p != null)
+  public synchronized Base set(long key, Base item)
+  {
+    if (item == null)
+      removeKey(key);
+    else
     {
-      for (LongHashMap.HashMapIterator<byte[]> it = (LongHashMap.HashMapIterator<byte[]>) tm.valuesIterator(); it.hasNext(); )
-      {
-        LongHashMap.Entry<byte[]> e = it.nextEntry();
-        Base base = Utils.toBase(e.value);
+      byte[] bs = Utils.fromBase(item);
 
-        if (merge)
-          p.merge(e.key, base, max);
-        else
-          p.set(e.key, base);
-      }
+      if (oh != null)
+        oh.put(key, bs);
+      else
+        tm.put(key, bs);
     }
 
-    return p;
+    return item;
   }
 
-  // count records and display every Nth record
-  public int count(int n)
+  // Encoded windows are never changed in place so can be shared
+  protected void setRaw(long key, Object win)
   {
-    int cnt = 0;
-
-    for (LongHashMap.HashMapIterator<byte[]> it = (LongHashMap.HashMapIterator<byte[]>) tm.valuesIterator(); it.hasNext(); )
-    {
-      LongHashMap.Entry<byte[]> e = it.nextEntry();
+    byte[] bs = win instanceof byte[] ? (byte[]) win : Utils.fromBase((Base) win);
 
-      if ((cnt % n) == 0)
-      {
-        String item = showItem(e.key, Utils.toBase(e.value));
-
-        System.out.println(cnt + " : " + item);
-      }
+    if (oh != null)
+      oh.put(key, bs);
+    else
+      tm.put(key, bs);
+  }
 
-      cnt++;
-    }
+  public Spliterator<VelCursor> cursor()
+  {
+    if (oh != null)
+      return oh.cursor();
 
-    return cnt;
+    return new VelCursor.MapSpliterator<>(tm);
   }
 
   protected synchronized int purgeDb(int now)
   {
+    if (oh != null)
+      return purgeDb(oh, now);
+
     int cnt = 0;
 
     for (Iterator<byte[]> it = tm.valuesIterator(); it.hasNext(); )
@@ -179,12 +184,7 @@ public class CompactVel extends Vel implements Serializable
       if (ba != null)
       {
         Base val = Utils.toBase(ba);
-        int dt = 0;
-
-        if (val instanceof Item)
-          dt = ((Item) val).ts;
-        else if (((Items) val).items[0] != null)
-          dt = ((Items) val).items[0].ts;
+        int dt = val.expiry();
 
         if (dt > 20000000 && now > dt)
         {
@@ -202,6 +202,6 @@ public class CompactVel extends Vel implements Serializable
 
   public int recCount()
   {
-    return tm.size();
+    return oh != null ? oh.size() : tm.size();
   }
 }
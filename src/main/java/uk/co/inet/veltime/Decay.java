@@ -0,0 +1,178 @@
+package uk.co.inet.veltime;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Exponentially decayed counters for a key, one value for each of several
+ *  half lives sharing a timestamp. A value halves every half life, so it
+ *  is a smooth measure of recent activity kept in constant space.
+ *
+ *  Each node that counts the key has its own timestamp and values, only
+ *  ever written by that node, so a join keeping the later of each node's
+ *  entries is commutative, associative and idempotent, and reads sum over
+ *  the nodes.
+ */
+class Decay extends Base implements Comparable, Serializable
+{
+  // Decayed to about a millionth after this many of the longest half lives
+  private static final int LIVES = 20;
+
+  public int[] halfLives;       // seconds
+  public int[] nodes;
+  public long[] lasts;          // milliseconds
+  public double[] vals;         // nodes.length rows of halfLives.length
+
+  public Decay(int[] halfLives, int[] nodes, long[] lasts, double[] vals)
+  {
+    this.halfLives = halfLives;
+    this.nodes = nodes;
+    this.lasts = lasts;
+    this.vals = vals;
+  }
+
+  static Decay of(int[] halfLives, int node, long now)
+  {
+    return new Decay(halfLives.clone(), new int[] { node }, new long[] { now }, new double[halfLives.length]);
+  }
+
+  boolean sameLives(int[] hl)
+  {
+    return Arrays.equals(halfLives, hl);
+  }
+
+  private int row(int node)
+  {
+    for (int i = 0; i != nodes.length; i++)
+      if (nodes[i] == node)
+        return i;
+
+    return -1;
+  }
+
+  private int life(int halfLife)
+  {
+    for (int i = 0; i != halfLives.length; i++)
+      if (halfLives[i] == halfLife)
+        return i;
+
+    return -1;
+  }
+
+  private static double decay(double v, long from, long to, int halfLife)
+  {
+    return to > from ? v * Math.pow(2.0, (from - to) / (halfLife * 1000.0)) : v;
+  }
+
+  /**
+   *  Decay this node's values to now and add the amount, in place unless the
+   *  node is new to the key
+   *
+   * @return        The record, this or a copy with a row for the node
+   */
+  Decay add(double amount, int node, long now)
+  {
+    int r = row(node);
+    Decay d = this;
+
+    if (r < 0)
+    {
+      r = nodes.length;
+      d = new Decay(halfLives, Arrays.copyOf(nodes, r + 1), Arrays.copyOf(lasts, r + 1), Arrays.copyOf(vals, vals.length + halfLives.length));
+      d.nodes[r] = node;
+      d.lasts[r] = now;
+    }
+
+    int h = halfLives.length;
+
+    for (int i = 0; i != h; i++)
+      d.vals[r * h + i] = decay(d.vals[r * h + i], d.lasts[r], now, halfLives[i]) + amount;
+
+    d.lasts[r] = Math.max(now, d.lasts[r]);
+
+    return d;
+  }
+
+  /**
+   * @return        The value for a half life at now summed over the nodes,
+   *                0 if the key is not counted with that half life
+   */
+  double get(int halfLife, long now)
+  {
+    int i = life(halfLife);
+    double v = 0.0;
+
+    if (i >= 0)
+      for (int r = 0; r != nodes.length; r++)
+        v += decay(vals[r * halfLives.length + i], lasts[r], now, halfLife);
+
+    return v;
+  }
+
+  int expiry()
+  {
+    long last = 0;
+    int longest = 0;
+
+    for (long l : lasts)
+      last = Math.max(last, l);
+
+    for (int h : halfLives)
+      longest = Math.max(longest, h);
+
+    return (int) ((last + LIVES * longest * 1000L) / 60000) + 1;
+  }
+
+  // Keep the later entry of each node, records with other half lives are not joined
+  Base join(Base other)
+  {
+    if (! (other instanceof Decay) || ! sameLives(((Decay) other).halfLives))
+      return this;
+
+    Decay o = (Decay) other;
+    Decay d = this;
+    int h = halfLives.length;
+
+    for (int j = 0; j != o.nodes.length; j++)
+    {
+      int r = d.row(o.nodes[j]);
+
+      if (r < 0)
+      {
+        r = d.nodes.length;
+        d = new Decay(halfLives, Arrays.copyOf(d.nodes, r + 1), Arrays.copyOf(d.lasts, r + 1), Arrays.copyOf(d.vals, d.vals.length + h));
+        d.nodes[r] = o.nodes[j];
+        d.lasts[r] = Long.MIN_VALUE;
+      }
+
+      if (o.lasts[j] > d.lasts[r])
+      {
+        d.lasts[r] = o.lasts[j];
+        System.arraycopy(o.vals, j * h, d.vals, r * h, h);
+      }
+    }
+
+    return d;
+  }
+
+  public String toString()
+  {
+    return "decay|" + Arrays.toString(halfLives) + "|" + Arrays.toString(nodes) + "|" + Arrays.toString(lasts) + "|" + Arrays.toString(vals);
+  }
+
+  public int compareTo(Object o)
+  {
+    if (o instanceof Decay)
+    {
+      Decay d = (Decay) o;
+
+      if (Arrays.equals(halfLives, d.halfLives) && Arrays.equals(nodes, d.nodes) &&
+          Arrays.equals(lasts, d.lasts) && Arrays.equals(vals, d.vals))
+        return 0;
+
+      return 1;
+    }
+    else
+      return -1;
+  }
+}
@@ -0,0 +1,349 @@
+package uk.co.inet.veltime;
+
+import java.util.*;
+
+/**
+ *  The hottest keys of a store, by hits and by value, kept with the Space
+ *  Saving algorithm as updates go through set. Each summary holds a fixed
+ *  number of keys with a count and the most that count may be over, a key
+ *  not held replaces the lowest and takes over its count, so any key with
+ *  more than total / capacity is always held.
+ *
+ *  Keys are split over stripes by hash, each with its own lock, so writers
+ *  of different keys rarely meet and a key's count is never split. Each
+ *  stripe keeps the current period and the one before, so the top keys
+ *  are those of the last one to two periods, and reading them merges a
+ *  few hundred entries rather than walking the store.
+ */
+public class HeavyHitters
+{
+  private static final int STRIPES = 8;
+
+  private final int k;
+  private final long period;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  /**
+   *  A key's count and how much of it may belong to keys it replaced
+   */
+  public static final class Hit
+  {
+    public final long key;
+    public final long count;
+    public final long error;
+
+    Hit(long key, long count, long error)
+    {
+      this.key = key;
+      this.count = count;
+      this.error = error;
+    }
+
+    public String toString()
+    {
+      return key + "=" + count + "(+-" + error + ")";
+    }
+  }
+
+  // Space Saving over a fixed number of keys, a min heap by count finds
+  // the one to replace and an open addressed index finds a key's slot
+  private static final class Summary
+  {
+    final long[] keys;
+    final long[] counts;
+    final long[] errors;
+    final int[] heap;   // slots by count
+    final int[] pos;    // heap position of each slot
+    final int[] index;  // slot + 1 by key, 0 empty
+    final int mask;
+    int size;
+
+    Summary(int cap)
+    {
+      keys = new long[cap];
+      counts = new long[cap];
+      errors = new long[cap];
+      heap = new int[cap];
+      pos = new int[cap];
+      index = new int[Integer.highestOneBit(cap * 4 - 1)];
+      mask = index.length - 1;
+    }
+
+    void clear()
+    {
+      Arrays.fill(index, 0);
+      size = 0;
+    }
+
+    private static int home(long key, int mask)
+    {
+      key *= 0x9E3779B97F4A7C15L;
+
+      return (int) (key >>> 40) & mask;
+    }
+
+    private int find(long key)
+    {
+      int i = home(key, mask);
+
+      while (index[i] != 0 && keys[index[i] - 1] != key)
+        i = (i + 1) & mask;
+
+      return i;
+    }
+
+    // Empty index entry i, shifting back later entries of the run
+    private void unindex(int i)
+    {
+      for (int j = (i + 1) & mask; index[j] != 0; j = (j + 1) & mask)
+      {
+        int h = home(keys[index[j] - 1], mask);
+
+        if (i <= j ? (i < h && h <= j) : (i < h || h <= j))
+          continue;
+
+        index[i] = index[j];
+        i = j;
+      }
+
+      index[i] = 0;
+    }
+
+    void add(long key, long w)
+    {
+      int i = find(key);
+      int s;
+
+      if (index[i] != 0)
+      {
+        s = index[i] - 1;
+        counts[s] += w;
+      }
+      else if (size < keys.length)
+      {
+        s = size++;
+        keys[s] = key;
+        counts[s] = w;
+        errors[s] = 0;
+        heap[s] = s;
+        pos[s] = s;
+        index[i] = s + 1;
+        up(s);
+
+        return;
+      }
+      else
+      {
+        // Replace the lowest, which is over counted by at most its count
+        s = heap[0];
+        unindex(find(keys[s]));
+        i = find(key);
+        index[i] = s + 1;
+        keys[s] = key;
+        errors[s] = counts[s];
+        counts[s] += w;
+      }
+
+      down(pos[s]);
+    }
+
+    private void up(int h)
+    {
+      int s = heap[h];
+
+      while (h > 0)
+      {
+        int p = (h - 1) >>> 1;
+
+        if (counts[heap[p]] <= counts[s])
+          break;
+
+        heap[h] = heap[p];
+        pos[heap[h]] = h;
+        h = p;
+      }
+
+      heap[h] = s;
+      pos[s] = h;
+    }
+
+    private void down(int h)
+    {
+      int s = heap[h];
+
+      for (;;)
+      {
+        int c = 2 * h + 1;
+
+        if (c >= size)
+          break;
+
+        if (c + 1 < size && counts[heap[c + 1]] < counts[heap[c]])
+          c++;
+
+        if (counts[s] <= counts[heap[c]])
+          break;
+
+        heap[h] = heap[c];
+        pos[heap[h]] = h;
+        h = c;
+      }
+
+      heap[h] = s;
+      pos[s] = h;
+    }
+
+    void collect(Map<Long, long[]> into)
+    {
+      for (int s = 0; s != size; s++)
+      {
+        long[] e = into.get(keys[s]);
+
+        if (e == null)
+          into.put(keys[s], new long[] { counts[s], errors[s] });
+        else
+        {
+          e[0] += counts[s];
+          e[1] += errors[s];
+        }
+      }
+    }
+  }
+
+  private final class Stripe
+  {
+    Summary hits = new Summary(k);
+    Summary vals = new Summary(k);
+    Summary prevHits = new Summary(k);
+    Summary prevVals = new Summary(k);
+    long until;
+
+    synchronized void add(long key, int val, long now)
+    {
+      if (now >= until)
+        rotate(now);
+
+      hits.add(key, 1);
+
+      if (val > 0)
+        vals.add(key, val);
+    }
+
+    void rotate(long now)
+    {
+      Summary h = prevHits;
+      Summary v = prevVals;
+
+      if (now < until + period)
+      {
+        prevHits = hits;
+        prevVals = vals;
+      }
+      else
+      {
+        hits.clear();
+        vals.clear();
+        prevHits = hits;
+        prevVals = vals;
+      }
+
+      h.clear();
+      v.clear();
+      hits = h;
+      vals = v;
+      until = now - now % period + period;
+    }
+
+    synchronized void collect(boolean byValue, long now, Map<Long, long[]> into)
+    {
+      if (now >= until)
+        rotate(now);
+
+      (byValue ? vals : hits).collect(into);
+      (byValue ? prevVals : prevHits).collect(into);
+    }
+  }
+
+  /**
+   * @param  k        The keys held per stripe, and the most a query returns
+   * @param  period   The period in milliseconds, counts cover the last one
+   *                  to two periods
+   */
+  public HeavyHitters(int k, long period)
+  {
+    this.k = Math.max(1, k);
+    this.period = Math.max(1, period);
+
+    for (int i = 0; i != STRIPES; i++)
+      stripes[i] = new Stripe();
+  }
+
+  public HeavyHitters(int k)
+  {
+    this(k, 60 * 1000);
+  }
+
+  /**
+   *  Count a hit on a key
+   *
+   * @param  val      The fixed point value added, 0 for a plain hit
+   */
+  void add(long key, int val)
+  {
+    add(key, val, System.currentTimeMillis());
+  }
+
+  void add(long key, int val, long now)
+  {
+    stripes[(int) (key ^ (key >>> 29)) & (STRIPES - 1)].add(key, val, now);
+  }
+
+  /**
+   * @return        Up to k of the keys with most hits, most first
+   */
+  public List<Hit> top(int k)
+  {
+    return top(k, false, System.currentTimeMillis());
+  }
+
+  /**
+   * @return        Up to k of the keys with most value, most first, counts
+   *                are fixed point values
+   */
+  public List<Hit> topValues(int k)
+  {
+    return top(k, true, System.currentTimeMillis());
+  }
+
+  List<Hit> top(int k, boolean byValue, long now)
+  {
+    Map<Long, long[]> all = new HashMap<>();
+
+    for (Stripe s : stripes)
+      s.collect(byValue, now, all);
+
+    List<Hit> hits = new ArrayList<>(all.size());
+
+    for (Map.Entry<Long, long[]> e : all.entrySet())
+      hits.add(new Hit(e.getKey(), e.getValue()[0], e.getValue()[1]));
+
+    hits.sort((a, b) -> Long.compare(b.count, a.count));
+
+    return hits.subList(0, Math.min(Math.min(k, this.k), hits.size()));
+  }
+
+  public int getK()
+  {
+    return k;
+  }
+
+  public long getPeriod()
+  {
+    return period;
+  }
+
+  public String toString()
+  {
+    return "top " + top(10);
+  }
+}
@@ -8,6 +8,12 @@ class Item extends Base implements Comparable, Serializable
   // item is either a fixed point (2 places) amount for velocity with amount
   // or a count for changes
   public int item;
+  // node that counted this item, 0 unless merged across nodes
+  public int node;
+
+  // The window's own duration in minutes when this is the whole window,
+  // 0 for the store's
+  public int dur;
 
   public Item(int ts)
   {
@@ -21,15 +27,27 @@ class Item extends Base implements Comparable, Serializable
     this.item = item;
   }
 
+  public Item(int ts, int item, int node)
+  {
+    this.ts = ts;
+    this.item = item;
+    this.node = node;
+  }
+
   public Item(int ts, double item)
   {
     this.ts = ts;
     this.item = Vel.toFix(item);
   }
 
+  int expiry()
+  {
+    return ts;
+  }
+
   public String toString()
   {
-    return ts + "|" + item;
+    return node == 0 ? ts + "|" + item : ts + "|" + item + "|" + node;
   }
 
   public int compareTo(Object o)
@@ -38,10 +56,12 @@ class Item extends Base implements Comparable, Serializable
     {
       Item it = (Item) o;
 
-      if (ts == it.ts)
-        return item - it.item;
-      else
+      if (ts != it.ts)
         return ts - it.ts;
+      else if (node != it.node)
+        return node - it.node;
+      else
+        return item - it.item;
     }
     else
       return -1;
@@ -9,9 +9,26 @@ class Items extends Base implements Comparable, Serializable
 {
   public Item[] items;
 
+  // The window's own duration in minutes, 0 for the store's
+  public int dur;
+
+  // The running total of the items, kept by velGet as items are added and
+  // dropped so counts and values need no loop
+  public int sum;
+
   public Items(Item[] items)
   {
     this.items = items;
+
+    for (Item i : items)
+      if (i != null)
+        sum += i.item;
+  }
+
+  // Newest first, so the first item expires last
+  int expiry()
+  {
+    return items.length > 0 && items[0] != null ? items[0].ts : 0;
   }
 
   public String toString()
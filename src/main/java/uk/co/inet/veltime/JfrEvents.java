@@ -0,0 +1,204 @@
+package uk.co.inet.veltime;
+
+import jdk.jfr.*;
+
+/**
+ *  Flight Recorder events for the slow paths of the stores, see VelEvents.
+ *  Each event has a default threshold so only slow operations are written,
+ *  change it in the recording settings, e.g.
+ *  uk.co.inet.veltime.Velocity#threshold=0 ms
+ *
+ *  Only VelEvents refers to this class, by name, once it has found
+ *  jdk.jfr, so a JRE without Flight Recorder never links it.
+ */
+final class JfrEvents implements VelEvents.Recorder
+{
+  @Name("uk.co.inet.veltime.Velocity")
+  @Label("Velocity Operation")
+  @Description("A velocity update, including reading and writing back its window")
+  @Category("Velocity")
+  @Threshold("1 ms")
+  static final class VelocityEvent extends Event
+  {
+    @Label("Store")
+    String store;
+
+    @Label("Operation")
+    String op;
+
+    @Label("Key Hash")
+    long keyHash;
+
+    @Label("Window Length")
+    int window;
+
+    @Label("Outcome")
+    String outcome;
+  }
+
+  @Name("uk.co.inet.veltime.Purge")
+  @Label("Purge")
+  @Description("A purge of expired windows from a store")
+  @Category("Velocity")
+  @Threshold("0 ms")
+  static final class PurgeEvent extends Event
+  {
+    @Label("Store")
+    String store;
+
+    @Label("Purged")
+    int purged;
+
+    @Label("Outcome")
+    String outcome;
+  }
+
+  @Name("uk.co.inet.veltime.SaveProp")
+  @Label("Save Properties")
+  @Description("A store's properties written to its .prp file")
+  @Category("Velocity")
+  @Threshold("0 ms")
+  static final class SavePropEvent extends Event
+  {
+    @Label("Store")
+    String store;
+
+    @Label("File")
+    String file;
+
+    @Label("Outcome")
+    String outcome;
+  }
+
+  @Name("uk.co.inet.veltime.Decode")
+  @Label("Decode")
+  @Description("A window read from the off heap store and decoded")
+  @Category("Velocity")
+  @Threshold("100 us")
+  static final class DecodeEvent extends Event
+  {
+    @Label("Store")
+    String store;
+
+    @Label("Key Hash")
+    long keyHash;
+
+    @Label("Bytes")
+    int bytes;
+
+    @Label("Window Length")
+    int window;
+
+    @Label("Outcome")
+    String outcome;
+  }
+
+  // Only used to ask if each event is enabled, so nothing is allocated when not
+  private final Event velocity = new VelocityEvent();
+  private final Event purge = new PurgeEvent();
+  private final Event saveProp = new SavePropEvent();
+  private final Event decode = new DecodeEvent();
+
+  private static Event started(Event ev)
+  {
+    ev.begin();
+
+    return ev;
+  }
+
+  public Object velocity()
+  {
+    return velocity.isEnabled() ? started(new VelocityEvent()) : null;
+  }
+
+  public Object purge()
+  {
+    return purge.isEnabled() ? started(new PurgeEvent()) : null;
+  }
+
+  public Object saveProp()
+  {
+    return saveProp.isEnabled() ? started(new SavePropEvent()) : null;
+  }
+
+  public Object decode()
+  {
+    return decode.isEnabled() ? started(new DecodeEvent()) : null;
+  }
+
+  public void velocity(Object o, String store, String op, long keyHash, Base base, String outcome)
+  {
+    if (o != null)
+    {
+      VelocityEvent ev = (VelocityEvent) o;
+
+      ev.end();
+
+      if (ev.shouldCommit())
+      {
+        ev.store = store;
+        ev.op = op;
+        ev.keyHash = keyHash;
+        ev.window = VelEvents.length(base);
+        ev.outcome = outcome;
+        ev.commit();
+      }
+    }
+  }
+
+  public void purge(Object o, String store, int purged, String outcome)
+  {
+    if (o != null)
+    {
+      PurgeEvent ev = (PurgeEvent) o;
+
+      ev.end();
+
+      if (ev.shouldCommit())
+      {
+        ev.store = store;
+        ev.purged = purged;
+        ev.outcome = outcome;
+        ev.commit();
+      }
+    }
+  }
+
+  public void saveProp(Object o, String store, String file, String outcome)
+  {
+    if (o != null)
+    {
+      SavePropEvent ev = (SavePropEvent) o;
+
+      ev.end();
+
+      if (ev.shouldCommit())
+      {
+        ev.store = store;
+        ev.file = file;
+        ev.outcome = outcome;
+        ev.commit();
+      }
+    }
+  }
+
+  public void decode(Object o, String store, long keyHash, byte[] bs, Base base)
+  {
+    if (o != null)
+    {
+      DecodeEvent ev = (DecodeEvent) o;
+
+      ev.end();
+
+      if (ev.shouldCommit())
+      {
+        ev.store = store;
+        ev.keyHash = keyHash;
+        ev.bytes = bs == null ? 0 : bs.length;
+        ev.window = VelEvents.length(base);
+        ev.outcome = bs == null ? "miss" : "hit";
+        ev.commit();
+      }
+    }
+  }
+}
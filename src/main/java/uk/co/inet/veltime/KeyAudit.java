@@ -0,0 +1,102 @@
+package uk.co.inet.veltime;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ *  Measures how often different data items hash to the same key, which
+ *  would silently merge their counters. About one in rate keys is kept with
+ *  the item it came from, chosen by the key itself so every item with a
+ *  sampled key is checked, and any other item seen with that key counts as
+ *  a collision.
+ *
+ *  The sample is capped so the audit can be left on, the rate over the
+ *  sample estimates the rate over all keys.
+ */
+public class KeyAudit
+{
+  private static final int LIMIT = 1 << 20;
+  private static final int EXAMPLES = 10;
+
+  private final long rate;
+  private final ConcurrentHashMap<Long, String> seen = new ConcurrentHashMap<>();
+  private final Set<Long> collided = ConcurrentHashMap.newKeySet();
+  private final List<String> examples = new CopyOnWriteArrayList<>();
+  private final LongAdder checked = new LongAdder();
+
+  public KeyAudit(int rate)
+  {
+    this.rate = Math.max(1, rate);
+  }
+
+  void sample(long key, String item)
+  {
+    if (Long.remainderUnsigned(key * 0x9E3779B97F4A7C15L, rate) != 0)
+      return;
+
+    checked.increment();
+
+    String prev = seen.get(key);
+
+    if (prev == null)
+    {
+      if (seen.size() < LIMIT)
+        seen.putIfAbsent(key, item);
+    }
+    else if (! prev.equals(item) && collided.add(key))
+    {
+      if (examples.size() < EXAMPLES)
+        examples.add(key + " : " + prev + " , " + item);
+
+      Vel.log("Key hash collision on " + key);
+    }
+  }
+
+  /**
+   * @return        The distinct items sampled
+   */
+  public int getSampled()
+  {
+    return seen.size();
+  }
+
+  /**
+   * @return        The sampled keys used by more than one item
+   */
+  public int getCollisions()
+  {
+    return collided.size();
+  }
+
+  /**
+   * @return        The fraction of sampled keys that collided
+   */
+  public double getCollisionRate()
+  {
+    int n = seen.size();
+
+    return n == 0 ? 0.0 : (double) collided.size() / n;
+  }
+
+  /**
+   * @return        Lookups checked against the sample
+   */
+  public long getChecked()
+  {
+    return checked.sum();
+  }
+
+  /**
+   * @return        The first few collisions, key and both items
+   */
+  public List<String> getExamples()
+  {
+    return Collections.unmodifiableList(examples);
+  }
+
+  public String toString()
+  {
+    return "sampled " + getSampled() + ", collisions " + getCollisions() + ", rate " + getCollisionRate();
+  }
+}
@@ -12,6 +12,9 @@ import java.util.NoSuchElementException;
  * <p/>
  * This code comes from Android, which in turns comes from Apache Harmony.
  * This class was modified to use primitive longs and stripped down to consume less space.
+ * <p/>
+ * Resizing is incremental: the old and new tables live side by side and each put or
+ * remove moves a few old buckets across, so no single put has to relink every entry.
  */
 public class LongHashMap<V> {
 
@@ -19,6 +22,14 @@ public class LongHashMap<V> {
 
   private Entry<V>[] elementData;
 
+  // Table being emptied into elementData, buckets below migrated have moved
+  private Entry<V>[] oldData;
+
+  private int migrated;
+
+  // Old buckets moved per put or remove, enough to finish long before the next resize
+  private static final int MIGRATE = 4;
+
   private final float loadFactor;
 
   private int threshold;
@@ -194,6 +205,8 @@ public class LongHashMap<V> {
       elementData = new Entry[defaultSize];
     else
       Arrays.fill(elementData, null);
+    oldData = null;
+    migrated = 0;
     computeMaxSize();
   }
 
@@ -221,19 +234,36 @@ public class LongHashMap<V> {
 
   public V get(final long key) {
 
-    final int hash = powerHash(key);
-    final int index = (hash & 0x7FFFFFFF) % elementData.length;
+    Entry<V> m = findEntry(powerHash(key), key);
 
-    //find non null entry
-    Entry<V> m = elementData[index];
+    return m == null ? null : m.value;
+
+  }
+
+  // Look in the new table, then the old one if the key's bucket has not moved yet
+  private Entry<V> findEntry(final int hash, final long key) {
+    Entry<V>[] data = elementData;
+    Entry<V> m = data[(hash & 0x7FFFFFFF) % data.length];
     while (m != null) {
       if (key == m.key)
-        return m.value;
+        return m;
       m = m.next;
     }
 
-    return null;
+    Entry<V>[] old = oldData;
+    if (old != null) {
+      final int index = (hash & 0x7FFFFFFF) % old.length;
+      if (index >= migrated) {
+        m = old[index];
+        while (m != null) {
+          if (key == m.key)
+            return m;
+          m = m.next;
+        }
+      }
+    }
 
+    return null;
   }
 
   public V get(final String key) {
@@ -266,21 +296,19 @@ public class LongHashMap<V> {
 
   public V put(final long key, final V value) {
 
+    if (oldData != null)
+      migrate(MIGRATE);
+
     int hash = powerHash(key);
-    int index = (hash & 0x7FFFFFFF) % elementData.length;
 
     //find non null entry
-    Entry<V> entry = elementData[index];
-    while (entry != null && key != entry.key) {
-      entry = entry.next;
-    }
+    Entry<V> entry = findEntry(hash, key);
 
     if (entry == null) {
       if (++elementCount > threshold) {
         rehash();
-        index = (hash & 0x7FFFFFFF) % elementData.length;
       }
-      entry = createHashedEntry(key, index);
+      entry = createHashedEntry(key, (hash & 0x7FFFFFFF) % elementData.length);
     }
 
 
@@ -304,29 +332,54 @@ public class LongHashMap<V> {
   }
 
 
+  // Start moving to a table twice the size, finishing any earlier move first
   @SuppressWarnings("unchecked")
   void rehash(final int capacity) {
     int length = (capacity == 0 ? 1 : capacity << 1);
 
-    //Entry<V>[] newData = newElementArray(length);
-    Entry<V>[] newData = new Entry[length];
-    for (int i = 0; i < elementData.length; i++) {
-      Entry<V> entry = elementData[i];
+    if (oldData != null)
+      migrate(oldData.length);
+
+    oldData = elementData;
+    migrated = 0;
+    elementData = new Entry[length];
+    computeMaxSize();
+  }
+
+  void rehash()
+  {
+    rehash(elementData.length);
+  }
+
+  // Move up to n old buckets into the new table
+  private void migrate(final int n) {
+    Entry<V>[] old = oldData;
+    Entry<V>[] data = elementData;
+    int end = Math.min(old.length, migrated + n);
+
+    for (int i = migrated; i < end; i++) {
+      Entry<V> entry = old[i];
       while (entry != null) {
-        int index = (powerHash(entry.key) & 0x7FFFFFFF) % length;
+        int index = (powerHash(entry.key) & 0x7FFFFFFF) % data.length;
         Entry<V> next = entry.next;
-        entry.next = newData[index];
-        newData[index] = entry;
+        entry.next = data[index];
+        data[index] = entry;
         entry = next;
       }
+      old[i] = null;
+      migrated = i + 1;
+    }
+
+    if (end == old.length) {
+      oldData = null;
+      migrated = 0;
     }
-    elementData = newData;
-    computeMaxSize();
   }
 
-  void rehash()
-  {
-    rehash(elementData.length);
+  // Finish any resize under way, e.g. before walking the table
+  void settle() {
+    if (oldData != null)
+      migrate(oldData.length);
   }
 
   /**
@@ -353,10 +406,23 @@ public class LongHashMap<V> {
   }
 
   Entry<V> removeEntry(final long key) {
-    Entry<V> last = null;
+    if (oldData != null)
+      migrate(MIGRATE);
 
     final int hash = powerHash(key);
-    final int index = (hash & 0x7FFFFFFF) % elementData.length;
+    Entry<V> entry = removeEntry(elementData, (hash & 0x7FFFFFFF) % elementData.length, key);
+
+    if (entry == null && oldData != null) {
+      final int index = (hash & 0x7FFFFFFF) % oldData.length;
+      if (index >= migrated)
+        entry = removeEntry(oldData, index, key);
+    }
+
+    return entry;
+  }
+
+  private Entry<V> removeEntry(final Entry<V>[] elementData, final int index, final long key) {
+    Entry<V> last = null;
     Entry<V> entry = elementData[index];
 
     while (true) {
@@ -394,10 +460,19 @@ public class LongHashMap<V> {
     return elementCount;
   }
 
+  // The bucket arrays, for walking the map without an iterator: the old
+  // table first while a resize is under way, then the current one
+  @SuppressWarnings("unchecked")
+  Entry<V>[][] tables() {
+    Entry<V>[] old = oldData;
+    return old == null ? new Entry[][] { elementData } : new Entry[][] { old, elementData };
+  }
+
   /**
    * @returns iterator over values in map
    */
   public Iterator<V> valuesIterator() {
+    settle();
     return new HashMapIterator<V>(this);
   }
 
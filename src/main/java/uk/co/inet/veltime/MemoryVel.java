@@ -29,20 +29,44 @@ public class MemoryVel extends Vel
  *  where if the key matches then the value should match too, if it does
  *  not then the counter is increased.
  */
-  private LongHashMap<Base> tm = new LongHashMap<>();
+  private final LongHashMap<Base> tm;
+
+  // Windows kept encoded outside the GC heap instead, see veltime.offheap
+  private final OffHeapLongMap oh;
 
   public MemoryVel(String nm)
+  {
+    this(nm, OFFHEAP);
+  }
+
+  public MemoryVel(String nm, boolean offHeap)
   {
     type = "MemoryVel";
+    tm = offHeap ? null : new LongHashMap<>();
+    oh = offHeap ? new OffHeapLongMap() : null;
   }
 
   protected Base get(long key)
   {
+    if (oh != null)
+    {
+      byte[] bs = oh.get(key);
+
+      return bs == null ? null : Utils.toBase(bs);
+    }
+
     return tm.get(key);
   }
 
   protected Base removeKey(long key)
   {
+    if (oh != null)
+    {
+      byte[] bs = oh.remove(key);
+
+      return bs == null ? null : Utils.toBase(bs);
+    }
+
     return tm.remove(key);
   }
 
@@ -66,93 +90,92 @@ public class MemoryVel extends Vel
     return context(db, "MemoryVel");
   }
 
-  public String show(String key)
-  {
-    return tm.get(vhash(key)).toString();
-  }
-
-  public synchronized Base set(long key, Base item)
-  {
-    if (item == null)
-      tm.remove(key);
-    else
-      tm.put(key, item);
-
-    return item;
-  }
-
   /**
-   *  show the database
-   *
-   * @return    The string representation of the className
+   *  A MemoryVel's settings, held on or off the GC heap
    */
-  public String toString()
+  public static class Config extends VelConfig
   {
-    StringBuilder sb = new StringBuilder("{");
-    boolean first = true;
+    private boolean offHeap = OFFHEAP;
 
-    for (LongHashMap.HashMapIterator<Base> it = (LongHashMap.HashMapIterator<Base>) tm.valuesIterator(); it.hasNext(); )
+    public Config(String name)
     {
-      LongHashMap.Entry<Base> e = it.nextEntry();
+      super("MemoryVel", name);
+    }
 
-      if (! first)
-        sb.append(",");
-      else
-        first = false;
+    public Config setOffHeap(boolean offHeap)
+    {
+      this.offHeap = offHeap;
 
-      sb.append(showItem(e.key, e.value));
+      return this;
     }
 
-    sb.append("}");
-
-    return sb.toString();
+    public boolean getOffHeap()
+    {
+      return offHeap;
+    }
   }
 
-  // Copy from one implementation to another
-  public Vel copy(String type, String nm, boolean merge)
+  public static class Factory implements VelFactory<Config>
   {
-    Vel p = getVel(type, nm);
+    public String type()
+    {
+      return "MemoryVel";
+    }
 
-    if (p != null)
+    public Config config(String name)
     {
-      for (LongHashMap.HashMapIterator<Base> it = (LongHashMap.HashMapIterator<Base>) tm.valuesIterator(); it.hasNext(); )
-      {
-        LongHashMap.Entry<Base> e = it.nextEntry();
+      return new Config(name);
+    }
 
-        if (merge)
-          p.merge(e.key, e.value, max);
-        else
-          p.set(e.key, e.value);
-      }
+    public Vel create(Config c)
+    {
+      return new MemoryVel(c.getName(), c.getOffHeap());
     }
+  }
 
-    return p;
+  public String show(String key)
+  {
+    return String.valueOf(get(keyHash(key)));
   }
 
-  // count records and display every Nth record
-  public int count(int n)
+  public synchronized Base set(long key, Base item)
   {
-    int cnt = 0;
+    if (item == null)
+      removeKey(key);
+    else if (oh != null)
+      oh.put(key, Utils.fromBase(item));
+    else
+      tm.put(key, item);
+
+    return item;
+  }
 
-    for (LongHashMap.HashMapIterator<Base> it = (LongHashMap.HashMapIterator<Base>) tm.valuesIterator(); it.hasNext(); )
+  // Windows are changed in place so never share one with the source
+  protected void setRaw(long key, Object win)
+  {
+    if (oh != null)
     {
-      LongHashMap.Entry<Base> e = it.nextEntry();
+      oh.put(key, win instanceof byte[] ? (byte[]) win : Utils.fromBase((Base) win));
 
-      if ((cnt % n) == 0)
-      {
-        String item = showItem(e.key, e.value);
+      return;
+    }
 
-        System.out.println(cnt + " : " + item);
-      }
+    tm.put(key, win instanceof byte[] ? Utils.toBase((byte[]) win) : Utils.copyOf((Base) win));
+  }
 
-      cnt++;
-    }
+  public Spliterator<VelCursor> cursor()
+  {
+    if (oh != null)
+      return oh.cursor();
 
-    return cnt;
+    return new VelCursor.MapSpliterator<>(tm);
   }
 
   protected synchronized int purgeDb(int now)
   {
+    if (oh != null)
+      return purgeDb(oh, now);
+
     int cnt = 0;
 
     for (Iterator<Base> it = tm.valuesIterator(); it.hasNext(); )
@@ -161,12 +184,7 @@ public class MemoryVel extends Vel
 
       if (val != null)
       {
-        int dt = 0;
-
-        if (val instanceof Item)
-          dt = ((Item) val).ts;
-        else if (((Items) val).items[0] != null)
-          dt = ((Items) val).items[0].ts;
+        int dt = val.expiry();
 
         if (dt > 20000000 && now > dt)
         {
@@ -182,6 +200,6 @@ public class MemoryVel extends Vel
 
   public int recCount()
   {
-    return tm.size();
+    return oh != null ? oh.size() : tm.size();
   }
 }
@@ -0,0 +1,289 @@
+package uk.co.inet.veltime;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A window of several metrics at once, so a count, an amount and the
+ *  distinct values of a key, e.g. a card's merchants, take one key, one
+ *  lookup and one record rather than three.
+ *
+ *  Each slot is an expiry minute, a count, a fixed point amount, the hash
+ *  of a value, 0 for none, and the node that counted it. Events with the
+ *  same expiry and value share a slot on each node. Slots are newest first,
+ *  then by hash and node, and at most max expiry and value pairs are kept,
+ *  so the live slots are a prefix like the items of a plain window.
+ */
+class Metrics extends Base implements Comparable, Serializable
+{
+  public int dur;       // own duration in minutes, 0 for the store's
+  public int n;
+  public int[] ts;
+  public int[] count;
+  public int[] amount;
+  public int[] hash;
+  public int[] node;
+
+  public Metrics(int dur, int n, int[] ts, int[] count, int[] amount, int[] hash, int[] node)
+  {
+    this.dur = dur;
+    this.n = n;
+    this.ts = ts;
+    this.count = count;
+    this.amount = amount;
+    this.hash = hash;
+    this.node = node;
+  }
+
+  static Metrics of(int size)
+  {
+    size = Math.max(1, size);
+
+    return new Metrics(0, 0, new int[size], new int[size], new int[size], new int[size], new int[size]);
+  }
+
+  /**
+   * @return        The hash of a value counted as distinct, never 0
+   */
+  static int hash(String val)
+  {
+    if (val == null)
+      return 0;
+
+    int h = (int) Vel.vhash(val);
+
+    return h != 0 ? h : 1;
+  }
+
+  /**
+   * @return        The slots live at now, those with ts at or after now
+   */
+  int live(int now)
+  {
+    int lo = 0;
+    int hi = n;
+
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+
+      if (ts[mid] >= now)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    return lo;
+  }
+
+  /**
+   *  Add an event, dropping slots expired by now and the oldest beyond max
+   *
+   * @param  expire   The minute the event expires
+   * @param  amt      The fixed point amount
+   * @param  h        The value's hash, 0 for none
+   * @param  nd       The node counting it
+   */
+  void add(int now, int expire, int amt, int h, int nd, int max)
+  {
+    boolean known = false;
+
+    n = live(now);
+
+    for (int i = 0; i != n && ts[i] >= expire; i++)
+    {
+      if (ts[i] == expire && hash[i] == h)
+      {
+        if (node[i] == nd)
+        {
+          count[i]++;
+          amount[i] += amt;
+
+          return;
+        }
+
+        known = true;
+      }
+    }
+
+    // Another node's slot for the same pair takes no room of its own
+    if (! known)
+      n = keep(Math.max(1, max) - 1);
+
+    if (n == ts.length)
+      grow(Math.max(n + 1, Math.min(max, n * 2)));
+
+    // Newest first, then by value and node so a join can walk both in order
+    int at = 0;
+
+    while (at != n && before(ts[at], hash[at], node[at], expire, h, nd))
+      at++;
+
+    System.arraycopy(ts, at, ts, at + 1, n - at);
+    System.arraycopy(count, at, count, at + 1, n - at);
+    System.arraycopy(amount, at, amount, at + 1, n - at);
+    System.arraycopy(hash, at, hash, at + 1, n - at);
+    System.arraycopy(node, at, node, at + 1, n - at);
+
+    ts[at] = expire;
+    count[at] = 1;
+    amount[at] = amt;
+    hash[at] = h;
+    node[at] = nd;
+    n++;
+  }
+
+  private static boolean before(int t1, int h1, int n1, int t2, int h2, int n2)
+  {
+    return t1 != t2 ? t1 > t2 : h1 != h2 ? h1 < h2 : n1 < n2;
+  }
+
+  // The slots of the first pairs of expiry and value, every node's
+  private int keep(int pairs)
+  {
+    int p = 0;
+
+    for (int i = 0; i != n; i++)
+      if ((i == 0 || ts[i] != ts[i - 1] || hash[i] != hash[i - 1]) && ++p > pairs)
+        return i;
+
+    return n;
+  }
+
+  private void grow(int size)
+  {
+    ts = Arrays.copyOf(ts, size);
+    count = Arrays.copyOf(count, size);
+    amount = Arrays.copyOf(amount, size);
+    hash = Arrays.copyOf(hash, size);
+    node = Arrays.copyOf(node, size);
+  }
+
+  /**
+   * @return        The metrics of the slots live at now
+   */
+  VelMetrics get(int now)
+  {
+    int live = live(now);
+    int c = 0;
+    long a = 0;
+    int d = 0;
+
+    for (int i = 0; i != live; i++)
+    {
+      c += count[i];
+      a += amount[i];
+
+      // Windows hold few slots, so check those before, as VelQuery
+      boolean seen = hash[i] == 0;
+
+      for (int j = 0; j != i && ! seen; j++)
+        seen = hash[j] == hash[i];
+
+      if (! seen)
+        d++;
+    }
+
+    return new VelMetrics(c, a / 100.0, d);
+  }
+
+  int expiry()
+  {
+    return n > 0 ? ts[0] : 0;
+  }
+
+  /*
+   *  Join another node's window. As for plain windows each node's slot only
+   *  grows, so the same slot from both keeps the larger count and amount,
+   *  while different nodes' slots are all kept and add up. The join keeps as
+   *  many pairs of expiry and value as the longer of the two.
+   */
+  Base join(Base other)
+  {
+    Metrics o = (Metrics) other;
+    int pairs = Math.max(pairs(), o.pairs());
+    Metrics m = of(n + o.n);
+    int i = 0;
+    int j = 0;
+    int p = 0;
+
+    m.dur = Math.max(dur, o.dur);
+
+    while (i < n || j < o.n)
+    {
+      int c;
+
+      if (j == o.n)
+        c = -1;
+      else if (i == n)
+        c = 1;
+      else if (ts[i] == o.ts[j] && hash[i] == o.hash[j] && node[i] == o.node[j])
+        c = 0;
+      else
+        c = before(ts[i], hash[i], node[i], o.ts[j], o.hash[j], o.node[j]) ? -1 : 1;
+
+      int k = m.n;
+
+      if (c <= 0)
+      {
+        m.ts[k] = ts[i];
+        m.hash[k] = hash[i];
+        m.node[k] = node[i];
+        m.count[k] = count[i];
+        m.amount[k] = amount[i];
+      }
+      else
+      {
+        m.ts[k] = o.ts[j];
+        m.hash[k] = o.hash[j];
+        m.node[k] = o.node[j];
+        m.count[k] = o.count[j];
+        m.amount[k] = o.amount[j];
+      }
+
+      if (c == 0)
+      {
+        m.count[k] = Math.max(count[i], o.count[j]);
+        m.amount[k] = Math.max(amount[i], o.amount[j]);
+      }
+
+      if ((k == 0 || m.ts[k] != m.ts[k - 1] || m.hash[k] != m.hash[k - 1]) && ++p > pairs)
+        break;
+
+      m.n++;
+
+      if (c <= 0)
+        i++;
+      if (c >= 0)
+        j++;
+    }
+
+    return m;
+  }
+
+  private int pairs()
+  {
+    int p = 0;
+
+    for (int i = 0; i != n; i++)
+      if (i == 0 || ts[i] != ts[i - 1] || hash[i] != hash[i - 1])
+        p++;
+
+    return p;
+  }
+
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+
+    for (int i = 0; i != n; i++)
+      sb.append(i == 0 ? "" : ",").append(ts[i]).append('|').append(count[i]).append('|').append(amount[i]).append('|').append(hash[i]).append('|').append(node[i]);
+
+    return sb.toString();
+  }
+
+  public int compareTo(Object o)
+  {
+    return o instanceof Metrics && toString().equals(o.toString()) && dur == ((Metrics) o).dur ? 0 : -1;
+  }
+}
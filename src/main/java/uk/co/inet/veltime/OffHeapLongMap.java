@@ -0,0 +1,485 @@
+package uk.co.inet.veltime;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ *  A long keyed map of encoded windows held in direct buffers, outside the
+ *  GC heap, so the collector never has to trace the velocity state.
+ *
+ *  Keys live in an open addressed table of fixed 32 byte slots, the key,
+ *  the window's length, then the window itself when it fits in 20 bytes
+ *  (a single item or two) or the address of a chunk in the overflow area.
+ *  Overflow chunks come in power of two sizes with a free list per size,
+ *  so a window that grows moves to a larger chunk and its old one is
+ *  reused.
+ *
+ *  Values are copied in and out, a get returns a new array. Memory is only
+ *  returned when the map is cleared, size -XX:MaxDirectMemorySize to suit.
+ *  All methods synchronize on the map, so reads are safe against writers.
+ */
+public class OffHeapLongMap
+{
+  private static final int SLOT = 32;
+  private static final int LEN = 8;
+  private static final int DATA = 12;
+  private static final int INLINE = SLOT - DATA;
+
+  // Slots per slot slab and bytes per overflow slab
+  private static final int SLOT_SHIFT = 20;
+  private static final int OVERFLOW_SHIFT = 26;
+
+  private static final int MIN_CHUNK = 5;      // 32 bytes
+  private static final int MAX_CHUNK = OVERFLOW_SHIFT;
+
+  private static final float LOAD = 0.7f;
+
+  private final int defaultSize;
+
+  private ByteBuffer[] slots;
+  private int mask;
+  private int threshold;
+  private int size;
+
+  private final List<ByteBuffer> overflow = new ArrayList<>();
+  private final long[] free = new long[MAX_CHUNK + 1];
+  private int top;
+  private long used;
+
+  public OffHeapLongMap()
+  {
+    this(1024);
+  }
+
+  /**
+   * @param  capacity The number of keys to size the table for, presizing
+   *                  avoids copying the slot table as it grows
+   */
+  public OffHeapLongMap(int capacity)
+  {
+    defaultSize = capacity;
+
+    clear();
+  }
+
+  public synchronized void clear()
+  {
+    int cap = Integer.highestOneBit(Math.max(16, (int) Math.min(1 << 30, defaultSize / LOAD)) * 2 - 1);
+
+    slots = table(cap);
+    mask = cap - 1;
+    threshold = (int) (cap * LOAD);
+    size = 0;
+
+    overflow.clear();
+    Arrays.fill(free, -1L);
+    top = 1 << OVERFLOW_SHIFT;
+    used = 0;
+  }
+
+  private static ByteBuffer[] table(int cap)
+  {
+    int per = Math.min(cap, 1 << SLOT_SHIFT);
+    ByteBuffer[] t = new ByteBuffer[cap / per];
+
+    for (int i = 0; i != t.length; i++)
+      t[i] = ByteBuffer.allocateDirect(per * SLOT);
+
+    return t;
+  }
+
+  public synchronized int size()
+  {
+    return size;
+  }
+
+  public boolean isEmpty()
+  {
+    return size() == 0;
+  }
+
+  /**
+   * @return        Bytes held off heap, slots and overflow chunks in use
+   */
+  public synchronized long offHeapBytes()
+  {
+    return (long) (mask + 1) * SLOT + used;
+  }
+
+  private static int home(long key, int mask)
+  {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+
+    return (int) key & mask;
+  }
+
+  private ByteBuffer slab(int i)
+  {
+    return slots[i >>> SLOT_SHIFT];
+  }
+
+  private static int off(int i)
+  {
+    return (i & ((1 << SLOT_SHIFT) - 1)) * SLOT;
+  }
+
+  // Length of the window in slot i plus one, 0 for an empty slot
+  private int state(int i)
+  {
+    return slab(i).getInt(off(i) + LEN);
+  }
+
+  private long key(int i)
+  {
+    return slab(i).getLong(off(i));
+  }
+
+  // The slot holding key, or the empty slot where it would go
+  private int find(long key)
+  {
+    int i = home(key, mask);
+
+    while (state(i) != 0 && key(i) != key)
+      i = (i + 1) & mask;
+
+    return i;
+  }
+
+  public synchronized byte[] get(long key)
+  {
+    int i = find(key);
+
+    return state(i) == 0 ? null : read(i);
+  }
+
+  public byte[] get(String key)
+  {
+    return get(Vel.vhash(key));
+  }
+
+  public synchronized boolean containsKey(long key)
+  {
+    return state(find(key)) != 0;
+  }
+
+  private byte[] read(int i)
+  {
+    ByteBuffer bb = slab(i);
+    int off = off(i);
+    byte[] bs = new byte[bb.getInt(off + LEN) - 1];
+
+    if (bs.length <= INLINE)
+      copy(bb, off + DATA, bs);
+    else
+    {
+      long addr = bb.getLong(off + DATA);
+
+      copy(overflow.get((int) (addr >>> OVERFLOW_SHIFT)), (int) addr & ((1 << OVERFLOW_SHIFT) - 1), bs);
+    }
+
+    return bs;
+  }
+
+  private static void copy(ByteBuffer bb, int off, byte[] bs)
+  {
+    ByteBuffer d = bb.duplicate();
+
+    ((Buffer) d).position(off);
+    d.get(bs);
+  }
+
+  /**
+   *  Store a copy of the value, the array may be reused by the caller
+   */
+  public synchronized void put(long key, byte[] value)
+  {
+    int i = find(key);
+    int st = state(i);
+
+    if (st == 0)
+    {
+      if (size + 1 > threshold)
+      {
+        grow();
+        i = find(key);
+      }
+
+      size++;
+    }
+    else if (st - 1 > INLINE)
+      release(slab(i).getLong(off(i) + DATA), st - 1);
+
+    ByteBuffer bb = slab(i);
+    int off = off(i);
+
+    bb.putLong(off, key);
+    bb.putInt(off + LEN, value.length + 1);
+
+    if (value.length <= INLINE)
+    {
+      ByteBuffer d = bb.duplicate();
+
+      ((Buffer) d).position(off + DATA);
+      d.put(value);
+    }
+    else
+    {
+      long addr = allocate(value.length);
+      ByteBuffer d = overflow.get((int) (addr >>> OVERFLOW_SHIFT)).duplicate();
+
+      ((Buffer) d).position((int) addr & ((1 << OVERFLOW_SHIFT) - 1));
+      d.put(value);
+      bb.putLong(off + DATA, addr);
+    }
+  }
+
+  public void put(String key, byte[] value)
+  {
+    put(Vel.vhash(key), value);
+  }
+
+  /**
+   * @return        The value removed, or null if there was none
+   */
+  public synchronized byte[] remove(long key)
+  {
+    int i = find(key);
+
+    if (state(i) == 0)
+      return null;
+
+    byte[] bs = read(i);
+
+    delete(i);
+
+    return bs;
+  }
+
+  public byte[] remove(String key)
+  {
+    return remove(Vel.vhash(key));
+  }
+
+  // Empty slot i, shifting back any later entries of the run that could sit there
+  private void delete(int i)
+  {
+    int st = state(i);
+
+    if (st - 1 > INLINE)
+      release(slab(i).getLong(off(i) + DATA), st - 1);
+
+    for (int j = (i + 1) & mask; state(j) != 0; j = (j + 1) & mask)
+    {
+      int k = home(key(j), mask);
+
+      if (i <= j ? (i < k && k <= j) : (i < k || k <= j))
+        continue;
+
+      ByteBuffer from = slab(j).duplicate();
+      ByteBuffer to = slab(i).duplicate();
+
+      ((Buffer) from).position(off(j)).limit(off(j) + SLOT);
+      ((Buffer) to).position(off(i));
+      to.put(from);
+
+      i = j;
+    }
+
+    slab(i).putInt(off(i) + LEN, 0);
+    size--;
+  }
+
+  // Double the slot table, the overflow chunks stay where they are
+  private void grow()
+  {
+    ByteBuffer[] old = slots;
+    int oldCap = mask + 1;
+    int cap = oldCap * 2;
+
+    if (cap <= 0)
+      throw new IllegalStateException("OffHeapLongMap full at " + size);
+
+    slots = table(cap);
+    mask = cap - 1;
+    threshold = (int) (cap * LOAD);
+
+    int per = Math.min(oldCap, 1 << SLOT_SHIFT);
+
+    for (ByteBuffer bb : old)
+    {
+      for (int o = 0; o != per * SLOT; o += SLOT)
+      {
+        if (bb.getInt(o + LEN) != 0)
+        {
+          int i = home(bb.getLong(o), mask);
+
+          while (state(i) != 0)
+            i = (i + 1) & mask;
+
+          ByteBuffer from = bb.duplicate();
+          ByteBuffer to = slab(i).duplicate();
+
+          ((Buffer) from).position(o).limit(o + SLOT);
+          ((Buffer) to).position(off(i));
+          to.put(from);
+        }
+      }
+    }
+  }
+
+  private static int chunk(int len)
+  {
+    int c = 32 - Integer.numberOfLeadingZeros(len - 1);
+
+    if (c > MAX_CHUNK)
+      throw new IllegalArgumentException("Window of " + len + " bytes too large for OffHeapLongMap");
+
+    return Math.max(MIN_CHUNK, c);
+  }
+
+  private long allocate(int len)
+  {
+    int c = chunk(len);
+    long addr = free[c];
+
+    if (addr != -1L)
+    {
+      ByteBuffer bb = overflow.get((int) (addr >>> OVERFLOW_SHIFT));
+
+      free[c] = bb.getLong((int) addr & ((1 << OVERFLOW_SHIFT) - 1));
+    }
+    else
+    {
+      if (top + (1 << c) > 1 << OVERFLOW_SHIFT)
+      {
+        overflow.add(ByteBuffer.allocateDirect(1 << OVERFLOW_SHIFT));
+        top = 0;
+      }
+
+      addr = ((long) (overflow.size() - 1) << OVERFLOW_SHIFT) | top;
+      top += 1 << c;
+    }
+
+    used += 1 << c;
+
+    return addr;
+  }
+
+  // Push the chunk on its size's free list, the link is kept in the chunk
+  private void release(long addr, int len)
+  {
+    int c = chunk(len);
+
+    overflow.get((int) (addr >>> OVERFLOW_SHIFT)).putLong((int) addr & ((1 << OVERFLOW_SHIFT) - 1), free[c]);
+    free[c] = addr;
+    used -= 1 << c;
+  }
+
+  /**
+   *  Visit every entry, removing those the test accepts. Removing shifts
+   *  later entries back, so an entry from the start of the table may be
+   *  offered twice when a run wraps around the end.
+   *
+   * @return        The number removed
+   */
+  public synchronized int removeIf(LongObjPredicate<byte[]> test)
+  {
+    int cnt = 0;
+
+    for (int i = 0; i <= mask; )
+    {
+      if (state(i) != 0 && test.test(key(i), read(i)))
+      {
+        delete(i);
+        cnt++;
+      }
+      else
+        i++;
+    }
+
+    return cnt;
+  }
+
+  @FunctionalInterface
+  public interface LongObjPredicate<T>
+  {
+    boolean test(long key, T value);
+  }
+
+  /**
+   *  A cursor over a range of slots, splitting the range in half for
+   *  parallel streams. Each window is copied out as it is visited, so it
+   *  stays valid after the walk moves on. Weakly consistent like the heap
+   *  maps' cursors.
+   */
+  Spliterator<VelCursor> cursor()
+  {
+    return new SlotSpliterator(0, mask + 1);
+  }
+
+  private final class SlotSpliterator implements Spliterator<VelCursor>
+  {
+    private final VelCursor cursor = new VelCursor();
+    private int index;
+    private final int fence;
+
+    SlotSpliterator(int index, int fence)
+    {
+      this.index = index;
+      this.fence = fence;
+    }
+
+    public boolean tryAdvance(Consumer<? super VelCursor> action)
+    {
+      long key = 0;
+      byte[] bs = null;
+
+      synchronized (OffHeapLongMap.this)
+      {
+        for (int end = Math.min(fence, mask + 1); bs == null && index < end; index++)
+        {
+          if (state(index) != 0)
+          {
+            key = key(index);
+            bs = read(index);
+          }
+        }
+      }
+
+      if (bs == null)
+        return false;
+
+      action.accept(cursor.set(key, bs));
+
+      return true;
+    }
+
+    public Spliterator<VelCursor> trySplit()
+    {
+      int mid = (index + fence) >>> 1;
+
+      if (mid <= index)
+        return null;
+
+      SlotSpliterator prefix = new SlotSpliterator(index, mid);
+
+      index = mid;
+
+      return prefix;
+    }
+
+    public long estimateSize()
+    {
+      return fence - index;
+    }
+
+    public int characteristics()
+    {
+      return Spliterator.NONNULL;
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package uk.co.inet.veltime;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+
+import org.nustaq.offheap.*;
+import org.nustaq.offheap.bytez.bytesource.BytezByteSource;
+
+/**
+ *  One file of a PersistentVel, holding the keys that hash to it. Each
+ *  segment is locked on its own, so writers to different segments never
+ *  wait on each other. Reads hold the lock as well as writes, as the
+ *  file's index can't be read part way through a change, and compaction
+ *  frees the old file under it, so no read can be left in a file unmapped.
+ */
+class PersistentSegment
+{
+  static final long MIN_SIZE = FSTLongOffheapMap.GB / 16;
+  private static final String COMPACT = ".compact";
+  static final int BATCH = 1000;
+
+  private String fn;
+  private FSTLongOffheapMap<byte[]> tm;
+
+  // The file being compacted into, written alongside tm until swapped in
+  private FSTLongOffheapMap<byte[]> shadow;
+
+  /**
+   *  Open the file, at its own length if a compaction grew it, dropping any
+   *  compaction cut short
+   */
+  PersistentSegment(String fn)
+    throws Exception
+  {
+    this.fn = fn;
+
+    new File(fn + COMPACT).delete();
+
+    tm = new FSTLongOffheapMap<>(fn, Math.max(MIN_SIZE, new File(fn).length()), 0);
+  }
+
+  /**
+   *  Rename the file, which keeps its mapping, the caller holds the lock
+   */
+  void rename(String to)
+    throws IOException
+  {
+    if (! new File(fn).renameTo(new File(to)))
+      throw new IOException("Segment not renamed " + fn + " to " + to);
+
+    fn = to;
+  }
+
+  synchronized byte[] get(long key)
+  {
+    return tm.get(key);
+  }
+
+  /**
+   *  Read the windows of n keys from keys[from] in one hold of the lock,
+   *  null for any gone, so a walk reads a batch at a time
+   */
+  synchronized void get(long[] keys, int from, int n, byte[][] out)
+  {
+    for (int i = 0; i != n; i++)
+      out[i] = tm.get(keys[from + i]);
+  }
+
+  // Writes go to the file being compacted into too, if there is one
+  void put(long key, byte[] bs)
+  {
+    FSTLongOffheapMap<byte[]> sh = shadow;
+
+    tm.put(key, bs);
+
+    if (sh != null)
+      sh.put(key, bs);
+  }
+
+  void remove(long key)
+  {
+    FSTLongOffheapMap<byte[]> sh = shadow;
+
+    tm.remove(key);
+
+    if (sh != null)
+      sh.remove(key);
+  }
+
+  synchronized int size()
+  {
+    return tm.getSize();
+  }
+
+  /**
+   *  Visit every key and encoded window, the caller holds the lock
+   */
+  void forEach(LongObjConsumer<byte[]> action)
+  {
+    FSTLongOffheapMap<byte[]> map = tm;
+
+    for (FSTBinaryOffheapMap.KeyValIter i = map.binaryKeys(); i.hasNext();)
+    {
+      BytezByteSource bbs = (BytezByteSource) i.next();
+
+      action.accept(bbs.getBytes().getLong(bbs.getOff()), map.decodeValue((BytezByteSource) i.getValueBytes()));
+    }
+  }
+
+  @FunctionalInterface
+  interface LongObjConsumer<T>
+  {
+    void accept(long key, T value);
+  }
+
+  /**
+   *  Remove the windows expired by now, in one walk of the file. The keys
+   *  are gathered first, as the walk can't remove as it goes.
+   *
+   * @param  gone     Told of each key removed
+   * @return        The number removed
+   */
+  synchronized int purge(int now, LongConsumer gone)
+  {
+    long[][] keys = { new long[1024] };
+    int[] n = new int[1];
+
+    forEach((key, bs) ->
+    {
+      int dt = Utils.toBase(bs).expiry();
+
+      if (dt > 20000000 && now > dt)
+      {
+        if (n[0] == keys[0].length)
+          keys[0] = Arrays.copyOf(keys[0], n[0] * 2);
+
+        keys[0][n[0]++] = key;
+      }
+    });
+
+    for (int i = 0; i != n[0]; i++)
+    {
+      remove(keys[0][i]);
+      gone.accept(keys[0][i]);
+    }
+
+    return n[0];
+  }
+
+  /**
+   *  List the keys of the file, e.g. for a walk to read a batch at a time
+   */
+  synchronized long[] keys()
+  {
+    return keys(new long[1]);
+  }
+
+  /**
+   *  List the keys of the file, the caller holds the lock
+   *
+   * @param  bytes    Set to the live bytes, keys, windows and headers
+   */
+  long[] keys(long[] bytes)
+  {
+    FSTLongOffheapMap<byte[]> map = tm;
+    long[] keys = new long[map.getSize()];
+    int n = 0;
+
+    bytes[0] = 0;
+
+    for (FSTBinaryOffheapMap.KeyValIter i = map.binaryKeys(); i.hasNext() && n < keys.length;)
+    {
+      BytezByteSource bbs = (BytezByteSource) i.next();
+
+      keys[n++] = bbs.getBytes().getLong(bbs.getOff());
+      bytes[0] += i.getValueBytes().length() + 32;
+    }
+
+    return n == keys.length ? keys : Arrays.copyOf(keys, n);
+  }
+
+  /**
+   *  Rewrite the live windows into a fresh file and swap it in, copying a
+   *  batch at a time under the lock so writes carry on in between
+   *
+   * @param  rate     The most windows copied a second, 0 for no limit
+   * @return        The windows copied
+   */
+  int compact(int rate)
+    throws Exception
+  {
+    long[] keys;
+    long[] live = new long[1];
+
+    synchronized (this)
+    {
+      keys = keys(live);
+
+      long size = Math.max(MIN_SIZE, (2 * live[0] / FSTLongOffheapMap.MB + 1) * FSTLongOffheapMap.MB);
+
+      new File(fn + COMPACT).delete();
+      shadow = new FSTLongOffheapMap<>(fn + COMPACT, size, 0);
+    }
+
+    long start = System.nanoTime();
+    int copied = 0;
+
+    try
+    {
+      for (int b = 0; b < keys.length; b += BATCH)
+      {
+        synchronized (this)
+        {
+          for (int i = b; i != Math.min(keys.length, b + BATCH); i++)
+          {
+            byte[] bs = tm.get(keys[i]);
+
+            // Gone since the keys were listed, or already written by a set
+            if (bs != null && shadow.get(keys[i]) == null)
+            {
+              shadow.put(keys[i], bs);
+              copied++;
+            }
+          }
+        }
+
+        // Keep to the rate by sleeping until the batches so far are due
+        if (rate > 0)
+        {
+          long due = start + (b + BATCH) * 1000000000L / rate;
+          long wait = due - System.nanoTime();
+
+          if (wait > 0)
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+      }
+    }
+    catch (Exception e)
+    {
+      synchronized (this)
+      {
+        shadow.free();
+        shadow = null;
+        new File(fn + COMPACT).delete();
+      }
+
+      throw e;
+    }
+
+    synchronized (this)
+    {
+      FSTLongOffheapMap<byte[]> old = tm;
+
+      tm = shadow;
+      shadow = null;
+
+      // No read can be in the old file, they all hold the lock
+      old.free();
+
+      // The new file keeps its mapping when renamed over the old one
+      if (! new File(fn + COMPACT).renameTo(new File(fn)))
+        Vel.log("Compacted file not renamed " + fn + COMPACT);
+    }
+
+    return copied;
+  }
+
+  /**
+   * @return        true once less than a quarter of the file is free
+   */
+  synchronized boolean full()
+  {
+    FSTLongOffheapMap<byte[]> map = tm;
+
+    return map.getFreeMem() < map.getCapacityMB() * FSTLongOffheapMap.MB / 4;
+  }
+
+  synchronized long capacity()
+  {
+    return tm.getCapacityMB() * FSTLongOffheapMap.MB;
+  }
+
+  synchronized long free()
+  {
+    return tm.getFreeMem();
+  }
+
+  synchronized long used()
+  {
+    return tm.getUsedMem();
+  }
+}
@@ -7,6 +7,8 @@ import java.text.*;
 import java.util.*;
 import java.util.logging.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 import org.nustaq.serialization.*;
 import org.nustaq.serialization.util.FSTInt2IntMap;
@@ -36,8 +38,37 @@ public class PersistentVel extends Vel implements Serializable
  *  not then the counter is increased.
  */
 
+  private static final boolean BLOOM = ! "false".equals(System.getProperty("veltime.bloom"));
+  private static final int CACHE = Integer.getInteger("veltime.cache", 0);
+  private static final int COMPACT_RATE = Integer.getInteger("veltime.compact.rate", 100000);
+  private static final int SEGMENT_KEYS = Integer.getInteger("veltime.segment.keys", 1 << 21);
+  private static final String SPLIT = ".split";
+
   private FSTConfiguration conf = FSTConfiguration.createDefaultConfiguration();
-  private FSTLongOffheapMap<byte[]> tm;
+
+  // Segment files by linear hashing, segment 0 is the store's own file
+  // and segment i is file.i. A segment is split once it passes
+  // segmentKeys, always the next in turn, so the count grows one at a time.
+  private volatile PersistentSegment[] segs;
+  private volatile int segmentKeys = SEGMENT_KEYS;
+  private final AtomicBoolean splitting = new AtomicBoolean();
+  private final AtomicBoolean compacting = new AtomicBoolean();
+
+  // Keys in the files, so most lookups of absent keys skip them. Null
+  // while it is first built, keys removed since it was built still test
+  // present. A rebuild's filter gets the keys set while it is built too.
+  private volatile BlockedBloom bloom;
+  private volatile BlockedBloom next;
+  private final AtomicBoolean building = new AtomicBoolean();
+  private final AtomicLong removed = new AtomicLong();
+
+  // Held by a split and by a filter rebuild's walk, so the walk sees the
+  // segments as a split left them, not a snapshot a split has moved keys
+  // out of
+  private final Object layout = new Object();
+
+  // Decoded windows of hot keys, null when off
+  private volatile WindowCache cache = CACHE > 0 ? new WindowCache(CACHE) : null;
 
   public PersistentVel(String nm)
   {
@@ -58,7 +89,27 @@ public class PersistentVel extends Vel implements Serializable
     {
       new File("veldb").mkdir();
       //tm = new FSTLongOffheapMap<>(saveDir + nm, 2 * FSTLongOffheapMap.GB, limit);
-      tm = new FSTLongOffheapMap<>(saveDir + nm, FSTLongOffheapMap.GB / 16, 0);
+      List<PersistentSegment> open = new ArrayList<>();
+
+      open.add(new PersistentSegment(saveDir + nm));
+
+      // A split cut short is dropped, its keys are still in the segment split
+      while (true)
+      {
+        String fn = saveDir + nm + "." + open.size();
+
+        new File(fn + SPLIT).delete();
+
+        if (! new File(fn).exists())
+          break;
+
+        open.add(new PersistentSegment(fn));
+      }
+
+      segs = open.toArray(new PersistentSegment[open.size()]);
+
+      if (BLOOM)
+        rebuildFilter();
     }
     catch (Exception e)
     {
@@ -66,26 +117,335 @@ public class PersistentVel extends Vel implements Serializable
     }
   }
 
+  private String file(int i)
+  {
+    return i == 0 ? saveDir + nm : saveDir + nm + "." + i;
+  }
+
+  /**
+   * @return        The segment of a key among n, the key's low bits modulo
+   *                the power of 2 below n, or the one above for segments
+   *                already split
+   */
+  static int address(long key, int n)
+  {
+    int level = Integer.highestOneBit(n);
+    int h = (int) (key ^ (key >>> 32));
+    int a = h & (level - 1);
+
+    return a < n - level ? h & (2 * level - 1) : a;
+  }
+
+  private PersistentSegment segment(long key)
+  {
+    PersistentSegment[] ss = segs;
+
+    return ss[address(key, ss.length)];
+  }
+
+  // Run op holding the key's segment lock, looking again if a split moved
+  // the key while waiting for it
+  private <T> T locked(long key, Function<PersistentSegment, T> op)
+  {
+    for (;;)
+    {
+      PersistentSegment s = segment(key);
+
+      synchronized (s)
+      {
+        if (s == segment(key))
+          return op.apply(s);
+      }
+    }
+  }
+
+  /**
+   * @return        The number of segment files
+   */
+  public int segments()
+  {
+    return segs.length;
+  }
+
+  /**
+   *  Split segments once they pass this many keys
+   */
+  public PersistentVel setSegmentKeys(int keys)
+  {
+    segmentKeys = Math.max(1, keys);
+
+    return this;
+  }
+
+  // Split the next segment in turn on a background thread
+  private void splitLater()
+  {
+    if (! splitting.compareAndSet(false, true))
+      return;
+
+    Thread t = new Thread(() ->
+    {
+      try
+      {
+        split();
+      }
+      catch (Exception e)
+      {
+        log("Segment split failed", e);
+      }
+      finally
+      {
+        splitting.set(false);
+      }
+    }, "VelSplit-" + nm);
+
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /*
+   *  Move the keys of the next segment in turn that now hash to a new one.
+   *  The new file is written under a temporary name and renamed once full,
+   *  then published, and only then are the keys removed from the old
+   *  segment, so a lookup that misses in it finds the new segments
+   *  published and looks again. The old segment is locked
+   *  throughout, the others carry on. No filter is rebuilt meanwhile.
+   */
+  void split()
+    throws Exception
+  {
+    synchronized (layout)
+    {
+      split(segs);
+    }
+  }
+
+  private void split(PersistentSegment[] old)
+    throws Exception
+  {
+    int n = old.length;
+    PersistentSegment from = old[n - Integer.highestOneBit(n)];
+    String fn = file(n);
+
+    synchronized (from)
+    {
+      new File(fn + SPLIT).delete();
+
+      PersistentSegment to = new PersistentSegment(fn + SPLIT);
+      long[][] moved = { new long[1024] };
+      int[] m = new int[1];
+
+      from.forEach((key, bs) ->
+      {
+        if (address(key, n + 1) == n)
+        {
+          // Already in the filter, and none is rebuilt during a split
+          to.put(key, bs);
+
+          if (m[0] == moved[0].length)
+            moved[0] = Arrays.copyOf(moved[0], m[0] * 2);
+
+          moved[0][m[0]++] = key;
+        }
+      });
+
+      to.rename(fn);
+
+      PersistentSegment[] now = Arrays.copyOf(old, n + 1);
+
+      now[n] = to;
+      segs = now;
+
+      for (int i = 0; i != m[0]; i++)
+        from.remove(moved[0][i]);
+    }
+  }
+
+  /*
+   *  Build a new filter over the keys in the files on a background thread,
+   *  the old one, if any, serves until it is done. Each segment is walked
+   *  under its lock, and keys set meanwhile go in the new filter as well.
+   *  A split waits for the walk, and the walk for a split, so no key moves
+   *  between segments while it runs.
+   */
+  void rebuildFilter()
+  {
+    if (! building.compareAndSet(false, true))
+      return;
+
+    Thread t = new Thread(() ->
+    {
+      try
+      {
+        synchronized (layout)
+        {
+          PersistentSegment[] ss = segs;
+          long keys = 0;
+
+          for (PersistentSegment s : ss)
+            keys += s.size();
+
+          BlockedBloom b = new BlockedBloom(Math.max(1 << 16, 2 * keys));
+
+          next = b;
+
+          for (PersistentSegment s : ss)
+            synchronized (s)
+            {
+              s.forEach((key, bs) -> b.add(key));
+            }
+
+          bloom = b;
+          next = null;
+          removed.set(0);
+        }
+      }
+      catch (Exception e)
+      {
+        next = null;
+
+        log("Filter rebuild failed", e);
+      }
+      finally
+      {
+        building.set(false);
+      }
+    }, "VelBloom-" + nm);
+
+    t.setDaemon(true);
+    t.start();
+  }
+
+  // Rebuild once the filter is full or a quarter of it is removed keys
+  private void checkFilter(BlockedBloom b)
+  {
+    if (b != null && (b.keys() > b.capacity() || removed.get() > b.keys() / 4 + 1024))
+      rebuildFilter();
+  }
+
+  private void addKey(long key)
+  {
+    BlockedBloom b = bloom;
+    BlockedBloom nb = next;
+
+    if (nb != null)
+      nb.add(key);
+
+    if (b != null && b.add(key))
+      checkFilter(b);
+  }
+
   protected Base get(long key)
   {
-    byte[] bs = tm.get(key);
+    WindowCache c = cache;
+
+    if (c != null)
+    {
+      Base base = c.get(key);
+
+      if (base != null)
+        return base;
+    }
 
-    if (bs == null)
+    BlockedBloom b = bloom;
+
+    if (b != null && ! b.mightContain(key))
       return null;
 
-    return Utils.toBase(bs);
+    if (c != null)
+      return locked(key, s -> decode(s, key, c));
+
+    // A split publishes the new segments before removing the keys it moved
+    // from the old one, so a miss in a segment since split looks again
+    for (;;)
+    {
+      PersistentSegment[] ss = segs;
+      Base base = decode(ss[address(key, ss.length)], key, null);
+
+      if (base != null || ss == segs)
+        return base;
+    }
+  }
+
+  // Decode the key's window and, under the segment lock so a set can't
+  // land in between and leave an old window cached, cache it
+  private Base decode(PersistentSegment s, long key, WindowCache c)
+  {
+    Object ev = VelEvents.decode();
+    byte[] bs = s.get(key);
+    Base base = bs == null ? null : Utils.toBase(bs);
+
+    VelEvents.decode(ev, nm, key, bs, base);
+
+    if (c == null || base == null)
+      return base;
+
+    c.put(key, base, bs.length);
+
+    return Utils.copyOf(base);
+  }
+
+  /**
+   *  Cache up to windows decoded windows of hot keys, or stop with 0
+   */
+  public synchronized PersistentVel setCache(int windows)
+  {
+    cache = windows > 0 ? new WindowCache(windows) : null;
+
+    return this;
+  }
+
+  /**
+   * @return        The share of lookups found in the cache, 0 when off
+   */
+  public double getCacheHitRatio()
+  {
+    WindowCache c = cache;
+
+    return c == null ? 0.0 : c.hitRatio();
+  }
+
+  /**
+   * @return        Estimated heap bytes held by the cache
+   */
+  public long getCacheBytes()
+  {
+    WindowCache c = cache;
+
+    return c == null ? 0 : c.bytes();
+  }
+
+  private void uncache(long key)
+  {
+    WindowCache c = cache;
+
+    if (c != null)
+      c.remove(key);
+  }
+
+  // A key removed from a segment
+  private void gone(long key)
+  {
+    uncache(key);
+    removed.incrementAndGet();
   }
 
   protected Base removeKey(long key)
   {
-    byte[] bs = tm.get(key);
+    byte[] bs = locked(key, s ->
+    {
+      byte[] b = s.get(key);
 
-    if (bs == null)
-      return null;
+      if (b != null)
+      {
+        s.remove(key);
+        gone(key);
+      }
 
-    tm.remove(key);
+      return b;
+    });
 
-    return Utils.toBase(bs);
+    return bs == null ? null : Utils.toBase(bs);
   }
 
   public static void init(String mn)
@@ -112,170 +472,343 @@ public class PersistentVel extends Vel implements Serializable
     return ctx;
   }
 
-  public String show(String key)
+  /**
+   *  A PersistentVel's settings, how far a segment grows before it is split
+   *  and how many decoded windows are cached
+   */
+  public static class Config extends VelConfig
   {
-    return tm.get(vhash(key)).toString();
+    private int segmentKeys = SEGMENT_KEYS;
+    private int cache = CACHE;
+
+    public Config(String name)
+    {
+      super("PersistentVel", name);
+    }
+
+    public Config setSegmentKeys(int segmentKeys)
+    {
+      this.segmentKeys = segmentKeys;
+
+      return this;
+    }
+
+    public int getSegmentKeys()
+    {
+      return segmentKeys;
+    }
+
+    public Config setCache(int cache)
+    {
+      this.cache = cache;
+
+      return this;
+    }
+
+    public int getCache()
+    {
+      return cache;
+    }
   }
 
-  public synchronized Base set(long key, Base item)
+  public static class Factory implements VelFactory<Config>
   {
-    if (item == null)
-      tm.remove(key);
-    else
+    public String type()
     {
-      byte[] bs = Utils.fromBase(item);
+      return "PersistentVel";
+    }
 
-      tm.put(key, bs);
+    public Config config(String name)
+    {
+      return new Config(name);
     }
 
-    return item;
+    public Vel create(Config c)
+    {
+      return new PersistentVel(c.getName()).setSegmentKeys(c.getSegmentKeys()).setCache(c.getCache());
+    }
   }
 
-  /**
-   *  show the database
-   *
-   * @return    The string representation of the className
-   */
-  public String toString()
+  public String show(String key)
   {
-    StringBuilder sb = new StringBuilder("{");
-    boolean first = true;
+    long lkey = keyHash(key);
 
-    for (Iterator i = tm.binaryKeys(); i.hasNext();)
-    {
-      BytezByteSource bbs = (BytezByteSource) i.next();
-      Bytez bz = bbs.getBytes();
-      long key = bz.getLong(bbs.getOff());
+    return locked(lkey, s -> s.get(lkey)).toString();
+  }
 
-      if (! first)
-        sb.append(",");
+  public Base set(long key, Base item)
+  {
+    byte[] bs = item == null ? null : Utils.fromBase(item);
+    int size = locked(key, s ->
+    {
+      if (bs == null)
+      {
+        s.remove(key);
+        gone(key);
+      }
       else
-        first = false;
+      {
+        WindowCache c = cache;
 
-      Base base = Utils.toBase(tm.get(key));
+        s.put(key, bs);
+        addKey(key);
 
-      sb.append(showItem(key, base));
-    }
+        // Write through, the caller is done with the window once it is set
+        if (c != null)
+          c.put(key, item, bs.length);
+      }
 
-    sb.append("}");
+      return s.size();
+    });
 
-    return sb.toString();
+    if (size > segmentKeys)
+      splitLater();
+
+    return item;
   }
 
-  // Copy from one implementation to another
-  public Vel copy(String type, String nm, boolean merge)
+  // Encoded windows are never changed in place so can be shared
+  protected void setRaw(long key, Object win)
   {
-    Vel p = getVel(type, nm);
+    byte[] bs = win instanceof byte[] ? (byte[]) win : Utils.fromBase((Base) win);
 
-    if (p != null)
+    locked(key, s ->
     {
-      for (Iterator i = tm.binaryKeys(); i.hasNext();)
+      s.put(key, bs);
+      addKey(key);
+      uncache(key);
+
+      return null;
+    });
+  }
+
+  /*
+   *  A segment's keys are listed, then their windows read a batch at a time,
+   *  each batch in one hold of the segment's lock, as its index can't be
+   *  read while it changes or walked across calls. The cursor splits by
+   *  segment.
+   */
+  public Spliterator<VelCursor> cursor()
+  {
+    return new SegmentSpliterator(segs, 0, segs.length);
+  }
+
+  private static final class SegmentSpliterator implements Spliterator<VelCursor>
+  {
+    private final PersistentSegment[] ss;
+    private final VelCursor cursor = new VelCursor();
+    private int index;
+    private final int fence;
+    private PersistentSegment seg;
+    private long[] keys;
+    private final byte[][] bs = new byte[PersistentSegment.BATCH][];
+    private int from;       // keys[from] is bs[0]
+    private int at;
+    private int n;
+
+    SegmentSpliterator(PersistentSegment[] ss, int index, int fence)
+    {
+      this.ss = ss;
+      this.index = index;
+      this.fence = fence;
+    }
+
+    public boolean tryAdvance(Consumer<? super VelCursor> action)
+    {
+      for (;;)
       {
-        BytezByteSource bbs = (BytezByteSource) i.next();
-        Bytez bz = bbs.getBytes();
-        long key = bz.getLong(bbs.getOff());
-        Base base = Utils.toBase(tm.get(key));
+        // Keys removed since they were listed are skipped
+        while (at != n)
+        {
+          byte[] b = bs[at++];
+
+          if (b != null)
+          {
+            action.accept(cursor.set(keys[from + at - 1], b));
+
+            return true;
+          }
+        }
 
-        if (merge)
-          p.merge(key, base, max);
+        if (keys != null && from + n < keys.length)
+        {
+          from += n;
+          n = Math.min(bs.length, keys.length - from);
+          at = 0;
+
+          seg.get(keys, from, n, bs);
+        }
+        else if (index < fence)
+        {
+          seg = ss[index++];
+          keys = seg.keys();
+          from = at = n = 0;
+        }
         else
-          p.set(key, base);
+        {
+          Arrays.fill(bs, null);
+
+          return false;
+        }
       }
     }
 
-    return p;
-  }
+    public Spliterator<VelCursor> trySplit()
+    {
+      int mid = (index + fence) >>> 1;
 
-  // count records and display every Nth record
-  public int count(int n)
-  {
-    int cnt = 0;
+      if (keys != null || mid <= index)
+        return null;
+
+      SegmentSpliterator prefix = new SegmentSpliterator(ss, index, mid);
 
-    for (Iterator i = tm.binaryKeys(); i.hasNext();)
+      index = mid;
+
+      return prefix;
+    }
+
+    public long estimateSize()
     {
-      BytezByteSource bbs = (BytezByteSource) i.next();
+      long n = 0;
 
-      if ((cnt % n) == 0)
-      {
-        Bytez bz = bbs.getBytes();
-        long key = bz.getLong(bbs.getOff());
-        Base base = Utils.toBase(tm.get(key));
-        String item = showItem(key, base);
+      for (int i = index; i < fence; i++)
+        n += ss[i].size();
 
-        System.out.println(cnt + " : " + item);
-      }
+      return n;
+    }
 
-      cnt++;
+    public int characteristics()
+    {
+      return Spliterator.NONNULL | Spliterator.DISTINCT;
     }
+  }
+
+  /*
+   *  Each segment purges in one walk under its own lock, all of them at
+   *  once on the common fork join pool, so sets to a segment only wait
+   *  for that segment's purge.
+   */
+  protected int purgeDb(int now)
+  {
+    PersistentSegment[] ss = segs;
+    int cnt = Arrays.stream(ss).parallel().mapToInt(s -> s.purge(now, this::gone)).sum();
+
+    checkFilter(bloom);
+
+    // Under a quarter free, from growth or from the holes purging leaves
+    for (PersistentSegment s : ss)
+      if (s.full())
+      {
+        compact(COMPACT_RATE);
+        break;
+      }
 
     return cnt;
   }
 
-  protected synchronized int purgeDb(int now)
+  /**
+   *  Rewrite the live windows of each segment into a fresh file on a
+   *  background thread, then swap it in, so the space of windows that
+   *  grew, shrank or were purged is reclaimed. Each new file is sized for
+   *  twice its live data, so a segment that is filling up grows.
+   *
+   *  Reads and writes carry on meanwhile, writes going to both files. A
+   *  segment's keys are listed under its lock, then copied a batch at a
+   *  time, each batch holding the lock only while it copies.
+   *
+   * @param  rate     The most windows copied a second, 0 for no limit
+   * @return        The windows copied, once the new files are in use, or
+   *                null if a compaction is already running
+   */
+  public CompletableFuture<Integer> compact(int rate)
   {
-    int its = 0;
-    int cnt = 0;
-    int n = 0;
-    long[] keys = new long[100000];
-    boolean first = true;
+    if (! compacting.compareAndSet(false, true))
+      return null;
 
-    while (its == 0 || n > 0)
+    CompletableFuture<Integer> done = new CompletableFuture<>();
+    Thread t = new Thread(() ->
     {
-      if (n == keys.length)
+      try
       {
-//System.err.println("--- " + n);
-        for (int i = 0; i != n; i++)
-          tm.remove(keys[i]);
+        int copied = 0;
 
-        n = 0;
-      }
+        for (PersistentSegment s : segs)
+          copied += s.compact(rate);
 
-      int tot = 0;
-      int sofar = its * keys.length;
+        done.complete(copied);
+      }
+      catch (Throwable e)
+      {
+        log("Compaction failed " + e);
 
-      for (Iterator i = tm.binaryKeys(); n < keys.length && i.hasNext();)
+        done.completeExceptionally(e);
+      }
+      finally
       {
-        BytezByteSource bbs = (BytezByteSource) i.next();
+        compacting.set(false);
+      }
+    }, "VelCompact-" + nm);
 
-        // Skip forward
-        if (sofar > tot++)
-          continue;
+    t.setDaemon(true);
+    t.start();
 
-        Bytez bz = bbs.getBytes();
-        long key = bz.getLong(bbs.getOff());
-        Base val = Utils.toBase(tm.get(key));
-        int dt = 0;
+    return done;
+  }
 
-        if (val instanceof Item)
-          dt = ((Item) val).ts;
-        else if (((Items) val).items[0] != null)
-          dt = ((Items) val).items[0].ts;
+  public int recCount()
+  {
+    int n = 0;
 
-        if (dt > 20000000 && now > dt)
-        {
-          //i.remove(); // NOT IMPLEMENTED
+    for (PersistentSegment s : segs)
+      n += s.size();
 
-          keys[n++] = key;
-          cnt++;
-        }
-      }
+    return n;
+  }
 
-      its++;
-    }
+  /**
+   * @return        Capacity, free and used MB over the segments, the key
+   *                filter's estimated false positive rate and KB, -1 while
+   *                it is first built, then the window cache's hit ratio
+   *                and KB
+   */
+  public String stats()
+  {
+    BlockedBloom b = bloom;
+    long cap = 0;
+    long free = 0;
+    long used = 0;
 
-    for (int i = 0; i != n; i++)
-      tm.remove(keys[i]);
+    for (PersistentSegment s : segs)
+    {
+      cap += s.capacity();
+      free += s.free();
+      used += s.used();
+    }
 
-    return cnt;
+    return (cap / FSTLongOffheapMap.MB) + "|" + (free / 1024 / 1024) + "|" + (used / 1024 / 1024) +
+           "|" + (b == null ? -1.0 : b.fpp()) + "|" + (b == null ? -1 : b.bytes() / 1024) +
+           "|" + getCacheHitRatio() + "|" + getCacheBytes() / 1024;
   }
 
-  public int recCount()
+  /**
+   *  Wait for the key filter to be built, e.g. before timing lookups
+   *
+   * @return        true if there is a filter
+   */
+  boolean awaitFilter()
   {
-    return tm.getSize();
+    while (building.get())
+      Thread.yield();
+
+    return bloom != null;
   }
 
-  public String stats()
+  /**
+   *  Wait for any split to finish
+   */
+  void awaitSplit()
   {
-    return tm.getCapacityMB() + "|" + (tm.getFreeMem() / 1024 / 1024) + "|" + (tm.getUsedMem() / 1024 / 1024) ;
+    while (splitting.get())
+      Thread.yield();
   }
 }
@@ -0,0 +1,251 @@
+package uk.co.inet.veltime;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A per key quantile sketch of amounts. Amounts go in log linear buckets,
+ *  4 per power of 2 so within about 19%, and only the buckets in use are
+ *  kept, each an int of bucket and count, so a key never holds more than
+ *  128 buckets a generation.
+ *
+ *  There are two generations, the current one started at start and the
+ *  one before, and each span minutes the current becomes the previous, so
+ *  quantiles cover between one and two spans of history.
+ */
+class Sketch extends Base implements Comparable, Serializable
+{
+  private static final int SUB = 2;
+  static final int BUCKETS = 32 << SUB;
+  private static final int COUNT = (1 << 24) - 1;
+
+  public int start;
+  public int span;
+  public int[] cur;     // bucket << 24 | count, by bucket
+  public int curN;
+  public int[] prev;
+  public int prevN;
+
+  public Sketch(int start, int span, int[] cur, int curN, int[] prev, int prevN)
+  {
+    this.start = start;
+    this.span = Math.max(1, span);
+    this.cur = cur;
+    this.curN = curN;
+    this.prev = prev;
+    this.prevN = prevN;
+  }
+
+  static Sketch of(int now, int span)
+  {
+    return new Sketch(now, span, new int[4], 0, new int[0], 0);
+  }
+
+  /**
+   * @return        The bucket of a fixed point amount
+   */
+  static int bucket(long v)
+  {
+    if (v < (1 << SUB))
+      return v < 0 ? 0 : (int) v;
+
+    int exp = 63 - Long.numberOfLeadingZeros(v);
+
+    if (exp > 31)
+      return BUCKETS - 1;
+
+    return ((exp - SUB + 1) << SUB) | (int) ((v >>> (exp - SUB)) & ((1 << SUB) - 1));
+  }
+
+  /**
+   * @return        The lowest fixed point amount in a bucket
+   */
+  static long low(int b)
+  {
+    if (b < (1 << SUB))
+      return b;
+
+    int shift = (b >>> SUB) - 1;
+
+    return (long) ((1 << SUB) | (b & ((1 << SUB) - 1))) << shift;
+  }
+
+  // Move on a generation for each span passed since start
+  void rotate(int now)
+  {
+    if (now < start + span)
+      return;
+
+    if (now < start + 2 * span)
+    {
+      int[] t = prev;
+
+      prev = cur;
+      prevN = curN;
+      cur = t;
+      start += span;
+    }
+    else
+    {
+      prevN = 0;
+      start = now;
+    }
+
+    curN = 0;
+  }
+
+  long total()
+  {
+    long n = 0;
+
+    for (int i = 0; i != curN; i++)
+      n += cur[i] & COUNT;
+
+    for (int i = 0; i != prevN; i++)
+      n += prev[i] & COUNT;
+
+    return n;
+  }
+
+  /**
+   *  Count an amount's bucket, in place unless the bucket is new and there
+   *  is no room for it
+   */
+  void add(int b)
+  {
+    int lo = 0;
+    int hi = curN;
+
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+
+      if ((cur[mid] >>> 24) < b)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    if (lo < curN && (cur[lo] >>> 24) == b)
+    {
+      if ((cur[lo] & COUNT) != COUNT)
+        cur[lo]++;
+
+      return;
+    }
+
+    if (curN == cur.length)
+      cur = Arrays.copyOf(cur, Math.min(BUCKETS, Math.max(4, curN * 2)));
+
+    System.arraycopy(cur, lo, cur, lo + 1, curN - lo);
+    cur[lo] = (b << 24) | 1;
+    curN++;
+  }
+
+  /**
+   * @param  pct      The percentile, 0 to 100
+   * @return        The bucket holding that percentile, -1 if empty
+   */
+  int bucketAt(double pct)
+  {
+    long total = total();
+
+    if (total == 0)
+      return -1;
+
+    long rank = Math.max(1, (long) Math.ceil(pct / 100.0 * total));
+    long seen = 0;
+    int i = 0;
+    int j = 0;
+
+    // Both generations are by bucket so walk them together
+    while (i < curN || j < prevN)
+    {
+      int bc = i < curN ? cur[i] >>> 24 : Integer.MAX_VALUE;
+      int bp = j < prevN ? prev[j] >>> 24 : Integer.MAX_VALUE;
+      int b = Math.min(bc, bp);
+
+      if (bc == b)
+        seen += cur[i++] & COUNT;
+      if (bp == b)
+        seen += prev[j++] & COUNT;
+
+      if (seen >= rank)
+        return b;
+    }
+
+    return BUCKETS - 1;
+  }
+
+  int expiry()
+  {
+    return start + 2 * span;
+  }
+
+  // The larger count of each bucket, idempotent, exact for a key counted on one node
+  Base join(Base other)
+  {
+    if (! (other instanceof Sketch))
+      return this;
+
+    Sketch o = (Sketch) other;
+
+    if (o.start != start || o.span != span)
+      return o.start > start ? o : this;
+
+    return new Sketch(start, span, max(cur, curN, o.cur, o.curN), -1, max(prev, prevN, o.prev, o.prevN), -1).trim();
+  }
+
+  private static int[] max(int[] a, int an, int[] b, int bn)
+  {
+    int[] m = new int[an + bn];
+    int i = 0;
+    int j = 0;
+    int n = 0;
+
+    while (i < an || j < bn)
+    {
+      int ba = i < an ? a[i] >>> 24 : Integer.MAX_VALUE;
+      int bb = j < bn ? b[j] >>> 24 : Integer.MAX_VALUE;
+
+      if (ba == bb)
+        m[n++] = (ba << 24) | Math.max(a[i++] & COUNT, b[j++] & COUNT);
+      else if (ba < bb)
+        m[n++] = a[i++];
+      else
+        m[n++] = b[j++];
+    }
+
+    return Arrays.copyOf(m, n);
+  }
+
+  private Sketch trim()
+  {
+    curN = cur.length;
+    prevN = prev.length;
+
+    return this;
+  }
+
+  public String toString()
+  {
+    return "sketch|" + start + "|" + span + "|" + curN + "|" + prevN;
+  }
+
+  public int compareTo(Object o)
+  {
+    if (o instanceof Sketch)
+    {
+      Sketch s = (Sketch) o;
+
+      if (start == s.start && span == s.span &&
+          Arrays.equals(Arrays.copyOf(cur, curN), Arrays.copyOf(s.cur, s.curN)) &&
+          Arrays.equals(Arrays.copyOf(prev, prevN), Arrays.copyOf(s.prev, s.prevN)))
+        return 0;
+
+      return 1;
+    }
+    else
+      return -1;
+  }
+}
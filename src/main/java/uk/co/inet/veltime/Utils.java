@@ -5,11 +5,50 @@ import java.util.*;
 
 public class Utils
 {
+  // Tagged encodings start with a negative int, plain windows never do
+  static final int NODES = -1;
+  static final int BUCKET = -2;
+  static final int DECAY = -3;
+  static final int SKETCH = -4;
+  static final int DUR = -5;      // a window with its own duration, then the window
+  static final int METRICS = -6;
+
+  // Bytes before the window proper, the duration tag and duration if any
+  static int header(byte[] bs)
+  {
+    return bs.length >= 8 && byteToInt(bs, 0) == DUR ? 8 : 0;
+  }
+
+  // Plain or node tagged windows of Items, other records are kept whole
+  static boolean isWindow(Base base)
+  {
+    return base instanceof Item || base instanceof Items;
+  }
+
+  /**
+   * @return        The window's own duration, 0 for the store's or if not
+   *                a window
+   */
+  static int dur(Base base)
+  {
+    return base instanceof Item ? ((Item) base).dur : base instanceof Items ? ((Items) base).dur : 0;
+  }
+
+  static void setDur(Base base, int dur)
+  {
+    if (base instanceof Item)
+      ((Item) base).dur = dur;
+    else if (base instanceof Items)
+      ((Items) base).dur = dur;
+  }
+
   public final static Base toBase(byte[] bs)
   {
     Base base = null;
 
-    if (bs.length == 4)
+    if (bs.length >= 4 && byteToInt(bs, 0) < 0)
+      base = toTagged(bs);
+    else if (bs.length == 4)
     {
       int ts = byteToInt(bs, 0);
     
@@ -40,11 +79,216 @@ public class Utils
     return base;
   }
 
+  private static Base toTagged(byte[] bs)
+  {
+    switch (byteToInt(bs, 0))
+    {
+      case NODES :
+      {
+        Item[] items = new Item[(bs.length - 4) / 12];
+
+        for (int i = 4; i != bs.length; i += 12)
+          items[(i - 4) / 12] = new Item(byteToInt(bs, i), byteToInt(bs, i + 4), byteToInt(bs, i + 8));
+
+        return items.length == 1 ? items[0] : new Items(items);
+      }
+      case BUCKET :
+        return new Bucket(byteToInt(bs, 4), byteToInt(bs, 8), Bytes.getLong(bs, 12));
+      case DECAY :
+      {
+        int h = byteToInt(bs, 4);
+        int n = byteToInt(bs, 8);
+        int[] halfLives = new int[h];
+        int[] nodes = new int[n];
+        long[] lasts = new long[n];
+        double[] vals = new double[n * h];
+        int off = 12;
+
+        for (int i = 0; i != h; i++, off += 4)
+          halfLives[i] = byteToInt(bs, off);
+
+        for (int r = 0; r != n; r++)
+        {
+          nodes[r] = byteToInt(bs, off);
+          lasts[r] = Bytes.getLong(bs, off + 4);
+          off += 12;
+
+          for (int i = 0; i != h; i++, off += 8)
+            vals[r * h + i] = Double.longBitsToDouble(Bytes.getLong(bs, off));
+        }
+
+        return new Decay(halfLives, nodes, lasts, vals);
+      }
+      case METRICS :
+      {
+        int n = byteToInt(bs, 8);
+        int[] ts = new int[n];
+        int[] count = new int[n];
+        int[] amount = new int[n];
+        int[] hash = new int[n];
+        int[] node = new int[n];
+
+        for (int i = 0, off = 12; i != n; i++, off += 20)
+        {
+          ts[i] = byteToInt(bs, off);
+          count[i] = byteToInt(bs, off + 4);
+          amount[i] = byteToInt(bs, off + 8);
+          hash[i] = byteToInt(bs, off + 12);
+          node[i] = byteToInt(bs, off + 16);
+        }
+
+        return new Metrics(byteToInt(bs, 4), n, ts, count, amount, hash, node);
+      }
+      case DUR :
+      {
+        Base base = toBase(Arrays.copyOfRange(bs, 8, bs.length));
+
+        setDur(base, byteToInt(bs, 4));
+
+        return base;
+      }
+      case SKETCH :
+      {
+        int curN = byteToInt(bs, 12);
+        int prevN = byteToInt(bs, 16);
+        int[] cur = new int[curN];
+        int[] prev = new int[prevN];
+
+        for (int i = 0; i != curN; i++)
+          cur[i] = byteToInt(bs, 20 + 4 * i);
+
+        for (int i = 0; i != prevN; i++)
+          prev[i] = byteToInt(bs, 20 + 4 * (curN + i));
+
+        return new Sketch(byteToInt(bs, 4), byteToInt(bs, 8), cur, curN, prev, prevN);
+      }
+      default :
+        return null;
+    }
+  }
+
+  // Items counted on other nodes need their node kept too
+  private static boolean hasNodes(Base item)
+  {
+    if (item instanceof Item)
+      return ((Item) item).node != 0;
+    else if (! (item instanceof Items))
+      return false;
+
+    for (Item i : ((Items) item).items)
+      if (i != null && i.node != 0)
+        return true;
+
+    return false;
+  }
+
+  private static byte[] fromNodes(Base item)
+  {
+    Item[] items = item instanceof Item ? new Item[] { (Item) item } : ((Items) item).items;
+    byte[] bs = new byte[4 + 12 * items.length];
+
+    intToByte(bs, NODES, 0);
+
+    for (int i = 0; i != items.length; i++)
+    {
+      intToByte(bs, items[i].ts, 4 + i * 12);
+      intToByte(bs, items[i].item, 8 + i * 12);
+      intToByte(bs, items[i].node, 12 + i * 12);
+    }
+
+    return bs;
+  }
+
+  private static byte[] fromDecay(Decay d)
+  {
+    int h = d.halfLives.length;
+    int n = d.nodes.length;
+    byte[] bs = new byte[12 + 4 * h + n * (12 + 8 * h)];
+    int off = 12;
+
+    intToByte(bs, DECAY, 0);
+    intToByte(bs, h, 4);
+    intToByte(bs, n, 8);
+
+    for (int i = 0; i != h; i++, off += 4)
+      intToByte(bs, d.halfLives[i], off);
+
+    for (int r = 0; r != n; r++)
+    {
+      intToByte(bs, d.nodes[r], off);
+      longToByte(bs, d.lasts[r], off + 4);
+      off += 12;
+
+      for (int i = 0; i != h; i++, off += 8)
+        longToByte(bs, Double.doubleToRawLongBits(d.vals[r * h + i]), off);
+    }
+
+    return bs;
+  }
+
+  private static byte[] fromSketch(Sketch s)
+  {
+    byte[] bs = new byte[20 + 4 * (s.curN + s.prevN)];
+
+    intToByte(bs, SKETCH, 0);
+    intToByte(bs, s.start, 4);
+    intToByte(bs, s.span, 8);
+    intToByte(bs, s.curN, 12);
+    intToByte(bs, s.prevN, 16);
+
+    for (int i = 0; i != s.curN; i++)
+      intToByte(bs, s.cur[i], 20 + 4 * i);
+
+    for (int i = 0; i != s.prevN; i++)
+      intToByte(bs, s.prev[i], 20 + 4 * (s.curN + i));
+
+    return bs;
+  }
+
+  private static byte[] fromMetrics(Metrics m)
+  {
+    byte[] bs = new byte[12 + 20 * m.n];
+
+    intToByte(bs, METRICS, 0);
+    intToByte(bs, m.dur, 4);
+    intToByte(bs, m.n, 8);
+
+    for (int i = 0, off = 12; i != m.n; i++, off += 20)
+    {
+      intToByte(bs, m.ts[i], off);
+      intToByte(bs, m.count[i], off + 4);
+      intToByte(bs, m.amount[i], off + 8);
+      intToByte(bs, m.hash[i], off + 12);
+      intToByte(bs, m.node[i], off + 16);
+    }
+
+    return bs;
+  }
+
   public final static byte[] fromBase(Base item)
   {
     byte[] bs = null;
 
-    if (item instanceof Item)
+    if (item instanceof Bucket)
+    {
+      Bucket b = (Bucket) item;
+
+      bs = new byte[20];
+
+      intToByte(bs, BUCKET, 0);
+      intToByte(bs, b.tokens, 4);
+      intToByte(bs, b.ts, 8);
+      longToByte(bs, b.last, 12);
+    }
+    else if (item instanceof Decay)
+      bs = fromDecay((Decay) item);
+    else if (item instanceof Sketch)
+      bs = fromSketch((Sketch) item);
+    else if (item instanceof Metrics)
+      bs = fromMetrics((Metrics) item);
+    else if (item != null && hasNodes(item))
+      bs = fromNodes(item);
+    else if (item instanceof Item)
     {
       bs = new byte[8];
 
@@ -68,22 +312,83 @@ public class Utils
       }
     }
 
+    int dur = dur(item);
+
+    if (dur != 0 && bs != null)
+    {
+      byte[] w = bs;
+
+      bs = new byte[w.length + 8];
+
+      intToByte(bs, DUR, 0);
+      intToByte(bs, dur, 4);
+      System.arraycopy(w, 0, bs, 8, w.length);
+    }
+
     return bs;
   }
 
+  public final static Base copyOf(Base base)
+  {
+    if (base instanceof Item)
+    {
+      Item i = (Item) base;
+      Item copy = new Item(i.ts, i.item, i.node);
+
+      copy.dur = i.dur;
+
+      return copy;
+    }
+    else if (base instanceof Items)
+    {
+      Item[] items = ((Items) base).items;
+      Item[] copy = new Item[items.length];
+
+      for (int j = 0; j != items.length; j++)
+        copy[j] = items[j] == null ? null : new Item(items[j].ts, items[j].item, items[j].node);
+
+      Items c = new Items(copy);
+
+      c.dur = ((Items) base).dur;
+
+      return c;
+    }
+    else if (base instanceof Decay)
+    {
+      Decay d = (Decay) base;
+
+      return new Decay(d.halfLives.clone(), d.nodes.clone(), d.lasts.clone(), d.vals.clone());
+    }
+    else if (base instanceof Bucket)
+    {
+      Bucket b = (Bucket) base;
+
+      return new Bucket(b.tokens, b.ts, b.last);
+    }
+    else if (base instanceof Sketch)
+    {
+      Sketch s = (Sketch) base;
+
+      return new Sketch(s.start, s.span, s.cur.clone(), s.curN, s.prev.clone(), s.prevN);
+    }
+    else if (base instanceof Metrics)
+    {
+      Metrics m = (Metrics) base;
+
+      return new Metrics(m.dur, m.n, m.ts.clone(), m.count.clone(), m.amount.clone(), m.hash.clone(), m.node.clone());
+    }
+
+    return base;
+  }
+
   public static int intToByte(byte[] arrayDst, int org, int offset)
   {
     if (arrayDst == null || arrayDst.length < offset + 4)
       return 0;
 
-    int idxDst = offset;
-
-    arrayDst[idxDst++] = (byte)(org);
-    arrayDst[idxDst++] = (byte)(org >>> 8);
-    arrayDst[idxDst++] = (byte)(org >>> 16);
-    arrayDst[idxDst++] = (byte)(org >>> 24);
+    Bytes.putInt(arrayDst, offset, org);
 
-    return idxDst;
+    return offset + 4;
   }
 
   public static int longToByte(byte[] arrayDst, long org, int offset)
@@ -135,20 +440,7 @@ public class Utils
     if (arrayOrg == null || arrayOrg.length < offset + 4)
       return 0;
 
-    int idxOrg = offset;
-    int v;
-    int dst = 0;
-
-    v = 0x000000FF & arrayOrg[idxOrg++];
-    dst = dst | v;
-    v = 0x000000FF & arrayOrg[idxOrg++];
-    dst = dst| (v << 8);
-    v = 0x000000FF & arrayOrg[idxOrg++];
-    dst = dst | (v << 16);
-    v = 0x000000FF & arrayOrg[idxOrg++];
-    dst = dst | (v << 24);
-
-    return dst;
+    return Bytes.getInt(arrayOrg, offset);
   }
 
   public static long byteToLong(byte[] arrayOrg, int offset)
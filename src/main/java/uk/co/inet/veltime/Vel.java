@@ -7,10 +7,15 @@ import java.util.*;
 import java.util.logging.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
 import java.net.ConnectException;
-import java.lang.reflect.Constructor;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 
 import static java.lang.Integer.rotateLeft;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.util.stream.Collectors.joining;
 
 public abstract class Vel
@@ -20,7 +25,14 @@ public abstract class Vel
   protected static final double VAL_HITS = 0.0;
   protected static final int VEL_DURATION = 60;  // Minutes
   protected static final int MAX = 10;
+  protected static final int OUTLIER_MIN = 10;     // Amounts seen before any is an outlier
   protected static final String DIR = "veldb";
+  protected static final boolean STATS = ! "false".equals(System.getProperty("veltime.stats"));
+  protected static final boolean OFFHEAP = "true".equals(System.getProperty("veltime.offheap"));
+  protected static final String HASH = System.getProperty("veltime.hash", "xxh64");
+  protected static final int AUDIT = Integer.getInteger("veltime.hash.audit", 0);
+  protected static final int TOPK = Integer.getInteger("veltime.topk", 0);  // Off unless asked for, see setTopK
+  protected static final int PURGE_CALLS = 100000;  // Calls between checks for a purge
   protected static Logger logger;
 
   // Variables to be saved for persistent version
@@ -28,6 +40,8 @@ public abstract class Vel
   protected double valMax = VAL_HITS;
   protected int velDur = VEL_DURATION;
   protected int max = MAX;
+  protected int node = 0;
+  protected String hash = HASH;
   protected String dir = DIR;
   protected String saveDir = dir + File.separator;
 
@@ -38,14 +52,79 @@ public abstract class Vel
   private final AtomicInteger purgerCalls = new AtomicInteger();
   private final AtomicInteger purger = new AtomicInteger();
 
+  // Operation stats, null when switched off
+  protected VelStats stats = STATS ? new VelStats() : null;
+
+  // Sampled keys to count hash collisions, null when switched off
+  protected volatile KeyAudit audit = AUDIT > 0 ? new KeyAudit(AUDIT) : null;
+
+  // The hottest keys as they are set, null when switched off, as it is by
+  // default since tracking takes a lock and the time on every set
+  protected volatile HeavyHitters hot = TOPK > 0 ? new HeavyHitters(TOPK) : null;
+
   protected final static Map<String,Vel> maps = new ConcurrentHashMap<>(1000);
 
+  // Store factories by type, see VelFactory
+  private final static Map<String,VelFactory<?>> factories = new ConcurrentHashMap<>();
+
+  static
+  {
+    for (Iterator<?> it = ServiceLoader.load(VelFactory.class, Vel.class.getClassLoader()).iterator(); ; )
+    {
+      try
+      {
+        if (! it.hasNext())
+          break;
+
+        VelFactory<?> f = (VelFactory<?>) it.next();
+
+        factories.putIfAbsent(f.type(), f);
+      }
+      catch (ServiceConfigurationError sce)
+      {
+        // A broken jar doesn't stop the rest
+        log("Store factory not loaded : " + sce);
+      }
+    }
+  }
+
   protected String type;
   protected String nm = "map";
 
   // Property saving stuff
   private String mn;
   private String fn;
+  private final AtomicBoolean propPending = new AtomicBoolean();
+  private volatile Properties savedProp;
+  private final Object propLock = new Object();
+
+  // Settings are written on one shared thread, see saveProp
+  private static final ExecutorService PROPS = Executors.newSingleThreadExecutor(r ->
+  {
+    Thread t = new Thread(r, "VelProps");
+
+    t.setDaemon(true);
+
+    return t;
+  });
+
+  // The thread is a daemon, so settings still queued at exit are written here
+  static
+  {
+    Runtime.getRuntime().addShutdownHook(new Thread(() ->
+    {
+      PROPS.shutdown();
+
+      try
+      {
+        PROPS.awaitTermination(10, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException ie)
+      {
+        // Exiting anyway
+      }
+    }, "VelPropsFlush"));
+  }
 
   protected boolean saveParas = false;
 
@@ -77,7 +156,24 @@ public abstract class Vel
     return i;
   }
 
+  /**
+   *  The key for a data item, a 64 bit XXH64 of its chars, read as UTF-16LE,
+   *  in one pass with nothing allocated
+   *
+   * @param  s        The data item
+   * @return        The key, 0 for null or empty
+   */
   public static final long vhash(String s)
+  {
+    if (s == null || s.length() == 0)
+      return 0L;
+
+    return hash64(s, 0L);
+  }
+
+  // The key as first built, two 32 bit hashes of the default encoding, kept
+  // for stores written with it
+  public static final long vhash32(String s)
   {
     if (s == null || s.length() == 0)
       return 0L;
@@ -101,30 +197,193 @@ public abstract class Vel
     return ind;
   }
 
-  protected void saveProp()
+  /**
+   *  The key for a data item in this store, using the store's hash and
+   *  sampling it for the collision audit when that is on
+   */
+  public final long keyHash(String s)
   {
-    Properties prp = new Properties();
+    long h = "legacy".equals(hash) ? vhash32(s) : vhash(s);
+    KeyAudit ka = audit;
 
-    prp.put("hitMax", Integer.toString(hitMax));
-    prp.put("valMax", Double.toString(valMax));
-    prp.put("velDur", Integer.toString(velDur));
-    prp.put("max", Integer.toString(max));
+    if (ka != null && h != 0L)
+      ka.sample(h, s);
+
+    return h;
+  }
+
+  public String getHash()
+  {
+    return hash;
+  }
 
-    try (Writer w = new FileWriter(fn + ".prp"))
+  /**
+   * @return        The collision audit, null when off
+   */
+  public KeyAudit getKeyAudit()
+  {
+    return audit;
+  }
+
+  /**
+   *  Start auditing key hashes for collisions, sampling about one in rate
+   *  keys, or stop with 0
+   */
+  public Vel setKeyAudit(int rate)
+  {
+    audit = rate > 0 ? new KeyAudit(rate) : null;
+
+    return this;
+  }
+
+  /**
+   * @return        The hottest keys tracker, null when off
+   */
+  public HeavyHitters getHeavyHitters()
+  {
+    return hot;
+  }
+
+  /**
+   *  Track the k hottest keys over the last one to two periods, or stop
+   *  with 0. Off by default, or set veltime.topk for every store.
+   *
+   * @param  k        The keys to track
+   * @param  period   The period in milliseconds
+   */
+  public Vel setTopK(int k, long period)
+  {
+    hot = k > 0 ? new HeavyHitters(k, period) : null;
+
+    return this;
+  }
+
+  /**
+   * @return        Up to k of the keys set most lately, most hits first,
+   *                empty when tracking is off
+   */
+  public List<HeavyHitters.Hit> topK(int k)
+  {
+    HeavyHitters hh = hot;
+
+    return hh == null ? Collections.emptyList() : hh.top(k);
+  }
+
+  /**
+   * @return        Up to k of the keys with most value added lately, most
+   *                first, counts are fixed point
+   */
+  public List<HeavyHitters.Hit> topValues(int k)
+  {
+    HeavyHitters hh = hot;
+
+    return hh == null ? Collections.emptyList() : hh.topValues(k);
+  }
+
+  /*
+   *  Save the settings off the caller's thread. Changes made before the
+   *  write starts go in one write of the latest, and nothing is written if
+   *  the settings are as last saved.
+   */
+  protected void saveProp()
+  {
+    if (propPending.compareAndSet(false, true))
+    {
+      try
+      {
+        PROPS.execute(() ->
+        {
+          propPending.set(false);
+          writeProp();
+        });
+      }
+      catch (RejectedExecutionException ree)
+      {
+        // Shutting down, so write it here
+        propPending.set(false);
+        writeProp();
+      }
+    }
+  }
+
+  /**
+   *  Wait for any settings being saved to be written
+   */
+  public void flushProp()
+  {
+    try
     {
-      prp.store(w, mn);
+      PROPS.submit(() -> { }).get();
     }
-    catch (IOException ioe)
+    catch (RejectedExecutionException ree)
     {
-      // Ignore
+      // Shutting down, the exit hook waits for the writes
+    }
+    catch (Exception e)
+    {
+      log("Settings not flushed", e);
+    }
+  }
+
+  /*
+   *  Write the settings to a new file and move it over the old, so a crash
+   *  part way leaves the old settings and not an empty file
+   */
+  private void writeProp()
+  {
+    synchronized (propLock)
+    {
+      Properties prp = new Properties();
+
+      prp.put("hitMax", Integer.toString(hitMax));
+      prp.put("valMax", Double.toString(valMax));
+      prp.put("velDur", Integer.toString(velDur));
+      prp.put("max", Integer.toString(max));
+      prp.put("node", Integer.toString(node));
+      prp.put("hash", hash);
+
+      if (prp.equals(savedProp))
+        return;
+
+      Object ev = VelEvents.saveProp();
+      File tmp = new File(fn + ".prp.tmp");
+
+      try
+      {
+        try (Writer w = new FileWriter(tmp))
+        {
+          prp.store(w, mn);
+        }
+
+        try
+        {
+          Files.move(tmp.toPath(), new File(fn + ".prp").toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException amnse)
+        {
+          Files.move(tmp.toPath(), new File(fn + ".prp").toPath(), REPLACE_EXISTING);
+        }
+
+        savedProp = prp;
+      }
+      catch (IOException ioe)
+      {
+        // Ignore, the old file is left as it was
+
+        ev = VelEvents.saveProp(ev, nm, fn, "failed");
+      }
+
+      VelEvents.saveProp(ev, nm, fn, "ok");
     }
   }
 
   protected void loadProp()
   {
     Properties prp = new Properties();
+    File f = new File(fn + ".prp");
+    boolean found = f.exists();
 
-    try (Reader r = new FileReader(fn + ".prp"))
+    try (Reader r = new FileReader(f))
     {
       prp.load(r);
     }
@@ -133,15 +392,46 @@ public abstract class Vel
       // Ignore
     }
 
+    // A file cut short has lost the hash the keys were made with, and
+    // guessing it would miss every key
+    if (found && prp.isEmpty())
+      throw new IllegalStateException("Settings file " + f + " is empty, the key hash is unknown");
+
+    savedProp = prp;
+
     hitMax = Integer.parseInt(prp.getProperty("hitMax", Integer.toString(hitMax)));
     valMax = Double.parseDouble(prp.getProperty("valMax", Double.toString(valMax)));
     velDur = Integer.parseInt(prp.getProperty("velDur", Integer.toString(velDur)));
     max = Integer.parseInt(prp.getProperty("max", Integer.toString(max)));
+    node = Integer.parseInt(prp.getProperty("node", Integer.toString(node)));
+
+    // Stores save their settings, hash and all, when opened, so data with
+    // settings saved before the hash was, or with none, used the old hash
+    String h = prp.getProperty("hash");
+
+    if (h == null && recCount() > 0)
+    {
+      if (found && ! prp.containsKey("velDur"))
+        throw new IllegalStateException("Settings file " + f + " is cut short, the key hash is unknown");
+
+      if (! found)
+        log("No settings file " + f + ", " + nm + " taken as keyed by the old hash");
+
+      h = "legacy";
+    }
+
+    if (h != null)
+      hash = h;
+
+    // Written now rather than queued, as a store that has data and no
+    // saved hash can't be opened again
+    if (prp.getProperty("hash") == null && saveParas)
+      writeProp();
   }
 
   public synchronized void close()
   {
-    // Do nothing - overridden if necessary
+    flushProp();
   }
 
   /**
@@ -182,6 +472,11 @@ public abstract class Vel
     return this;
   }
 
+  public int getVelDur()
+  {
+    return velDur;
+  }
+
   /**
    *  Set the instance velDur (default 1 hour)
    *
@@ -235,6 +530,55 @@ public abstract class Vel
     return this;
   }
 
+  public int getNode()
+  {
+    return node;
+  }
+
+  /**
+   *  Set the instance node
+   *
+   * @param  node     The node identifies this instance when windows are
+   *       merged between instances, so that hits counted by
+   *       different nodes in the same minute are all kept.
+   *       Each instance merging into another should use a
+   *       different node.
+   */
+  public Vel setNode(int node)
+  {
+    if (this.node != node)
+    {
+      this.node = node;
+
+      if (saveParas)
+        saveProp();
+    }
+
+    return this;
+  }
+
+  public VelStats getStats()
+  {
+    return stats;
+  }
+
+  /**
+   *  Switch the operation stats on or off, when off they cost a null check
+   *
+   * @param  on     Collect stats and publish them over JMX
+   */
+  public Vel setStats(boolean on)
+  {
+    if (on != (stats != null))
+    {
+      stats = on ? new VelStats() : null;
+
+      VelStats.register(nm, stats);
+    }
+
+    return this;
+  }
+
   abstract public String show(String key);
 
   protected static String name()
@@ -293,50 +637,154 @@ public abstract class Vel
 
     if (p != null)
     {
-      if (p.purger.getAndIncrement() > 100000)
+      if (p.purger.getAndIncrement() > PURGE_CALLS)
       {
-        long pTime = System.currentTimeMillis();
+        p.purger.set(0);
+        p.purgeIfDue();
+      }
 
-        if (pTime > p.lastPurge.get())
-        {
-          int done = p.purgeDb();
+      return p;
+    }
 
-          p.purged.set(p.purged.get() + done);
-          p.purgerCalls.incrementAndGet();
-        }
+    if (imp == null)
+      return null;
 
-        p.lastPurge.set(pTime + 60 * 1000);
-        p.purger.set(0);
-      }
+    VelFactory<?> f = factories.get(imp);
+
+    if (f == null)
+    {
+      log("No store factory for " + imp);
 
+      return null;
+    }
+
+    return open(f.config(db));
+  }
+
+  /**
+   *  Open a store as configured, or return it if already open, whatever
+   *  its configuration
+   *
+   * @return        The store, null if it could not be made
+   */
+  @SuppressWarnings("unchecked")
+  public static Vel open(VelConfig c)
+  {
+    Vel p = maps.get(c.getName());
+
+    if (p != null)
       return p;
+
+    VelFactory<VelConfig> f = (VelFactory<VelConfig>) factories.get(c.getType());
+
+    if (f == null)
+    {
+      log("No store factory for " + c.getType());
+
+      return null;
     }
 
-    if (imp != null)
+    // Opening is rare, one at a time keeps a store from being made twice
+    synchronized (maps)
     {
+      p = maps.get(c.getName());
+
+      if (p != null)
+        return p;
+
       try
       {
-        String fqn = Vel.class.getName();
-        Class c = Class.forName(fqn.substring(0, fqn.lastIndexOf('.') + 1) + imp);
-        Constructor<?> cs = c.getConstructor(String.class);
+        p = f.create(c);
+
+        p.nm = c.getName();
 
-        p = (Vel) cs.newInstance(db);
+        p.open(p.nm, null, false);  // flexible audit opening required
 
-        maps.put(db, p);
+        c.apply(p);
 
-        p.nm = db;
+        maps.put(p.nm, p);
 
-        p.open(db, null, false);  // flexible audit opening required
+        VelStats.register(p.nm, p.stats);
       }
       catch (Exception exc)
       {
         log("Instance creation failed", exc);
+
+        p = null;
       }
     }
 
     return p;
   }
 
+  /**
+   *  Make stores of another type available by its name
+   */
+  public static void register(VelFactory<?> f)
+  {
+    factories.put(f.type(), f);
+  }
+
+  /**
+   * @return        The store types that can be opened
+   */
+  public static Set<String> getTypes()
+  {
+    return new TreeSet<>(factories.keySet());
+  }
+
+  /**
+   * @return        A handle on an open store, null if there is none
+   */
+  public static VelHandle handle(String db)
+  {
+    Vel p = maps.get(db);
+
+    return p != null ? new VelHandle(p) : null;
+  }
+
+  /**
+   * @return        A handle on a store, opened with the given type if need
+   *                be, null if it could not be
+   */
+  public static VelHandle handle(String db, String imp)
+  {
+    Vel p = context(db, imp);
+
+    return p != null ? new VelHandle(p) : null;
+  }
+
+  public static VelHandle handle(VelConfig c)
+  {
+    Vel p = open(c);
+
+    return p != null ? new VelHandle(p) : null;
+  }
+
+  /**
+   *  Compile velocity rules into a plan, see VelRules
+   *
+   * @param  imp      The type of store to open for stores not open, null
+   *                  for open stores only
+   */
+  public static VelRules rules(String text, String imp)
+  {
+    return VelRules.compile(text, imp);
+  }
+
+  // Purge at most once a minute, whichever caller gets here first
+  void purgeIfDue()
+  {
+    long pTime = System.currentTimeMillis();
+    long last = lastPurge.get();
+
+    if (pTime > last && lastPurge.compareAndSet(last, pTime + 60 * 1000))
+    {
+      purged.addAndGet(purgeDb());
+      purgerCalls.incrementAndGet();
+    }
+  }
+
   // Dummy open - override/extend for disk based maps
   protected String open(String mn, String fn, boolean ro)
   {
@@ -387,7 +835,7 @@ public abstract class Vel
   {
     Vel vel = context(db);
 
-    return vel != null ? vel.set(vhash(key), item) : null;
+    return vel != null ? vel.set(vel.keyHash(key), item) : null;
   }
 
   protected static void log(String mess, Exception ex)
@@ -413,21 +861,13 @@ public abstract class Vel
     String[] items = bits.split(",");
 
     if (items.length == 1)
-    {
-      String[] is = items[0].split("|");
-
-      return new Item(Integer.parseInt(is[0]), Integer.parseInt(is[1]));
-    }
+      return parseItem(items[0]);
     else
     {
       Item[] is = new Item[items.length];
 
       for (int j = 0; j != items.length; j++)
-      {
-        String[] i = items[j].split("|");
-
-        is[j++] = new Item(Integer.parseInt(i[0]), Integer.parseInt(i[1]));
-      }
+        is[j] = parseItem(items[j]);
 
       return new Items(is);
     }
@@ -446,7 +886,8 @@ public abstract class Vel
         String [] bits = line.split(":");
 
         long key = Long.parseLong(bits[0]);
-        Base item = parseBits(bits[1]);
+        Base item = bits[1].startsWith("=") ? Utils.toBase(Base64.getDecoder().decode(bits[1].substring(1)))
+                                            : parseBits(bits[1]);
 
         set(key, item);
 
@@ -468,12 +909,100 @@ public abstract class Vel
     return vel != null ? vel.importRecs(fn) : null;
   }
 
+  /**
+   *  Walk every window in the store. The same VelCursor is passed for each
+   *  entry so nothing is allocated per entry, copy out anything to be kept
+   *  before moving on. Weakly consistent, windows changed during the walk
+   *  may or may not be seen. Splits for parallel streams where the store
+   *  allows it.
+   *
+   * @return    A spliterator over the store's windows
+   */
+  abstract public Spliterator<VelCursor> cursor();
+
+  public Stream<VelCursor> stream(boolean parallel)
+  {
+    return StreamSupport.stream(cursor(), parallel);
+  }
+
+  /**
+   *  Write every record, one per line in the form read by importRecs,
+   *  holding only the current entry in memory. Windows are written as
+   *  their entries, other records in their encoded form, see
+   *  VelCursor.appendTo.
+   *
+   * @param  w      Where to write
+   * @return    The number of records written
+   */
+  public long export(Writer w)
+    throws IOException
+  {
+    Spliterator<VelCursor> sp = cursor();
+    VelCursor[] cur = new VelCursor[1];
+    long n = 0;
+
+    while (sp.tryAdvance(c -> cur[0] = c))
+    {
+      if (cur[0].raw() == null)
+        continue;
+
+      cur[0].appendTo(w).write('\n');
+
+      n++;
+    }
+
+    w.flush();
+
+    return n;
+  }
+
+  public long export(String fn)
+  {
+    try (Writer w = new BufferedWriter(new FileWriter(fn), 64 * 1024))
+    {
+      return export(w);
+    }
+    catch (IOException ioe)
+    {
+      log("export problem", ioe);
+
+      return -1;
+    }
+  }
+
+  public static long export(String db, String fn)
+  {
+    Vel vel = context(db);
+
+    return vel != null ? vel.export(fn) : -1;
+  }
+
   /**
    *  show the database
    *
    * @return    The string representation of the className
    */
-  abstract public String toString();
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder("{");
+    Spliterator<VelCursor> sp = cursor();
+    VelCursor[] cur = new VelCursor[1];
+    boolean first = true;
+
+    while (sp.tryAdvance(c -> cur[0] = c))
+    {
+      if (! first)
+        sb.append(",");
+      else
+        first = false;
+
+      sb.append(cur[0]);
+    }
+
+    sb.append("}");
+
+    return sb.toString();
+  }
 
   public static String toString(String db)
   {
@@ -541,7 +1070,7 @@ public abstract class Vel
 
   private List<Long> getTs(String key, boolean original)
   {
-    long lkey = vhash(key);
+    long lkey = keyHash(key);
     Base item = get(lkey);
     List<Long> ll = new ArrayList<>();
 
@@ -592,7 +1121,7 @@ public abstract class Vel
 
   private SortedMap<Long, Integer> getTsCounts(String key, String unit, boolean original)
   {
-    long lkey = vhash(key);
+    long lkey = keyHash(key);
     Base item = get(lkey);
     SortedMap<Long, Integer> ll = new TreeMap<>();
 
@@ -631,8 +1160,25 @@ public abstract class Vel
     return ll;
   }
 
-  // count records and display every Nth record
-  abstract public int count(int n);
+  // count records and log every Nth record at FINE, 0 for none
+  public int count(int n)
+  {
+    Spliterator<VelCursor> sp = cursor();
+    VelCursor[] cur = new VelCursor[1];
+    Logger l = logger;
+    boolean show = n > 0 && l != null && l.isLoggable(Level.FINE);
+    int cnt = 0;
+
+    while (sp.tryAdvance(c -> cur[0] = c))
+    {
+      if (show && (cnt % n) == 0)
+        l.log(Level.FINE, cnt + " : " + cur[0]);
+
+      cnt++;
+    }
+
+    return cnt;
+  }
 
   public static int count(String db, int freq)
   {
@@ -648,11 +1194,43 @@ public abstract class Vel
 
   public synchronized int purgeDb(String until)
   {
-    return purgeDb(getCurr(until));
+    VelStats st = stats;
+    Object ev = VelEvents.purge();
+    long start = st != null ? System.nanoTime() : 0L;
+    int done = 0;
+
+    try
+    {
+      done = purgeDb(getCurr(until));
+    }
+    catch (RuntimeException re)
+    {
+      ev = VelEvents.purge(ev, nm, done, "failed");
+
+      throw re;
+    }
+
+    if (st != null)
+      st.purge(start, done);
+
+    VelEvents.purge(ev, nm, done, "ok");
+
+    return done;
   }
 
   abstract protected int purgeDb(int now);
 
+  // Purge for the stores that keep their windows encoded off heap
+  protected static int purgeDb(OffHeapLongMap oh, int now)
+  {
+    return oh.removeIf((key, ba) ->
+    {
+      int dt = Utils.toBase(ba).expiry();
+
+      return dt > 20000000 && now > dt;
+    });
+  }
+
   public static int purge(String db)
   {
      return purge(db, null);
@@ -703,8 +1281,130 @@ public abstract class Vel
     return copy(type, nm, true);
   }
 
-  // Copy from one implementation to another
-  abstract Vel copy(String type, String nm, boolean merge);
+  Vel copy(String type, String nm, boolean merge)
+  {
+    return copy(type, nm, merge, null);
+  }
+
+  /**
+   *  Copy or merge every window into another store. The source is split
+   *  and walked in parallel without locking it, so it keeps serving while
+   *  the copy runs, and windows go to the target in batches with one lock
+   *  each. Encoded windows are passed on as bytes when the target holds
+   *  bytes too, so they are not decoded and encoded again.
+   *
+   * @param  type     The target implementation, e.g. PersistentVel
+   * @param  nm       The target store
+   * @param  merge    Merge into existing windows rather than replace them
+   * @param  progress If not null, told the running total after each batch
+   * @return        The target store
+   */
+  public Vel copy(String type, String nm, boolean merge, LongConsumer progress)
+  {
+    Vel p = getVel(type, nm);
+
+    if (p != null)
+      ForkJoinPool.commonPool().invoke(new CopyTask(cursor(), p, merge, max, progress, new AtomicLong()));
+
+    return p;
+  }
+
+  private static final class CopyTask extends RecursiveAction
+  {
+    private static final int BATCH = 1024;
+
+    private final Spliterator<VelCursor> sp;
+    private final Vel p;
+    private final boolean merge;
+    private final int max;
+    private final LongConsumer progress;
+    private final AtomicLong done;
+
+    CopyTask(Spliterator<VelCursor> sp, Vel p, boolean merge, int max, LongConsumer progress, AtomicLong done)
+    {
+      this.sp = sp;
+      this.p = p;
+      this.merge = merge;
+      this.max = max;
+      this.progress = progress;
+      this.done = done;
+    }
+
+    protected void compute()
+    {
+      List<CopyTask> forks = new ArrayList<>();
+      Spliterator<VelCursor> split;
+
+      while (sp.estimateSize() > BATCH * 4 && (split = sp.trySplit()) != null)
+      {
+        CopyTask t = new CopyTask(split, p, merge, max, progress, done);
+
+        t.fork();
+        forks.add(t);
+      }
+
+      long[] keys = new long[BATCH];
+      Object[] wins = new Object[BATCH];
+      VelCursor[] cur = new VelCursor[1];
+      int n = 0;
+
+      while (sp.tryAdvance(c -> cur[0] = c))
+      {
+        keys[n] = cur[0].key();
+        wins[n++] = cur[0].raw();
+
+        if (n == BATCH)
+          n = flush(keys, wins, n);
+      }
+
+      flush(keys, wins, n);
+
+      for (CopyTask t : forks)
+        t.join();
+    }
+
+    private int flush(long[] keys, Object[] wins, int n)
+    {
+      if (n > 0)
+      {
+        p.setAll(keys, wins, n, merge, max);
+
+        long total = done.addAndGet(n);
+
+        if (progress != null)
+          progress.accept(total);
+
+        Arrays.fill(wins, 0, n, null);
+      }
+
+      return 0;
+    }
+  }
+
+  // Insert a batch of windows, each a Base or its encoded bytes, holding the lock once
+  protected synchronized void setAll(long[] keys, Object[] wins, int n, boolean merge, int max)
+  {
+    for (int i = 0; i != n; i++)
+    {
+      Base c = merge ? get(keys[i]) : null;
+
+      if (c == null)
+        setRaw(keys[i], wins[i]);
+      else
+      {
+        Base base = wins[i] instanceof byte[] ? Utils.toBase((byte[]) wins[i]) : (Base) wins[i];
+
+        if (c.compareTo(base) != 0)
+          set(keys[i], velMerge(c, base, max));
+      }
+    }
+  }
+
+  // Store a window given as a Base or its encoded bytes, override to keep the form held
+  protected void setRaw(long key, Object win)
+  {
+    set(key, win instanceof byte[] ? Utils.toBase((byte[]) win) : (Base) win);
+  }
 
   protected final Base merge(long lkey, Base base, int max)
   {
@@ -741,26 +1441,12 @@ public abstract class Vel
       Item[] is = new Item[its.length];
 
       for (int i = 0; i != its.length; i++)
-      {
-        String[] it = its[i].split("|");
-
-        if (it.length == 2)
-          is[i] = new Item(Integer.parseInt(its[0]), Integer.parseInt(its[1]));
-        else
-          is[i] = new Item(Integer.parseInt(its[0]));
-      }
+        is[i] = parseItem(its[i]);
 
       base = new Items(is);
     }
     else
-    {
-      String[] it = rems[3].split("\\|");
-
-      if (it.length == 2)
-        base = new Item(Integer.parseInt(it[0]), Integer.parseInt(it[1]));
-      else
-        base = new Item(Integer.parseInt(it[0]));
-    }
+      base = parseItem(rems[3]);
 
     if (c == null)   // Should be most likely scenario
       set(lkey, base);
@@ -770,106 +1456,134 @@ public abstract class Vel
     return base;
   }
 
-  // Merge two values together
+  private static Item parseItem(String s)
+  {
+    String[] it = s.split("\\|");
+
+    if (it.length == 3)
+      return new Item(Integer.parseInt(it[0]), Integer.parseInt(it[1]), Integer.parseInt(it[2]));
+    else if (it.length == 2)
+      return new Item(Integer.parseInt(it[0]), Integer.parseInt(it[1]));
+    else
+      return new Item(Integer.parseInt(it[0]));
+  }
+
+  /*
+   *  Merge two windows together. A window is a state based CRDT, each
+   *  (minute, node) bucket only ever grows so the join keeps the larger
+   *  of each bucket. This is commutative, associative and idempotent so
+   *  windows can be merged in any order and any number of times.
+   */
   private final Base velMerge(Base c, Base base, int max)
   {
-    Items newEnds = null;
+    if (! Utils.isWindow(c) || ! Utils.isWindow(base))
+      return c.getClass() == base.getClass() ? c.join(base) : c;
+
+    Item[] a = c instanceof Item ? new Item[] { (Item) c } : ((Items) c).items;
+    Item[] b = base instanceof Item ? new Item[] { (Item) base } : ((Items) base).items;
+    long[] ak = new long[a.length];
+    long[] bk = new long[b.length];
+    int[] av = new int[a.length];
+    int[] bv = new int[b.length];
+    int an = toSlots(a, ak, av);
+    int bn = toSlots(b, bk, bv);
+    long[] mk = new long[an + bn];
+    int[] mv = new int[an + bn];
+    int i = 0;
+    int j = 0;
+    int n = 0;
+    int buckets = 0;
 
-    if (c instanceof Item)
+    // Both sides are newest first so a single pass merges them
+    while (i < an || j < bn)
     {
-      if (base instanceof Item)
-      {
-        newEnds = new Items(new Item[2]);
+      long k;
+      int v;
 
-        newEnds.items[0] = (Item) c;
-        newEnds.items[1] = (Item) base;
+      if (j == bn || (i < an && ak[i] > bk[j]))
+      {
+        k = ak[i];
+        v = av[i++];
+      }
+      else if (i == an || bk[j] > ak[i])
+      {
+        k = bk[j];
+        v = bv[j++];
       }
       else
       {
-        newEnds = new Items(new Item[((Items) base).items.length + 1]);
-
-        int j = 0;
+        k = ak[i];
+        v = Math.max(av[i++], bv[j++]);
+      }
 
-        for (Item i : ((Items) base).items)
-          newEnds.items[j++] = i;
+      // ensure max length, counted in minutes so no node is lost
+      if ((n == 0 || getTs(mk[n - 1]) != getTs(k)) && ++buckets > max)
+        break;
 
-        newEnds.items[j] = (Item) c;
-      }
+      mk[n] = k;
+      mv[n++] = v;
     }
-    else if (base instanceof Item)
-    {
-      newEnds = new Items(new Item[((Items) c).items.length + 1]);
 
-      int j = 0;
+    if (n == 0)
+      return c;
 
-      for (Item i : ((Items) c).items)
-        newEnds.items[j++] = i;
+    Base merged;
 
-      newEnds.items[j] = (Item) base;
-    }
+    if (n == 1)
+      merged = new Item(getTs(mk[0]), mv[0], getItem(mk[0]));
     else
     {
-      int l = ((Items) c).items.length + ((Items) base).items.length;
-
-      newEnds = new Items(new Item[l]);
+      Item[] endList = new Item[n];
 
-      int j = 0;
+      for (int e = 0; e != n; e++)
+        endList[e] = new Item(getTs(mk[e]), mv[e], getItem(mk[e]));
 
-      for (Item i : ((Items) c).items)
-        newEnds.items[j++] = i;
-      for (Item i : ((Items) base).items)
-        newEnds.items[j++] = i;
+      merged = new Items(endList);
     }
 
-    // sort it to be insertion order independent
-    Arrays.sort(newEnds.items);
-
-    int le = 0;
-    int actual = 0;
-
-    // null out inappicable entries
-    for (int i = 0; i != newEnds.items.length; i++)
-    {
-      Item e = newEnds.items[i];
-
-      // when no value or duplicate
-      if (e.ts == 0 || e.ts == le)
-        newEnds.items[i] = null;
-      else
-        actual++;
+    // The longer duration, so the join stays the same either way round
+    Utils.setDur(merged, Math.max(Utils.dur(c), Utils.dur(base)));
 
-      le = e.ts;
-    }
+    return merged;
+  }
 
-    // final string
-    Item[] endList = new Item[actual];
-    int j = 0;
+  // Pack a window into (minute, node) keys newest first, dropping empties
+  private static int toSlots(Item[] items, long[] ks, int[] vs)
+  {
+    int n = 0;
 
-    // Get out what we want and reverse!
-    for (int i = newEnds.items.length - 1; i >= 0; i--)
+    for (Item it : items)
     {
-      Item e = newEnds.items[i];
-
-      if (e != null)
-        endList[j++] = e;
-    }
+      if (it == null || it.ts == 0)
+        continue;
 
-    base = actual == 1 ? endList[0] : new Items(endList);
+      long k = pack(it.ts, it.node);
+      int j = n++;
 
-    Items e = (Items) base;
+      // Windows are normally in order already so this rarely moves anything
+      for (; j > 0 && ks[j - 1] < k; j--)
+      {
+        ks[j] = ks[j - 1];
+        vs[j] = vs[j - 1];
+      }
 
-    // ensure max length
-    if (e.items.length > max)
-    {
-      Item[] n = new Item[max]; 
+      if (j > 0 && ks[j - 1] == k)    // same bucket twice, keep one
+      {
+        vs[j - 1] = Math.max(vs[j - 1], it.item);
 
-      for (int i = 0; i != max; i++)
-        n[i] = e.items[i];
+        System.arraycopy(ks, j + 1, ks, j, n - j - 1);
+        System.arraycopy(vs, j + 1, vs, j, n - j - 1);
 
-      e.items = n;
+        n--;
+      }
+      else
+      {
+        ks[j] = k;
+        vs[j] = it.item;
+      }
     }
 
-    return base;
+    return n;
   }
 
   private final Base velGet(Base c, int dur, String now, int max)
@@ -914,24 +1628,23 @@ public abstract class Vel
 
   private final Base velGet(Base c, int val, int dur, int curr, int max)
   {
+    long start = stats != null ? System.nanoTime() : 0L;
     int expire = 0;
 
-    if (dur >= 0)   // Only false if query only
-    {
-      if (saveParas && velDur != dur && dur > 0)
-      {
-        velDur = dur;
-
-        saveProp();
-      }
+    // A duration given is kept with the window, unless it is the store's,
+    // and used for later calls without one
+    int winDur = Utils.dur(c);
 
-      expire = curr + ((dur == 0) ? velDur : dur);
-    }
+    if (dur > 0)
+      winDur = dur == velDur ? 0 : dur;
+
+    if (dur >= 0)   // Only false if query only
+      expire = curr + (dur > 0 ? dur : winDur > 0 ? winDur : velDur);
 
     Base base = null;
 
     if (c == null)
-      base = new Item(expire, val);
+      base = new Item(expire, val, node);
     else  // Not New - occasionally
     {
       Item[] newEnds = null;
@@ -940,7 +1653,7 @@ public abstract class Vel
       {
         Item orig = (Item) c;
 
-        if (expire == orig.ts)
+        if (expire == orig.ts && node == orig.node)
         {
           orig.item += val;
 
@@ -950,6 +1663,7 @@ public abstract class Vel
         {
           orig.ts = expire;
           orig.item = val;
+          orig.node = node;
 
           base = c;
         }
@@ -959,13 +1673,14 @@ public abstract class Vel
           {
             orig.ts = expire;
             orig.item = val;
+            orig.node = node;
 
             base = orig;
           }
           else
           {
             newEnds = new Item[2];
-            newEnds[0] = new Item(expire, val);
+            newEnds[0] = new Item(expire, val, node);
             newEnds[1] = orig;
 
             base = new Items(newEnds);
@@ -976,12 +1691,18 @@ public abstract class Vel
       {
         Items orig = (Items) c;
         Item[] ends = orig.items;
+        int own = 0;
+
+        // Other nodes may have hits in the same minute when merged
+        while (own < ends.length - 1 && ends[own] != null && ends[own].ts == expire && ends[own].node != node)
+          own++;
 
-        if (expire == ends[0].ts)
+        if (ends[own] != null && expire == ends[own].ts && node == ends[own].node)
         {
-          ends[0].item += val;
+          ends[own].item += val;
+          orig.sum += val;
 
-          if (curr > ends[1].ts)
+          if (own == 0 && curr > ends[1].ts)
             base = ends[0];
           else
             base = orig;
@@ -996,10 +1717,16 @@ public abstract class Vel
               break;
           }
 
+          // The running sum loses whatever drops off the end
+          int sum = orig.sum + val;
+
           if (i >= max)
           {
             newEnds = ends;   // reuse
 
+            if (ends[i - 1] != null)
+              sum -= ends[i - 1].item;
+
             // Overlapping... So copy backwards.
             for (int j = i - 1; j > 0; j--)
               newEnds[j] = newEnds[j - 1];
@@ -1014,28 +1741,82 @@ public abstract class Vel
             newEnds = new Item[i + 1];
 
             System.arraycopy(ends, 0, newEnds, 1, newEnds.length - 1);
+
+            for (int j = i; j != ends.length; j++)
+              if (ends[j] != null)
+                sum -= ends[j].item;
           }
 
           if (newEnds.length > 1)
           {
-            newEnds[0] = new Item(expire, val);
+            newEnds[0] = new Item(expire, val, node);
 
             orig.items = newEnds;
+            orig.sum = sum;
 
             base = orig;
           }
           else
-            base = new Item(expire, val);
+            base = new Item(expire, val, node);
         }
       }
     }
 
+    Utils.setDur(base, winDur);
+
+    VelStats st = stats;
+
+    if (st != null)
+      st.velGet(start, base instanceof Items ? ((Items) base).items.length : 1);
+
     return base;
   }
 
   abstract Base removeKey(long key);
   abstract Base get(long key);
 
+  // get and set timed when stats are on
+  protected final Base timedGet(long key)
+  {
+    VelStats st = stats;
+
+    if (st == null)
+      return get(key);
+
+    long start = System.nanoTime();
+    Base base = get(key);
+
+    st.get(start, base != null);
+
+    return base;
+  }
+
+  protected final Base timedSet(long key, Base item)
+  {
+    return timedSet(key, item, 0);
+  }
+
+  // Also counts the hit and any value added towards the hottest keys
+  protected final Base timedSet(long key, Base item, int val)
+  {
+    HeavyHitters hh = hot;
+
+    if (hh != null)
+      hh.add(key, val);
+
+    VelStats st = stats;
+
+    if (st == null)
+      return set(key, item);
+
+    long start = System.nanoTime();
+
+    set(key, item);
+    st.record(VelStats.SET, start);
+
+    return item;
+  }
+
   public int velCount(String key)
   {
     return velCount(key, null, 0, getCurr(null));
@@ -1108,8 +1889,9 @@ public abstract class Vel
 
   public int velCount(String key, String re, int dur, int dt)
   {
-    long lkey = vhash(re != null && key.matches(re) ? re : key);
-    Base base = get(lkey);
+    Object ev = VelEvents.velocity();
+    long lkey = keyHash(re != null && key.matches(re) ? re : key);
+    Base base = timedGet(lkey);
     int count = 0;
 
     try
@@ -1121,20 +1903,21 @@ public abstract class Vel
         count = ((Item) base).item;
       }
       else  // must be more than 1 item
-      {
-        for (Item i : ((Items) base).items)
-          count += i.item;
-      }
+        count = ((Items) base).sum;
 
-      set(lkey, base);
+      timedSet(lkey, base);
     }
     catch (Exception ex)
     {
       count = 0;
 
       log("velCount failed", ex);
+
+      ev = VelEvents.velocity(ev, nm, "velCount", lkey, base, "failed");
     }
 
+    VelEvents.velocity(ev, nm, "velCount", lkey, base, "ok");
+
     return count;
   }
 
@@ -1205,8 +1988,9 @@ public abstract class Vel
 
   public int velValue(String key, String re, int v, int dur, int dt)
   {
-    long lkey = vhash(re != null && key.matches(re) ? re : key);
-    Base base = get(lkey);
+    Object ev = VelEvents.velocity();
+    long lkey = keyHash(re != null && key.matches(re) ? re : key);
+    Base base = timedGet(lkey);
     int val = 0;
 
     try
@@ -1216,12 +2000,9 @@ public abstract class Vel
       if (base instanceof Item)
         val = ((Item) base).item;
       else
-      {
-        for (Item i : ((Items) base).items)
-          val += i.item;
-      }
+        val = ((Items) base).sum;
 
-      set(lkey, base);
+      timedSet(lkey, base, v);
     }
     catch (Exception ex)
     {
@@ -1229,8 +2010,12 @@ ex.printStackTrace();
       val = 0;
 
       log("velValue failed", ex);
+
+      ev = VelEvents.velocity(ev, nm, "velValue", lkey, base, "failed");
     }
 
+    VelEvents.velocity(ev, nm, "velValue", lkey, base, "ok");
+
     return val;
   }
 
@@ -1271,8 +2056,9 @@ ex.printStackTrace();
 
   public double velValue(String key, String re, double v, int dur, int dt)
   {
-    long lkey = vhash(re != null && key.matches(re) ? re : key);
-    Base base = get(lkey);
+    Object ev = VelEvents.velocity();
+    long lkey = keyHash(re != null && key.matches(re) ? re : key);
+    Base base = timedGet(lkey);
     double val = 0.0;
 
     try
@@ -1282,24 +2068,21 @@ ex.printStackTrace();
       if (base instanceof Item)
         val = ((Item) base).item;
       else
-      {
-        int d = 0;
-
-        for (Item i : ((Items) base).items)
-          d += i.item;
+        val = fromFix(((Items) base).sum);
 
-        val = fromFix(d);
-      }
-
-      set(lkey, base);
+      timedSet(lkey, base, toFix(v));
     }
     catch (Exception ex)
     {
       val = 0.0;
 
       log("velValue failed", ex);
+
+      ev = VelEvents.velocity(ev, nm, "velValue", lkey, base, "failed");
     }
 
+    VelEvents.velocity(ev, nm, "velValue", lkey, base, "ok");
+
     return val;
   }
 
@@ -1362,8 +2145,9 @@ ex.printStackTrace();
    */
   public boolean velOr(String key, String re, int hitMax, double v, double valMax, int dur, int dt)
   {
-    long lkey = vhash(re != null && key.matches(re) ? re : key);
-    Base base = get(lkey);
+    Object ev = VelEvents.velocity();
+    long lkey = keyHash(re != null && key.matches(re) ? re : key);
+    Base base = timedGet(lkey);
     boolean good = true;
 
     try
@@ -1385,136 +2169,453 @@ ex.printStackTrace();
       }
       else
       {
-        int d = 0;
         Items ents = (Items) base;
-
-        for (Item e : ents.items)
-          d += e.item;    // Sum of values
+        int d = ents.sum;   // Sum of values
 
         if ((ents.items.length >= hitMax && hitMax > 0) ||
             (fromFix(d) >= valMax && valMax > 0.0))
           good = false;
       }
 
-      set(lkey, base);
+      timedSet(lkey, base, toFix(v));
+    }
+    catch (Exception ex)
+    {
+      good = true;
+
+      log("velOr failed", ex);
+
+      ev = VelEvents.velocity(ev, nm, "velOr", lkey, base, "failed");
+
+      close();
+    }
+
+    VelEvents.velocity(ev, nm, "velOr", lkey, base, "ok");
+
+    return good;
+  }
+
+  public boolean velAnd(String key, int hitMax, double v, double valMax, int dur)
+  {
+    return velAnd(key, null, hitMax, v, valMax, dur, getCurr(null));
+  }
+
+  public boolean velAnd(String key, int hitMax, double v, double valMax, int dur, String dt)
+  {
+    return velAnd(key, null, hitMax, v, valMax, dur, getCurr(dt));
+  }
+
+  public boolean velAnd(String key, int hitMax, double v, double valMax, int dur, Date now)
+  {
+    return velAnd(key, null, hitMax, v, valMax, dur, (int) (now.getTime() / 60 / 1000));
+  }
+
+  public boolean velAnd(String key, int hitMax, double v, double valMax, int dur, int dt)
+  {
+    return velAnd(key, null, hitMax, v, valMax, dur, dt);
+  } 
+
+  public boolean velAnd(String key, String re, int hitMax, double v, double valMax, int dur)
+  {
+    return velAnd(key, re, hitMax, v, valMax, dur, getCurr(null));
+  }
+
+  public boolean velAnd(String key, String re, int hitMax, double v, double valMax, int dur, String dt)
+  {
+    return velAnd(key, re, hitMax, v, valMax, dur, getCurr(dt));
+  }
+
+  public boolean velAnd(String key, String re, int hitMax, double v, double valMax, int dur, Date now)
+  {
+    return velAnd(key, re, hitMax, v, valMax, dur, (int) (now.getTime() / 60 / 1000));
+  }
+
+  /**
+   *  Call a Velocity object and return a boolean to indicate if it
+   *  has been triggered or not.
+   *  Static version that uses global Velocity Persistent tree
+   *
+   * @param  key  The key by which the row is indexed
+   * @param  hitMax     The hit max is the Velocity count threshold over
+   *       which a Velocity match is deemed to have occurred
+   * @param  v      The value supplied by this call (to add to get
+   *            valMax)
+   * @param  valMax     The val max is the Velocity value threshold over
+   *       which a Velocity match is deemed to have occurred
+   * @param  dur      The Velocity duration is the time interval
+   *       (measured in hours) over which the moving window
+   *       of Velocity operates. If a hit on the same Velocity
+   *       component(s) occurs within the window then the count
+   *       or value will be incremented. If it is not within
+   *       the window then the count will be reset to 1.
+   *
+   * @return        Has the item occured the number of times AND
+   *            value times in the duration?
+   */
+  public boolean velAnd(String key, String re, int hitMax, double v, double valMax, int dur, int dt)
+  {
+    Object ev = VelEvents.velocity();
+    long lkey = keyHash(re != null && key.matches(re) ? re : key);
+    Base base = timedGet(lkey);
+    boolean good = true;
+
+    try
+    {
+      base = velGet(base, v, dur, dt, max);
+
+      if (hitMax == -1)
+        hitMax = 99999999;
+      else
+        hitMax = (hitMax == 0) ? hitMax : hitMax;
+
+      valMax = (valMax == 0.0) ? valMax : valMax;
+
+      if (base instanceof Item)
+      {
+        if ((1 >= hitMax && hitMax > 0) &&
+            (fromFix(((Item) base).item) >= valMax && valMax > 0.0))
+          good = false;
+      }
+      else
+      {
+        Items ents = (Items) base;
+        int d = ents.sum;   // Sum of values
+
+        if ((ents.items.length >= hitMax && hitMax > 0) &&
+            (fromFix(d) >= valMax && valMax > 0.0))
+          good = false;
+      }
+
+      timedSet(lkey, base, toFix(v));
+    }
+    catch (Exception ex)
+    {
+      good = true;
+
+      log("velAnd failed", ex);
+
+      ev = VelEvents.velocity(ev, nm, "velAnd", lkey, base, "failed");
+
+      close();
+    }
+
+    VelEvents.velocity(ev, nm, "velAnd", lkey, base, "ok");
+
+    return good;
+  }
+
+  /**
+   *  Rate limit a key with a token bucket, rather than counting a window.
+   *  The bucket holds up to burst permits and refills at rate a second, its
+   *  state is a fixed 16 bytes updated in place, and it is purged once it
+   *  would be full again. Synchronized with tryAcquireAll, as both change
+   *  buckets the store holds.
+   *
+   * @param  key      The key to limit
+   * @param  permits  The permits wanted
+   * @param  rate     Permits added a second
+   * @param  burst    The most permits the bucket holds
+   * @param  now      The time in milliseconds
+   * @return        true if the permits were taken
+   */
+  public synchronized boolean tryAcquire(String key, int permits, double rate, int burst, long now)
+  {
+    checkBucket(permits, rate, burst);
+
+    Object ev = VelEvents.velocity();
+    long lkey = keyHash(key);
+    Base base = timedGet(lkey);
+    boolean good = true;
+
+    try
+    {
+      Bucket b = base instanceof Bucket ? (Bucket) base : Bucket.full(burst, now);
+
+      good = b.acquire(permits, rate, burst, now);
+      base = b;
+
+      timedSet(lkey, base);
+    }
+    catch (Exception ex)
+    {
+      log("tryAcquire failed", ex);
+
+      ev = VelEvents.velocity(ev, nm, "tryAcquire", lkey, base, "failed");
+    }
+
+    VelEvents.velocity(ev, nm, "tryAcquire", lkey, base, "ok");
+
+    return good;
+  }
+
+  public boolean tryAcquire(String key, int permits, double rate, int burst)
+  {
+    return tryAcquire(key, permits, rate, burst, System.currentTimeMillis());
+  }
+
+  /**
+   *  Try to acquire permits on many keys in one pass, each key on its own
+   *
+   * @return        Whether each key's permits were taken
+   */
+  public boolean[] tryAcquire(String[] keys, int permits, double rate, int burst, long now)
+  {
+    boolean[] good = new boolean[keys.length];
+
+    for (int i = 0; i != keys.length; i++)
+      good[i] = tryAcquire(keys[i], permits, rate, burst, now);
+
+    return good;
+  }
+
+  /**
+   *  Take permits from every key or from none, e.g. limits on a card and
+   *  on its merchant that must both allow a transaction
+   *
+   * @return        true if every key had the permits, which were then taken
+   */
+  public synchronized boolean tryAcquireAll(String[] keys, int permits, double rate, int burst, long now)
+  {
+    checkBucket(permits, rate, burst);
+
+    long[] lkeys = new long[keys.length];
+    Bucket[] bs = new Bucket[keys.length];
+    boolean good = true;
+
+    for (int i = 0; i != keys.length; i++)
+    {
+      Base base = timedGet(lkeys[i] = keyHash(keys[i]));
+
+      bs[i] = base instanceof Bucket ? (Bucket) Utils.copyOf(base) : Bucket.full(burst, now);
+      good &= bs[i].acquire(permits, rate, burst, now);
+    }
+
+    // Nothing is written unless every key had the permits, a refill that
+    // is not kept is simply made again next time
+    if (good)
+      for (int i = 0; i != keys.length; i++)
+        timedSet(lkeys[i], bs[i]);
+
+    return good;
+  }
+
+  /**
+   *  Add an amount to a key's exponentially decayed counters, one for each
+   *  half life, rather than to a window. Each counter is a single value
+   *  decayed to the time of the last add, updated in place.
+   *
+   * @param  key       The key to count
+   * @param  amount    The amount to add, 1 for a plain count
+   * @param  halfLives The half lives in seconds, a key counted with other
+   *                   half lives starts again
+   * @param  now       The time in milliseconds
+   * @param  out       Set to each counter after the add, may be null
+   */
+  public void velDecay(String key, double amount, int[] halfLives, long now, double[] out)
+  {
+    Object ev = VelEvents.velocity();
+    long lkey = keyHash(key);
+    Base base = timedGet(lkey);
+
+    try
+    {
+      Decay d = base instanceof Decay && ((Decay) base).sameLives(halfLives) ? (Decay) base : Decay.of(halfLives, node, now);
+
+      base = d = d.add(amount, node, now);
+
+      if (out != null)
+        for (int i = 0; i != halfLives.length; i++)
+          out[i] = d.get(halfLives[i], now);
+
+      timedSet(lkey, base);
+    }
+    catch (Exception ex)
+    {
+      log("velDecay failed", ex);
+
+      ev = VelEvents.velocity(ev, nm, "velDecay", lkey, base, "failed");
+    }
+
+    VelEvents.velocity(ev, nm, "velDecay", lkey, base, "ok");
+  }
+
+  /**
+   *  Add to a key's decayed counter with a single half life
+   *
+   * @return        The counter after the add
+   */
+  public double velDecay(String key, double amount, int halfLife, long now)
+  {
+    double[] out = new double[1];
+
+    velDecay(key, amount, new int[] { halfLife }, now, out);
+
+    return out[0];
+  }
+
+  /**
+   *  Read a key's decayed counter at now without changing it
+   *
+   * @return        The counter, 0 if the key has none with that half life
+   */
+  public double getDecay(String key, int halfLife, long now)
+  {
+    Base base = timedGet(keyHash(key));
+
+    return base instanceof Decay ? ((Decay) base).get(halfLife, now) : 0.0;
+  }
+
+  /**
+   *  Check an amount against the key's history of amounts and add it, in
+   *  one pass over the key's quantile sketch. The sketch covers the last
+   *  one to two velocity durations and holds at most a few hundred ints
+   *  however many amounts the key sees.
+   *
+   * @param  key        The key to check
+   * @param  amount     The amount, e.g. a transaction value
+   * @param  percentile The percentile, 0 to 100, an amount above it is an
+   *                    outlier
+   * @param  minCount   The amounts the key must have seen before any is
+   *                    an outlier
+   * @param  now        The time in minutes
+   * @return        true if the amount is above the percentile of those before it
+   */
+  public boolean isOutlier(String key, double amount, double percentile, int minCount, int now)
+  {
+    Object ev = VelEvents.velocity();
+    long lkey = keyHash(key);
+    Base base = timedGet(lkey);
+    boolean out = false;
+
+    try
+    {
+      Sketch s = base instanceof Sketch ? (Sketch) base : Sketch.of(now, velDur);
+      int b = Sketch.bucket((long) (amount * 100.0 + 0.5));
+
+      s.rotate(now);
+
+      // Outliers are in a bucket above the percentile's, within a bucket
+      // the sketch cannot tell amounts apart
+      out = s.total() >= minCount && s.bucketAt(percentile) < b;
+
+      s.add(b);
+      base = s;
+
+      timedSet(lkey, base);
     }
     catch (Exception ex)
     {
-      good = true;
-
-      log("velOr failed", ex);
+      log("isOutlier failed", ex);
 
-      close();
+      ev = VelEvents.velocity(ev, nm, "isOutlier", lkey, base, "failed");
     }
 
-    return good;
-  }
+    VelEvents.velocity(ev, nm, "isOutlier", lkey, base, "ok");
 
-  public boolean velAnd(String key, int hitMax, double v, double valMax, int dur)
-  {
-    return velAnd(key, null, hitMax, v, valMax, dur, getCurr(null));
+    return out;
   }
 
-  public boolean velAnd(String key, int hitMax, double v, double valMax, int dur, String dt)
+  public boolean isOutlier(String key, double amount, double percentile, int now)
   {
-    return velAnd(key, null, hitMax, v, valMax, dur, getCurr(dt));
+    return isOutlier(key, amount, percentile, OUTLIER_MIN, now);
   }
 
-  public boolean velAnd(String key, int hitMax, double v, double valMax, int dur, Date now)
+  public boolean isOutlier(String key, double amount, double percentile)
   {
-    return velAnd(key, null, hitMax, v, valMax, dur, (int) (now.getTime() / 60 / 1000));
+    return isOutlier(key, amount, percentile, OUTLIER_MIN, getCurr(null));
   }
 
-  public boolean velAnd(String key, int hitMax, double v, double valMax, int dur, int dt)
+  /**
+   *  Read a percentile of the key's amounts without adding to them
+   *
+   * @return        The lowest amount of the bucket holding the percentile,
+   *                within about 19% of it, or -1 if the key has no sketch
+   */
+  public double getQuantile(String key, double percentile, int now)
   {
-    return velAnd(key, null, hitMax, v, valMax, dur, dt);
-  } 
+    Base base = timedGet(keyHash(key));
 
-  public boolean velAnd(String key, String re, int hitMax, double v, double valMax, int dur)
-  {
-    return velAnd(key, re, hitMax, v, valMax, dur, getCurr(null));
-  }
+    if (! (base instanceof Sketch))
+      return -1.0;
 
-  public boolean velAnd(String key, String re, int hitMax, double v, double valMax, int dur, String dt)
-  {
-    return velAnd(key, re, hitMax, v, valMax, dur, getCurr(dt));
-  }
+    Sketch s = (Sketch) Utils.copyOf(base);
 
-  public boolean velAnd(String key, String re, int hitMax, double v, double valMax, int dur, Date now)
-  {
-    return velAnd(key, re, hitMax, v, valMax, dur, (int) (now.getTime() / 60 / 1000));
+    s.rotate(now);
+
+    int b = s.bucketAt(percentile);
+
+    return b < 0 ? -1.0 : Sketch.low(b) / 100.0;
   }
 
   /**
-   *  Call a Velocity object and return a boolean to indicate if it
-   *  has been triggered or not.
-   *  Static version that uses global Velocity Persistent tree
-   *
-   * @param  key  The key by which the row is indexed
-   * @param  hitMax     The hit max is the Velocity count threshold over
-   *       which a Velocity match is deemed to have occurred
-   * @param  v      The value supplied by this call (to add to get
-   *            valMax)
-   * @param  valMax     The val max is the Velocity value threshold over
-   *       which a Velocity match is deemed to have occurred
-   * @param  dur      The Velocity duration is the time interval
-   *       (measured in hours) over which the moving window
-   *       of Velocity operates. If a hit on the same Velocity
-   *       component(s) occurs within the window then the count
-   *       or value will be incremented. If it is not within
-   *       the window then the count will be reset to 1.
+   *  Add an event to the key's multi metric window and read its count,
+   *  amount and distinct values together, in one lookup of one key where
+   *  velCount, velValue and velChange take three. The window has at most
+   *  max slots, one for each minute and value.
    *
-   * @return        Has the item occured the number of times AND
-   *            value times in the duration?
+   * @param  key      The key, e.g. a card
+   * @param  amount   The event's amount
+   * @param  val      The value counted as distinct, e.g. a merchant, null
+   *                  for none
+   * @param  dur      The window in minutes, 0 for the key's own or the
+   *                  store's
+   * @param  now      The time in minutes
+   * @return        The metrics including this event
    */
-  public boolean velAnd(String key, String re, int hitMax, double v, double valMax, int dur, int dt)
+  public VelMetrics velMetrics(String key, double amount, String val, int dur, int now)
   {
-    long lkey = vhash(re != null && key.matches(re) ? re : key);
-    Base base = get(lkey);
-    boolean good = true;
+    Object ev = VelEvents.velocity();
+    long lkey = keyHash(key);
+    Base base = timedGet(lkey);
+    VelMetrics res = VelMetrics.NONE;
 
     try
     {
-      base = velGet(base, v, dur, dt, max);
-
-      if (hitMax == -1)
-        hitMax = 99999999;
-      else
-        hitMax = (hitMax == 0) ? hitMax : hitMax;
-
-      valMax = (valMax == 0.0) ? valMax : valMax;
+      Metrics m = base instanceof Metrics ? (Metrics) base : Metrics.of(Math.min(max, 8));
+      int amt = toFix(amount);
 
-      if (base instanceof Item)
-      {
-        if ((1 >= hitMax && hitMax > 0) &&
-            (fromFix(((Item) base).item) >= valMax && valMax > 0.0))
-          good = false;
-      }
-      else
-      {
-        int d = 0;
-        Items ents = (Items) base;
+      // Kept with the window as for velGet
+      if (dur > 0)
+        m.dur = dur == velDur ? 0 : dur;
 
-        for (Item e : ents.items)
-          d += e.item;    // Sum of values
+      m.add(now, now + (dur > 0 ? dur : m.dur > 0 ? m.dur : velDur), amt, Metrics.hash(val), node, max);
 
-        if ((ents.items.length >= hitMax && hitMax > 0) &&
-            (fromFix(d) >= valMax && valMax > 0.0))
-          good = false;
-      }
+      res = m.get(now);
+      base = m;
 
-      set(lkey, base);
+      timedSet(lkey, base, amt);
     }
     catch (Exception ex)
     {
-      good = true;
+      log("velMetrics failed", ex);
 
-      log("velAnd failed", ex);
-
-      close();
+      ev = VelEvents.velocity(ev, nm, "velMetrics", lkey, base, "failed");
     }
 
-    return good;
+    VelEvents.velocity(ev, nm, "velMetrics", lkey, base, "ok");
+
+    return res;
+  }
+
+  public VelMetrics velMetrics(String key, double amount, String val, int dur)
+  {
+    return velMetrics(key, amount, val, dur, getCurr(null));
+  }
+
+  /**
+   *  Read the key's metrics without adding to them
+   */
+  public VelMetrics getMetrics(String key, int now)
+  {
+    Base base = timedGet(keyHash(key));
+
+    return base instanceof Metrics ? ((Metrics) base).get(now) : VelMetrics.NONE;
+  }
+
+  private static void checkBucket(int permits, double rate, int burst)
+  {
+    if (permits < 0 || ! (rate > 0.0) || burst <= 0 || burst > Integer.MAX_VALUE / Bucket.SCALE)
+      throw new IllegalArgumentException("Bad token bucket, permits " + permits + " rate " + rate + " burst " + burst);
   }
 
   public int getCount(String key)
@@ -1550,21 +2651,18 @@ ex.printStackTrace();
     return getCount(key, re, (int) (now.getTime() / 60 / 1000));
   }
 
+  /**
+   *  Count the entries of a key's window still live at now, without
+   *  changing the window, so a key not hit lately reads 0
+   */
   public int getCount(String key, String re, int now)
   {
-    long lkey = vhash(re != null && key.matches(re) ? re : key);
+    long lkey = keyHash(re != null && key.matches(re) ? re : key);
     int hits = 0;
 
     try
     {
-      Base base = get(lkey);
-
-      if (base == null)
-        return 0;
-      else if (base instanceof Item)
-        hits = 1;
-      else
-        hits = ((Items) base).items.length;
+      hits = VelQuery.count(timedGet(lkey), now);
     }
     catch (Exception ex)
     {
@@ -1612,24 +2710,17 @@ ex.printStackTrace();
     return getValue(key, re, (int) (now.getTime() / 60 / 1000));
   }
 
+  /**
+   *  Sum the values of a key's window still live at now, read only
+   */
   public double getValue(String key, String re, int now)
   {
-    long lkey = vhash(re != null && key.matches(re) ? re : key);
+    long lkey = keyHash(re != null && key.matches(re) ? re : key);
     int d = 0;
 
     try
     {
-      Base base = get(lkey);
-
-      if (base instanceof Item)
-        d = ((Item) base).item;
-      else
-      {
-        Items ents = (Items) base;
-
-        for (Item e : ents.items)
-          d += e.item;    // Sum of values
-      }
+      d = VelQuery.sum(timedGet(lkey), now);    // Sum of values
     }
     catch (Exception ex)
     {
@@ -1730,48 +2821,94 @@ ex.printStackTrace();
     else
       pat = key + "|" + val;
 
-    long lkey = vhash(pat);
+    Object ev = VelEvents.velocity();
+    long lkey = keyHash(pat);
+    Base base = null;
     int res = 0;
 
     try
     {
-      Base base = velGet(get(lkey), dur, now, max);
+      base = velGet(timedGet(lkey), dur, now, max);
+      res = changes(base);
 
-      if (base instanceof Item)
-        res = 1;
-      else
-      {
-        Items ents = (Items) base;
-        int[] its = new int[ents.items.length];
+      timedSet(lkey, base);
+    }
+    catch (Exception ex)
+    {
+      res = 0;
 
-        for (int i = 0; i != its.length; i++)
-          its[i] = ents.items[i].item;
+      log("change failed", ex);
 
-        Arrays.sort(its);
+      ev = VelEvents.velocity(ev, nm, "velChange", lkey, base, "failed");
 
-        int last = 0;
+      //close();
+    }
 
-        for (int i : its)
-        {
-          if (last == 0 || last != i)
-            res++;
+    VelEvents.velocity(ev, nm, "velChange", lkey, base, "ok");
 
-          last = i;
-        }
-      }
+    return res;
+  }
 
-      set(lkey, base);
+  // The changes counted in a velChange window
+  static int changes(Base base)
+  {
+    if (base instanceof Item)
+      return 1;
+
+    Items ents = (Items) base;
+    int[] its = new int[ents.items.length];
+    int res = 0;
+
+    for (int i = 0; i != its.length; i++)
+      its[i] = ents.items[i].item;
+
+    Arrays.sort(its);
+
+    int last = 0;
+
+    for (int i : its)
+    {
+      if (last == 0 || last != i)
+        res++;
+
+      last = i;
+    }
+
+    return res;
+  }
+
+  /*
+   *  Add to a window for a rule plan, as the velocity ops do, leaving the
+   *  checks to the plan
+   *
+   * @param  op       The velocity op this stands for, for events and logs
+   * @param  val      Added to the window, 1 for a count
+   * @param  hit      Added to the key's value among the hottest keys
+   * @return        The window, null on failure
+   */
+  final Base velUpdate(String op, long lkey, int val, int hit, int dur, int now)
+  {
+    Object ev = VelEvents.velocity();
+    Base base = timedGet(lkey);
+
+    try
+    {
+      base = velGet(base, val, dur, now, max);
+
+      timedSet(lkey, base, hit);
     }
     catch (Exception ex)
     {
-      res = 0;
+      log(op + " failed", ex);
 
-      log("change failed", ex);
+      ev = VelEvents.velocity(ev, nm, op, lkey, base, "failed");
 
-      //close();
+      base = null;
     }
 
-    return res;
+    VelEvents.velocity(ev, nm, op, lkey, base, "ok");
+
+    return base;
   }
 
   public int getDiff(String re, String val)
@@ -1809,6 +2946,9 @@ ex.printStackTrace();
     return getChange(key, re, val, vre, (int) (now.getTime() / 60 / 1000));
   }
 
+  /**
+   *  Count the distinct values live at now, read only
+   */
   public int getChange(String key, String re, String val, String vre, int now)
   {
     String pat = null;
@@ -1825,37 +2965,12 @@ ex.printStackTrace();
     else
       pat = key + "|" + val;
 
-    long lkey = vhash(pat);
+    long lkey = keyHash(pat);
     int res = 0;
 
     try
     {
-      Base base = get(lkey);
-
-      if (base == null)
-        res = 0;
-      else if (base instanceof Item)
-        res = 1;
-      else
-      {
-        Items ents = (Items) base;
-        int[] its = new int[ents.items.length];
-
-        for (int i = 0; i != its.length; i++)
-          its[i] = ents.items[i].item;
-
-        Arrays.sort(its);
-
-        int last = 0;
-
-        for (int i : its)
-        {
-          if (last == 0 || last != i)
-            res++;
-
-          last = i;
-        }
-      }
+      res = VelQuery.distinct(timedGet(lkey), now);
     }
     catch (Exception ex)
     {
@@ -1872,7 +2987,7 @@ ex.printStackTrace();
 
   public String removeKey(String key)
   {
-    Object base = removeKey(vhash(key));
+    Object base = removeKey(keyHash(key));
 
     return base == null ? null : base.toString();
   }
@@ -2044,7 +3159,175 @@ ex.printStackTrace();
 
   private static int readIntLE(byte[] buf, int i)
   {
-    return (buf[i] & 0xFF) | ((buf[i+1] & 0xFF) << 8) | ((buf[i+2] & 0xFF) << 16) | ((buf[i+3] & 0xFF) << 24);
+    return Bytes.getInt(buf, i);
+  }
+
+  private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long PRIME64_3 = 0x165667B19E3779F9L;
+  private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+  private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+  /**
+   *  XXH64 of a byte range
+   */
+  public static final long hash64(byte[] buf, int off, int len, long seed)
+  {
+    final int end = off + len;
+    long h64;
+
+    if (len >= 32)
+    {
+      final int limit = end - 32;
+      long v1 = seed + PRIME64_1 + PRIME64_2;
+      long v2 = seed + PRIME64_2;
+      long v3 = seed;
+      long v4 = seed - PRIME64_1;
+
+      do
+      {
+        v1 = round64(v1, readLongLE(buf, off));
+        v2 = round64(v2, readLongLE(buf, off + 8));
+        v3 = round64(v3, readLongLE(buf, off + 16));
+        v4 = round64(v4, readLongLE(buf, off + 24));
+        off += 32;
+      }
+      while (off <= limit);
+
+      h64 = merge64(v1, v2, v3, v4);
+    }
+    else
+      h64 = seed + PRIME64_5;
+
+    h64 += len;
+
+    while (off <= end - 8)
+    {
+      h64 = lane64(h64, readLongLE(buf, off));
+      off += 8;
+    }
+
+    if (off <= end - 4)
+    {
+      h64 = lane32(h64, readIntLE(buf, off));
+      off += 4;
+    }
+
+    while (off < end)
+      h64 = lane8(h64, buf[off++]);
+
+    return avalanche64(h64);
+  }
+
+  /**
+   *  XXH64 of a string's chars as UTF-16LE, the same as hashing the bytes of
+   *  s.getBytes(UTF_16LE) but without making them
+   */
+  public static final long hash64(CharSequence s, long seed)
+  {
+    final int end = s.length();
+    int off = 0;
+    long h64;
+
+    if (end >= 16)
+    {
+      final int limit = end - 16;
+      long v1 = seed + PRIME64_1 + PRIME64_2;
+      long v2 = seed + PRIME64_2;
+      long v3 = seed;
+      long v4 = seed - PRIME64_1;
+
+      do
+      {
+        v1 = round64(v1, readLongLE(s, off));
+        v2 = round64(v2, readLongLE(s, off + 4));
+        v3 = round64(v3, readLongLE(s, off + 8));
+        v4 = round64(v4, readLongLE(s, off + 12));
+        off += 16;
+      }
+      while (off <= limit);
+
+      h64 = merge64(v1, v2, v3, v4);
+    }
+    else
+      h64 = seed + PRIME64_5;
+
+    h64 += 2L * end;
+
+    while (off <= end - 4)
+    {
+      h64 = lane64(h64, readLongLE(s, off));
+      off += 4;
+    }
+
+    if (off <= end - 2)
+    {
+      h64 = lane32(h64, s.charAt(off) | (s.charAt(off + 1) << 16));
+      off += 2;
+    }
+
+    if (off < end)
+    {
+      char c = s.charAt(off);
+
+      h64 = lane8(lane8(h64, (byte) c), (byte) (c >>> 8));
+    }
+
+    return avalanche64(h64);
+  }
+
+  private static long round64(long acc, long input)
+  {
+    return Long.rotateLeft(acc + input * PRIME64_2, 31) * PRIME64_1;
+  }
+
+  private static long merge64(long v1, long v2, long v3, long v4)
+  {
+    long h64 = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+
+    h64 = (h64 ^ round64(0, v1)) * PRIME64_1 + PRIME64_4;
+    h64 = (h64 ^ round64(0, v2)) * PRIME64_1 + PRIME64_4;
+    h64 = (h64 ^ round64(0, v3)) * PRIME64_1 + PRIME64_4;
+    h64 = (h64 ^ round64(0, v4)) * PRIME64_1 + PRIME64_4;
+
+    return h64;
+  }
+
+  private static long lane64(long h64, long k)
+  {
+    return Long.rotateLeft(h64 ^ round64(0, k), 27) * PRIME64_1 + PRIME64_4;
+  }
+
+  private static long lane32(long h64, int k)
+  {
+    return Long.rotateLeft(h64 ^ ((k & 0xFFFFFFFFL) * PRIME64_1), 23) * PRIME64_2 + PRIME64_3;
+  }
+
+  private static long lane8(long h64, byte b)
+  {
+    return Long.rotateLeft(h64 ^ ((b & 0xFF) * PRIME64_5), 11) * PRIME64_1;
+  }
+
+  private static long avalanche64(long h64)
+  {
+    h64 ^= h64 >>> 33;
+    h64 *= PRIME64_2;
+    h64 ^= h64 >>> 29;
+    h64 *= PRIME64_3;
+    h64 ^= h64 >>> 32;
+
+    return h64;
+  }
+
+  private static long readLongLE(byte[] buf, int i)
+  {
+    return Bytes.getLong(buf, i);
+  }
+
+  // Four chars as the eight bytes of their UTF-16LE encoding
+  private static long readLongLE(CharSequence s, int i)
+  {
+    return s.charAt(i) | ((long) s.charAt(i + 1) << 16) | ((long) s.charAt(i + 2) << 32) | ((long) s.charAt(i + 3) << 48);
   }
 
   /*
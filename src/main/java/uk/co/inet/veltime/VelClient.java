@@ -0,0 +1,397 @@
+package uk.co.inet.veltime;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static uk.co.inet.veltime.VelServer.*;
+
+/**
+ *  A thin client for VelServer. The plain calls send one request and wait
+ *  for the answer, a Pipeline queues many requests and sends them in one
+ *  go, either as separate frames or as a single batch.
+ *
+ *  A client is not thread safe, use one per thread.
+ */
+public class VelClient implements Closeable
+{
+  private final Socket socket;
+  private final DataOutputStream out;
+  private final DataInputStream in;
+  private int ids = 0;
+
+  public VelClient(String host, int port)
+    throws IOException
+  {
+    socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);
+
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+  }
+
+  public void close()
+    throws IOException
+  {
+    socket.close();
+  }
+
+  public int velCount(String db, String key, String re, int dur, int now)
+    throws IOException
+  {
+    return (int) call(pipeline().velCount(db, key, re, dur, now));
+  }
+
+  public double velValue(String db, String key, String re, double v, int dur, int now)
+    throws IOException
+  {
+    return Double.longBitsToDouble(call(pipeline().velValue(db, key, re, v, dur, now)));
+  }
+
+  public boolean velOr(String db, String key, String re, int hitMax, double v, double valMax, int dur, int now)
+    throws IOException
+  {
+    return call(pipeline().velOr(db, key, re, hitMax, v, valMax, dur, now)) != 0;
+  }
+
+  public boolean velAnd(String db, String key, String re, int hitMax, double v, double valMax, int dur, int now)
+    throws IOException
+  {
+    return call(pipeline().velAnd(db, key, re, hitMax, v, valMax, dur, now)) != 0;
+  }
+
+  public int getCount(String db, String key, String re, int now)
+    throws IOException
+  {
+    return (int) call(pipeline().getCount(db, key, re, now));
+  }
+
+  public int velChange(String db, String key, String re, String val, String vre, int dur, int now)
+    throws IOException
+  {
+    return (int) call(pipeline().velChange(db, key, re, val, vre, dur, now));
+  }
+
+  private long call(Pipeline p)
+    throws IOException
+  {
+    return p.sync()[0];
+  }
+
+  public Pipeline pipeline()
+  {
+    return new Pipeline();
+  }
+
+  /**
+   *  Queued requests, answers come back as longs in request order:
+   *  counts as is, booleans as 0 or 1, values as double bits
+   */
+  public class Pipeline
+  {
+    private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    private final DataOutputStream req = new DataOutputStream(bos);
+    private final List<Integer> ends = new ArrayList<>();
+
+    public Pipeline velCount(String db, String key, String re, int dur, int now)
+      throws IOException
+    {
+      op(VEL_COUNT, db);
+      putString(key);
+      putString(re);
+      req.writeInt(dur);
+
+      return end(now);
+    }
+
+    public Pipeline velValue(String db, String key, String re, double v, int dur, int now)
+      throws IOException
+    {
+      op(VEL_VALUE, db);
+      putString(key);
+      putString(re);
+      req.writeDouble(v);
+      req.writeInt(dur);
+
+      return end(now);
+    }
+
+    public Pipeline velOr(String db, String key, String re, int hitMax, double v, double valMax, int dur, int now)
+      throws IOException
+    {
+      return velBool(VEL_OR, db, key, re, hitMax, v, valMax, dur, now);
+    }
+
+    public Pipeline velAnd(String db, String key, String re, int hitMax, double v, double valMax, int dur, int now)
+      throws IOException
+    {
+      return velBool(VEL_AND, db, key, re, hitMax, v, valMax, dur, now);
+    }
+
+    private Pipeline velBool(byte op, String db, String key, String re, int hitMax, double v, double valMax, int dur, int now)
+      throws IOException
+    {
+      op(op, db);
+      putString(key);
+      putString(re);
+      req.writeInt(hitMax);
+      req.writeDouble(v);
+      req.writeDouble(valMax);
+      req.writeInt(dur);
+
+      return end(now);
+    }
+
+    public Pipeline getCount(String db, String key, String re, int now)
+      throws IOException
+    {
+      op(GET_COUNT, db);
+      putString(key);
+      putString(re);
+
+      return end(now);
+    }
+
+    public Pipeline velChange(String db, String key, String re, String val, String vre, int dur, int now)
+      throws IOException
+    {
+      op(VEL_CHANGE, db);
+      putString(key);
+      putString(re);
+      putString(val);
+      putString(vre);
+      req.writeInt(dur);
+
+      return end(now);
+    }
+
+    public int size()
+    {
+      return ends.size();
+    }
+
+    private void op(byte op, String db)
+      throws IOException
+    {
+      req.writeByte(op);
+      putString(db);
+    }
+
+    private Pipeline end(int now)
+      throws IOException
+    {
+      req.writeInt(now);
+      ends.add(bos.size());
+
+      return this;
+    }
+
+    private void putString(String s)
+      throws IOException
+    {
+      if (s == null)
+        req.writeShort(-1);
+      else
+      {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+
+        req.writeShort(b.length);
+        req.write(b);
+      }
+    }
+
+    /**
+     *  Send every queued request as its own frame and read the answers
+     */
+    public long[] sync()
+      throws IOException
+    {
+      byte[] b = bos.toByteArray();
+      int[] frameIds = new int[ends.size()];
+      int start = 0;
+
+      for (int i = 0; i != frameIds.length; i++)
+      {
+        int end = ends.get(i);
+
+        frameIds[i] = ++ids;
+        out.writeInt(4 + end - start);
+        out.writeInt(frameIds[i]);
+        out.write(b, start, end - start);
+
+        start = end;
+      }
+
+      out.flush();
+
+      long[] res = new long[frameIds.length];
+      IOException err = null;
+
+      // Every answer is read, so a failed request leaves none behind for
+      // the next call, and the first failure is thrown after
+      for (int i = 0; i != res.length; i++)
+      {
+        try
+        {
+          res[i] = read(frameIds[i], false)[0];
+        }
+        catch (IOException ioe)
+        {
+          if (socket.isClosed())
+            throw ioe;
+
+          if (err == null)
+            err = ioe;
+        }
+      }
+
+      if (err != null)
+        throw err;
+
+      return res;
+    }
+
+    /**
+     *  Send every queued request in a single batch frame
+     */
+    public long[] batch()
+      throws IOException
+    {
+      int id = ++ids;
+
+      out.writeInt(9 + bos.size());
+      out.writeInt(id);
+      out.writeByte(BATCH);
+      out.writeInt(ends.size());
+      bos.writeTo(out);
+      out.flush();
+
+      return read(id, true);
+    }
+  }
+
+  /*
+   *  Read one answer. A failed request throws with the connection still
+   *  usable, anything else closes it, as the answers after can't be found
+   */
+  private long[] read(int id, boolean batch)
+    throws IOException
+  {
+    byte[] mess = null;
+    long[] res = null;
+
+    try
+    {
+      int len = in.readInt();
+      int rid = in.readInt();
+      byte status = in.readByte();
+
+      if (rid != id)
+        throw new IOException("Out of sequence answer " + rid + " for " + id);
+
+      if (status != OK)
+        in.readFully(mess = new byte[in.readShort()]);
+      else
+      {
+        res = new long[batch ? in.readInt() : 1];
+
+        for (int i = 0; i != res.length; i++)
+          res[i] = in.readLong();
+      }
+    }
+    catch (IOException ioe)
+    {
+      socket.close();
+
+      throw ioe;
+    }
+
+    if (mess != null)
+      throw new IOException(new String(mess, StandardCharsets.UTF_8));
+
+    return res;
+  }
+
+  /*
+   *  Load test a server, starting one locally unless a port is given,
+   *  and report latency percentiles.
+   *
+   *  args : [port] [connections] [requests per connection] [pipeline depth]
+   */
+  public static void main(String... args)
+    throws Exception
+  {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+    final int conns = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    final int reqs = args.length > 2 ? Integer.parseInt(args[2]) : 250000;
+    final int depth = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+    VelServer vs = null;
+
+    if (port == 0)
+      port = (vs = new VelServer(0, "MemoryVel").start()).getPort();
+
+    final int p = port;
+    final long[][] lats = new long[conns][];
+    ExecutorService es = Executors.newFixedThreadPool(conns);
+    List<Future<?>> fs = new ArrayList<>();
+    long startTime = System.currentTimeMillis();
+
+    for (int c = 0; c != conns; c++)
+    {
+      final int cn = c;
+
+      fs.add(es.submit(() ->
+      {
+        long[] lat = new long[reqs / depth];
+        Random rnd = new Random(cn);
+
+        try (VelClient vc = new VelClient("localhost", p))
+        {
+          for (int i = 0; i != lat.length; i++)
+          {
+            Pipeline pl = vc.pipeline();
+
+            for (int d = 0; d != depth; d++)
+              pl.velCount("loadtest", "load" + rnd.nextInt(100000), null, 60, 0);
+
+            long st = System.nanoTime();
+
+            pl.sync();
+
+            lat[i] = System.nanoTime() - st;
+          }
+        }
+
+        lats[cn] = lat;
+
+        return null;
+      }));
+    }
+
+    for (Future<?> f : fs)
+      f.get();
+
+    es.shutdown();
+
+    long duration = System.currentTimeMillis() - startTime;
+    long[] all = new long[conns * (reqs / depth)];
+    int n = 0;
+
+    for (long[] lat : lats)
+    {
+      System.arraycopy(lat, 0, all, n, lat.length);
+      n += lat.length;
+    }
+
+    Arrays.sort(all);
+
+    System.err.printf("%d requests in %d ms, %d/s, depth %d%n", n * depth, duration, n * depth * 1000L / Math.max(1, duration), depth);
+    System.err.printf("round trip p50 %d us, p99 %d us, p999 %d us%n",
+                      all[n / 2] / 1000, all[(int) (n * 0.99)] / 1000, all[(int) (n * 0.999)] / 1000);
+
+    if (vs != null)
+      vs.close();
+  }
+}
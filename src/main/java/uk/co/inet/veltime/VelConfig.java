@@ -0,0 +1,106 @@
+package uk.co.inet.veltime;
+
+/**
+ *  How to open a store. Settings left null keep the store's own, which
+ *  for a persistent store are those it saved. Each store type extends this
+ *  with its own settings, see MemoryVel.Config and the like.
+ */
+public class VelConfig
+{
+  private final String type;
+  private final String name;
+
+  private Integer hitMax;
+  private Double valMax;
+  private Integer velDur;
+  private Integer max;
+  private Integer node;
+  private Boolean stats;
+
+  /**
+   * @param  type     The store type, as its factory names it
+   * @param  name     The store name
+   */
+  public VelConfig(String type, String name)
+  {
+    if (type == null || name == null)
+      throw new IllegalArgumentException("Store type and name needed");
+
+    this.type = type;
+    this.name = name;
+  }
+
+  public String getType()
+  {
+    return type;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public VelConfig setHitMax(int hitMax)
+  {
+    this.hitMax = hitMax;
+
+    return this;
+  }
+
+  public VelConfig setValMax(double valMax)
+  {
+    this.valMax = valMax;
+
+    return this;
+  }
+
+  public VelConfig setVelDur(int velDur)
+  {
+    this.velDur = velDur;
+
+    return this;
+  }
+
+  public VelConfig setMax(int max)
+  {
+    this.max = max;
+
+    return this;
+  }
+
+  public VelConfig setNode(int node)
+  {
+    this.node = node;
+
+    return this;
+  }
+
+  public VelConfig setStats(boolean stats)
+  {
+    this.stats = stats;
+
+    return this;
+  }
+
+  // Apply the settings given to a store just opened
+  void apply(Vel vel)
+  {
+    if (hitMax != null)
+      vel.setHitMax(hitMax);
+    if (valMax != null)
+      vel.setValMax(valMax);
+    if (velDur != null)
+      vel.setVelDur(velDur);
+    if (max != null)
+      vel.setMax(max);
+    if (node != null)
+      vel.setNode(node);
+    if (stats != null)
+      vel.setStats(stats);
+  }
+
+  public String toString()
+  {
+    return type + " " + name;
+  }
+}
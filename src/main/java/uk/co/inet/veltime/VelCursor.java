@@ -0,0 +1,293 @@
+package uk.co.inet.veltime;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ *  A view of one key and its window while walking a store. A cursor is
+ *  reused for every entry, so nothing is allocated per entry, and it is
+ *  only valid until the walk moves on: copy out anything to be kept.
+ *
+ *  The window is read in place from whatever the store holds, decoded
+ *  Items or the encoded bytes, newest entry first.
+ */
+public final class VelCursor
+{
+  private long key;
+  private Base base;
+  private byte[] bs;
+  private int off;
+  private int width;
+  private int len;
+
+  VelCursor set(long key, Base base)
+  {
+    this.key = key;
+    this.base = base;
+    this.bs = null;
+
+    len = base instanceof Item ? 1 : base instanceof Items ? ((Items) base).items.length : 0;
+
+    return this;
+  }
+
+  VelCursor set(long key, byte[] bs)
+  {
+    this.key = key;
+    this.base = null;
+    this.bs = bs;
+
+    int h = bs == null ? 0 : Utils.header(bs);
+
+    if (bs == null)
+      len = 0;
+    else if (bs.length >= h + 4 && Utils.byteToInt(bs, h) == Utils.NODES)
+    {
+      off = h + 4;
+      width = 12;
+      len = (bs.length - off) / 12;
+    }
+    else if (bs.length >= h + 4 && Utils.byteToInt(bs, h) < 0)
+      len = 0;    // not a window
+    else
+    {
+      off = h;
+      width = bs.length - h == 4 ? 4 : 8;
+      len = (bs.length - h) / width;
+    }
+
+    return this;
+  }
+
+  public long key()
+  {
+    return key;
+  }
+
+  /**
+   * @return        The number of entries in the window
+   */
+  public int length()
+  {
+    return len;
+  }
+
+  private Item at(int i)
+  {
+    return base instanceof Item ? (Item) base : ((Items) base).items[i];
+  }
+
+  /**
+   * @return        The window's own duration, 0 for the store's
+   */
+  public int dur()
+  {
+    if (bs == null)
+      return Utils.dur(base);
+
+    return Utils.header(bs) != 0 ? Utils.byteToInt(bs, 4) : 0;
+  }
+
+  /**
+   * @return        The expiry minute of entry i
+   */
+  public int ts(int i)
+  {
+    return bs != null ? Utils.byteToInt(bs, off + i * width) : at(i).ts;
+  }
+
+  /**
+   * @return        The count or fixed point value of entry i
+   */
+  public int item(int i)
+  {
+    if (bs == null)
+      return at(i).item;
+
+    return width == 4 ? 1 : Utils.byteToInt(bs, off + i * width + 4);
+  }
+
+  /**
+   * @return        The node that counted entry i
+   */
+  public int node(int i)
+  {
+    if (bs == null)
+      return at(i).node;
+
+    return width == 12 ? Utils.byteToInt(bs, off + i * width + 8) : 0;
+  }
+
+  /**
+   * @return        The total of the window's items
+   */
+  public int sum()
+  {
+    if (bs != null && width != 4)
+      return Bytes.sum(bs, off + 4, width, len);
+
+    int sum = 0;
+
+    for (int i = 0; i != len; i++)
+      sum += item(i);
+
+    return sum;
+  }
+
+  // The window in the form the store holds it
+  Object raw()
+  {
+    return bs != null ? bs : base;
+  }
+
+  // The window as the store's objects, decoded if need be
+  Base base()
+  {
+    return bs != null ? Utils.toBase(bs) : base;
+  }
+
+  /**
+   * @return        true if the record is a window that key:ts|item... holds
+   *                whole, without a duration of its own
+   */
+  boolean plain()
+  {
+    return len > 0 && dur() == 0;
+  }
+
+  /**
+   *  Append in the form read by importRecs, key:ts|item,ts|item... Records
+   *  that form can't hold, buckets, decays, sketches, metrics and windows
+   *  with their own duration, are key:= then their encoding in Base64.
+   */
+  public <A extends Appendable> A appendTo(A a)
+    throws java.io.IOException
+  {
+    a.append(Long.toString(key)).append(':');
+
+    if (! plain())
+    {
+      a.append('=').append(Base64.getEncoder().encodeToString(bs != null ? bs : Utils.fromBase(base)));
+
+      return a;
+    }
+
+    for (int i = 0; i != len; i++)
+    {
+      if (i > 0)
+        a.append(',');
+
+      a.append(Integer.toString(ts(i))).append('|').append(Integer.toString(item(i)));
+
+      if (node(i) != 0)
+        a.append('|').append(Integer.toString(node(i)));
+    }
+
+    return a;
+  }
+
+  public String toString()
+  {
+    return Vel.showItem(key, base());
+  }
+
+  /*
+   *  Walks a range of a LongHashMap's buckets, splitting the range in half
+   *  for parallel streams. While the map is resizing the range covers the
+   *  old table then the new one. Weakly consistent, entries moved during
+   *  the walk may be missed or seen twice, but never an exception.
+   */
+  static final class MapSpliterator<V> implements Spliterator<VelCursor>
+  {
+    private final LongHashMap.Entry<V>[] old;
+    private final LongHashMap.Entry<V>[] table;
+    private final VelCursor cursor = new VelCursor();
+    private int index;
+    private final int fence;
+    private LongHashMap.Entry<V> next;
+
+    MapSpliterator(LongHashMap<V> map)
+    {
+      this(map.tables());
+    }
+
+    private MapSpliterator(LongHashMap.Entry<V>[][] tables)
+    {
+      this(tables.length > 1 ? tables[0] : null, tables[tables.length - 1], 0,
+           (tables.length > 1 ? tables[0].length : 0) + tables[tables.length - 1].length);
+    }
+
+    private MapSpliterator(LongHashMap.Entry<V>[] old, LongHashMap.Entry<V>[] table, int index, int fence)
+    {
+      this.old = old;
+      this.table = table;
+      this.index = index;
+      this.fence = fence;
+    }
+
+    private LongHashMap.Entry<V> bucket(int i)
+    {
+      int ol = old == null ? 0 : old.length;
+
+      return i < ol ? old[i] : table[i - ol];
+    }
+
+    private VelCursor set(LongHashMap.Entry<V> e)
+    {
+      return e.value instanceof byte[] ? cursor.set(e.key, (byte[]) e.value) : cursor.set(e.key, (Base) e.value);
+    }
+
+    public boolean tryAdvance(Consumer<? super VelCursor> action)
+    {
+      while (next == null && index < fence)
+        next = bucket(index++);
+
+      if (next == null)
+        return false;
+
+      LongHashMap.Entry<V> e = next;
+
+      next = e.next;
+
+      action.accept(set(e));
+
+      return true;
+    }
+
+    public void forEachRemaining(Consumer<? super VelCursor> action)
+    {
+      for (LongHashMap.Entry<V> e = next; e != null; e = e.next)
+        action.accept(set(e));
+
+      next = null;
+
+      for (; index < fence; index++)
+        for (LongHashMap.Entry<V> e = bucket(index); e != null; e = e.next)
+          action.accept(set(e));
+    }
+
+    public Spliterator<VelCursor> trySplit()
+    {
+      int mid = (index + fence) >>> 1;
+
+      if (next != null || mid <= index)
+        return null;
+
+      MapSpliterator<V> prefix = new MapSpliterator<>(old, table, index, mid);
+
+      index = mid;
+
+      return prefix;
+    }
+
+    public long estimateSize()
+    {
+      return fence - index;
+    }
+
+    public int characteristics()
+    {
+      return Spliterator.NONNULL | Spliterator.DISTINCT;
+    }
+  }
+}
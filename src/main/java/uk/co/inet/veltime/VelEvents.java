@@ -0,0 +1,116 @@
+package uk.co.inet.veltime;
+
+/**
+ *  Flight Recorder events for the slow paths of the stores, see JfrEvents
+ *  for the events themselves.
+ *
+ *  The events are behind Recorder, whose Flight Recorder version is loaded
+ *  by name only when the JVM has jdk.jfr, so this class links on any Java
+ *  8 JRE. Without it, or when an event is not enabled, the starts return
+ *  null and the ends are no-ops.
+ */
+final class VelEvents
+{
+  /**
+   *  Where events go. Each start returns an event to end, or null when the
+   *  event is not enabled, and each end commits it if slow enough.
+   */
+  interface Recorder
+  {
+    Object velocity();
+
+    Object purge();
+
+    Object saveProp();
+
+    Object decode();
+
+    void velocity(Object o, String store, String op, long keyHash, Base base, String outcome);
+
+    void purge(Object o, String store, int purged, String outcome);
+
+    void saveProp(Object o, String store, String file, String outcome);
+
+    void decode(Object o, String store, long keyHash, byte[] bs, Base base);
+  }
+
+  private static final Recorder JFR = load();
+
+  private static Recorder load()
+  {
+    try
+    {
+      Class.forName("jdk.jfr.Event");
+
+      return (Recorder) Class.forName(VelEvents.class.getPackage().getName() + ".JfrEvents").getDeclaredConstructor().newInstance();
+    }
+    catch (ReflectiveOperationException | LinkageError e)
+    {
+      // No JFR in this JVM
+      return null;
+    }
+  }
+
+  private VelEvents()
+  {
+  }
+
+  static Object velocity()
+  {
+    return JFR != null ? JFR.velocity() : null;
+  }
+
+  static Object purge()
+  {
+    return JFR != null ? JFR.purge() : null;
+  }
+
+  static Object saveProp()
+  {
+    return JFR != null ? JFR.saveProp() : null;
+  }
+
+  static Object decode()
+  {
+    return JFR != null ? JFR.decode() : null;
+  }
+
+  static int length(Base base)
+  {
+    return base instanceof Item ? 1 : base instanceof Items ? ((Items) base).items.length : 0;
+  }
+
+  // Each end commits if slow enough and returns null so it only commits once
+
+  static Object velocity(Object o, String store, String op, long keyHash, Base base, String outcome)
+  {
+    if (o != null)
+      JFR.velocity(o, store, op, keyHash, base, outcome);
+
+    return null;
+  }
+
+  static Object purge(Object o, String store, int purged, String outcome)
+  {
+    if (o != null)
+      JFR.purge(o, store, purged, outcome);
+
+    return null;
+  }
+
+  static Object saveProp(Object o, String store, String file, String outcome)
+  {
+    if (o != null)
+      JFR.saveProp(o, store, file, outcome);
+
+    return null;
+  }
+
+  static Object decode(Object o, String store, long keyHash, byte[] bs, Base base)
+  {
+    if (o != null)
+      JFR.decode(o, store, keyHash, bs, base);
+
+    return null;
+  }
+}
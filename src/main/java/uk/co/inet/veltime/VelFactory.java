@@ -0,0 +1,29 @@
+package uk.co.inet.veltime;
+
+/**
+ *  Makes stores of one type. Factories are found with ServiceLoader, listed
+ *  in META-INF/services/uk.co.inet.veltime.VelFactory, or registered with
+ *  Vel.register, so a store from another jar plugs in by type name like
+ *  the built in ones.
+ *
+ * @param  <C>      The store's configuration
+ */
+public interface VelFactory<C extends VelConfig>
+{
+  /**
+   * @return        The type name stores are asked for by, e.g. MemoryVel
+   */
+  String type();
+
+  /**
+   * @return        The default configuration of a store of this type
+   */
+  C config(String name);
+
+  /**
+   *  Make a store, Vel.open then names it, loads its saved settings and
+   *  applies those the configuration sets
+   */
+  Vel create(C config)
+    throws Exception;
+}
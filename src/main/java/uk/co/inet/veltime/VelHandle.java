@@ -0,0 +1,89 @@
+package uk.co.inet.veltime;
+
+/**
+ *  A store kept by a caller for the life of its work, from Vel.handle.
+ *  Unlike Vel.context it skips the lookup by name and counts calls towards
+ *  the regular purge itself, rather than on a counter shared by every
+ *  caller of the store. Best kept one to a thread; shared, the count only
+ *  drifts, which moves a purge a little.
+ */
+public final class VelHandle
+{
+  private final Vel vel;
+  private int calls;
+
+  VelHandle(Vel vel)
+  {
+    this.vel = vel;
+  }
+
+  /**
+   * @return        The store, for one call, purging it first if due
+   */
+  public Vel get()
+  {
+    if (++calls > Vel.PURGE_CALLS)
+    {
+      calls = 0;
+
+      vel.purgeIfDue();
+    }
+
+    return vel;
+  }
+
+  public String getName()
+  {
+    return vel.nm;
+  }
+
+  public int velCount(String key, int dur, int now)
+  {
+    return get().velCount(key, dur, now);
+  }
+
+  public int velCount(String key, String re, int dur, int now)
+  {
+    return get().velCount(key, re, dur, now);
+  }
+
+  public double velValue(String key, double v, int dur, int now)
+  {
+    return get().velValue(key, v, dur, now);
+  }
+
+  public double velValue(String key, String re, double v, int dur, int now)
+  {
+    return get().velValue(key, re, v, dur, now);
+  }
+
+  public boolean velOr(String key, String re, int hitMax, double v, double valMax, int dur, int now)
+  {
+    return get().velOr(key, re, hitMax, v, valMax, dur, now);
+  }
+
+  public boolean velAnd(String key, String re, int hitMax, double v, double valMax, int dur, int now)
+  {
+    return get().velAnd(key, re, hitMax, v, valMax, dur, now);
+  }
+
+  public int velChange(String key, String re, String val, int dur, int now)
+  {
+    return get().velChange(key, re, val, dur, now);
+  }
+
+  public int getCount(String key, int now)
+  {
+    return get().getCount(key, now);
+  }
+
+  public double getValue(String key, int now)
+  {
+    return get().getValue(key, now);
+  }
+
+  public String toString()
+  {
+    return "handle " + vel.nm;
+  }
+}
@@ -0,0 +1,26 @@
+package uk.co.inet.veltime;
+
+/**
+ *  The metrics of a key's window together, as Vel.velMetrics and
+ *  Vel.getMetrics return them
+ */
+public final class VelMetrics
+{
+  static final VelMetrics NONE = new VelMetrics(0, 0.0, 0);
+
+  public final int count;
+  public final double amount;
+  public final int distinct;
+
+  VelMetrics(int count, double amount, int distinct)
+  {
+    this.count = count;
+    this.amount = amount;
+    this.distinct = distinct;
+  }
+
+  public String toString()
+  {
+    return count + "|" + amount + "|" + distinct;
+  }
+}
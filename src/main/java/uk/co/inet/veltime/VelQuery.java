@@ -0,0 +1,121 @@
+package uk.co.inet.veltime;
+
+/**
+ *  Read only queries over a window as it stands at a given minute. Items
+ *  are newest first and each expires at its ts, so the live items are a
+ *  prefix found by binary search. Nothing is written back or allocated,
+ *  so the queries can run beside writers, which see their window
+ *  unchanged; a heap store's window read while a writer shifts it may
+ *  count an item twice or miss one, never fail.
+ */
+final class VelQuery
+{
+  private VelQuery()
+  {
+  }
+
+  /**
+   * @return        The number of items live at now, the leading items
+   *                with ts at or after now
+   */
+  static int live(Item[] items, int now)
+  {
+    int lo = 0;
+    int hi = items.length;
+
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      Item i = items[mid];
+
+      if (i != null && i.ts >= now)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    return lo;
+  }
+
+  /**
+   * @return        The entries of the window live at now
+   */
+  static int count(Base base, int now)
+  {
+    if (base instanceof Item)
+      return ((Item) base).ts >= now ? 1 : 0;
+    else if (base instanceof Items)
+      return live(((Items) base).items, now);
+
+    return 0;
+  }
+
+  /**
+   * @return        The sum of the fixed point values live at now
+   */
+  static int sum(Base base, int now)
+  {
+    if (base instanceof Item)
+    {
+      Item i = (Item) base;
+
+      return i.ts >= now ? i.item : 0;
+    }
+    else if (base instanceof Items)
+    {
+      Item[] items = ((Items) base).items;
+      int n = live(items, now);
+      int d = 0;
+
+      // All live, as after a write at now, is the running sum
+      if (n == items.length)
+        return ((Items) base).sum;
+
+      for (int j = 0; j != n; j++)
+      {
+        Item i = items[j];
+
+        if (i != null)
+          d += i.item;
+      }
+
+      return d;
+    }
+
+    return 0;
+  }
+
+  /**
+   * @return        The distinct values live at now, each 0 counted on its
+   *                own. Windows are at most max long, so each value is
+   *                checked against those before it rather than sorted.
+   */
+  static int distinct(Base base, int now)
+  {
+    if (! (base instanceof Items))
+      return count(base, now);
+
+    Item[] items = ((Items) base).items;
+    int n = live(items, now);
+    int res = 0;
+
+    for (int j = 0; j != n; j++)
+    {
+      Item i = items[j];
+
+      if (i == null)
+        continue;
+
+      int v = i.item;
+      boolean seen = false;
+
+      for (int k = 0; v != 0 && k != j && ! seen; k++)
+        seen = items[k] != null && items[k].item == v;
+
+      if (! seen)
+        res++;
+    }
+
+    return res;
+  }
+}
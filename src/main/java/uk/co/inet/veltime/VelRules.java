@@ -0,0 +1,448 @@
+package uk.co.inet.veltime;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ *  Velocity rules written as text and compiled into a plan that checks
+ *  them all for a transaction at once. A rule a line, # for comments:
+ *
+ *    name = store op key [on value] [like regex] [for minutes] [hits n] [over amount]
+ *
+ *  op is count, value, or, and or change, as the velocity op of the same
+ *  name, and a rule fires when that op would: count when the count
+ *  reaches hits, value when the amount reaches over, or when either does,
+ *  and when both do, change when the values seen reach hits. Keys and
+ *  values are built from the transaction's fields, e.g. card:{card}, and a
+ *  key matching like counts under the regex, as the re of the velocity
+ *  ops. A rule whose fields are missing is not checked.
+ *
+ *  A key is one window in its store, so the rules on a key must add the
+ *  same to it, count, change or an amount for value, or and and, over the
+ *  same minutes. The plan builds and hashes each distinct key once per
+ *  transaction, updates its window once however many rules check it, and
+ *  goes a store at a time through a handle kept from compiling.
+ */
+public final class VelRules
+{
+  private static final String[] OPS = { "count", "value", "or", "and", "change" };
+  private static final String[] CALLS = { "velCount", "velValue", "velOr", "velAnd", "velChange" };
+  private static final int COUNT = 0;
+  private static final int VALUE = 1;
+  private static final int OR = 2;
+  private static final int AND = 3;
+  private static final int CHANGE = 4;
+
+  // Literal text and {field} names in turn, starting with text
+  private static final class Template
+  {
+    final String text;
+    final String[] parts;
+
+    Template(String text)
+    {
+      List<String> parts = new ArrayList<>();
+      int i = 0;
+
+      for (int o; (o = text.indexOf('{', i)) >= 0; )
+      {
+        int c = text.indexOf('}', o);
+
+        if (c < 0)
+          throw new IllegalArgumentException("No } in " + text);
+
+        parts.add(text.substring(i, o));
+        parts.add(text.substring(o + 1, c));
+        i = c + 1;
+      }
+
+      parts.add(text.substring(i));
+
+      this.text = text;
+      this.parts = parts.toArray(new String[parts.size()]);
+    }
+
+    // Append to sb, false if a field is missing
+    boolean build(Map<String, String> fields, StringBuilder sb)
+    {
+      for (int i = 0; i != parts.length; i++)
+      {
+        if ((i & 1) == 0)
+          sb.append(parts[i]);
+        else
+        {
+          String f = fields.get(parts[i]);
+
+          if (f == null)
+            return false;
+
+          sb.append(f);
+        }
+      }
+
+      return true;
+    }
+  }
+
+  // A key as stored, built once for all the windows on it
+  private static final class Key
+  {
+    final Template key;
+    final Template on;
+    final Pattern like;
+    final String id;
+
+    Key(Template key, Template on, String like)
+    {
+      this.key = key;
+      this.on = on;
+      this.like = like == null ? null : Pattern.compile(like);
+      this.id = key.text + "|" + (on == null ? "" : on.text) + "|" + (like == null ? "" : like);
+    }
+
+    // The key as the op would hash it, null if a field is missing
+    String build(Map<String, String> fields, StringBuilder sb)
+    {
+      sb.setLength(0);
+
+      if (! key.build(fields, sb))
+        return null;
+
+      if (like != null && like.matcher(sb).matches())
+      {
+        sb.setLength(0);
+        sb.append(like.pattern());
+      }
+
+      if (on != null)
+      {
+        sb.append('|');
+
+        if (! on.build(fields, sb))
+          return null;
+      }
+
+      return sb.toString();
+    }
+  }
+
+  private static final class Rule
+  {
+    final int index;
+    final String name;
+    final int op;
+    final int hits;
+    final double over;
+
+    Rule(int index, String name, int op, int hits, double over)
+    {
+      this.index = index;
+      this.name = name;
+      this.op = op;
+      this.hits = hits;
+      this.over = over;
+    }
+
+    // As the op would decide, from the window it updated
+    boolean fires(Base base)
+    {
+      int sum = base instanceof Item ? ((Item) base).item : ((Items) base).sum;
+      int len = base instanceof Item ? 1 : ((Items) base).items.length;
+      boolean h = hits > 0 && len >= hits;
+      boolean v = over > 0.0 && Vel.fromFix(sum) >= over;
+
+      switch (op)
+      {
+        case COUNT :
+          return hits > 0 && sum >= hits;
+        case VALUE :
+          return v;
+        case OR :
+          return h || v;
+        case AND :
+          return h && v;
+        default :
+          return hits > 0 && Vel.changes(base) >= hits;
+      }
+    }
+  }
+
+  // A window updated once for the rules on it
+  private static final class Window
+  {
+    final int key;
+    final int op;     // the first rule's, the others add the same
+    final int dur;
+    final List<Rule> rules = new ArrayList<>();
+    Rule[] checks;
+
+    Window(int key, int op, int dur)
+    {
+      this.key = key;
+      this.op = op;
+      this.dur = dur;
+    }
+  }
+
+  private static final class Store
+  {
+    final String db;
+    final VelHandle handle;
+    final List<Key> keys = new ArrayList<>();
+    final List<Window> windows = new ArrayList<>();
+
+    Store(String db, VelHandle handle)
+    {
+      this.db = db;
+      this.handle = handle;
+    }
+  }
+
+  private static int adds(int op)
+  {
+    return op == OR || op == AND ? VALUE : op;
+  }
+
+  private final Store[] stores;
+  private final String[] names;
+  private final int windows;
+  private final int keys;
+
+  private VelRules(Collection<Store> stores, List<String> names)
+  {
+    this.stores = stores.toArray(new Store[stores.size()]);
+    this.names = names.toArray(new String[names.size()]);
+
+    int w = 0;
+    int k = 0;
+
+    for (Store s : this.stores)
+    {
+      for (Window win : s.windows)
+        win.checks = win.rules.toArray(new Rule[win.rules.size()]);
+
+      w += s.windows.size();
+      k += s.keys.size();
+    }
+
+    this.windows = w;
+    this.keys = k;
+  }
+
+  /**
+   *  Compile rules on stores that are open already
+   */
+  public static VelRules compile(String text)
+  {
+    return compile(text, null);
+  }
+
+  /**
+   *  Compile rules, opening stores not open yet
+   *
+   * @param  imp      The type of store to open, e.g. MemoryVel, null to
+   *                  only use open stores
+   */
+  public static VelRules compile(String text, String imp)
+  {
+    Map<String, Store> stores = new LinkedHashMap<>();
+    List<String> names = new ArrayList<>();
+    int ln = 0;
+
+    for (String line : text.split("\n"))
+    {
+      ln++;
+
+      int hash = line.indexOf('#');
+      String[] t = (hash >= 0 ? line.substring(0, hash) : line).trim().split("\\s+");
+
+      if (t.length == 1 && t[0].isEmpty())
+        continue;
+
+      try
+      {
+        if (t.length < 5 || ! "=".equals(t[1]))
+          throw new IllegalArgumentException("Expected name = store op key");
+
+        int op = Arrays.asList(OPS).indexOf(t[3]);
+
+        if (op < 0)
+          throw new IllegalArgumentException("Unknown op " + t[3]);
+
+        String on = null;
+        String like = null;
+        int dur = 0;
+        int hits = 0;
+        double over = 0.0;
+
+        for (int i = 5; i < t.length; i += 2)
+        {
+          if (i + 1 == t.length)
+            throw new IllegalArgumentException("No value for " + t[i]);
+
+          switch (t[i])
+          {
+            case "on" :
+              on = t[i + 1];
+              break;
+            case "like" :
+              like = t[i + 1];
+              break;
+            case "for" :
+              dur = Integer.parseInt(t[i + 1]);
+              break;
+            case "hits" :
+              hits = Integer.parseInt(t[i + 1]);
+              break;
+            case "over" :
+              over = Double.parseDouble(t[i + 1]);
+              break;
+            default :
+              throw new IllegalArgumentException("Unknown " + t[i]);
+          }
+        }
+
+        if ((op == CHANGE) != (on != null))
+          throw new IllegalArgumentException("on is for change and change needs it");
+
+        if (hits <= 0 && over <= 0.0)
+          throw new IllegalArgumentException("No hits or over");
+
+        if (names.contains(t[0]))
+          throw new IllegalArgumentException("Rule " + t[0] + " twice");
+
+        Store st = stores.get(t[2]);
+
+        if (st == null)
+        {
+          VelHandle h = imp == null ? Vel.handle(t[2]) : Vel.handle(t[2], imp);
+
+          if (h == null)
+            throw new IllegalArgumentException("No store " + t[2]);
+
+          stores.put(t[2], st = new Store(t[2], h));
+        }
+
+        Key key = new Key(new Template(t[4]), on == null ? null : new Template(on), like);
+        int k = 0;
+
+        while (k != st.keys.size() && ! st.keys.get(k).id.equals(key.id))
+          k++;
+
+        if (k == st.keys.size())
+          st.keys.add(key);
+
+        // A key is one window in the store, so rules on it must add the
+        // same to it for as long, value, or and and all add the amount
+        Window win = null;
+
+        for (Window w : st.windows)
+          if (w.key == k)
+            win = w;
+
+        if (win == null)
+          st.windows.add(win = new Window(k, op, dur));
+        else if (win.dur != dur || adds(win.op) != adds(op))
+          throw new IllegalArgumentException("Key " + t[4] + " counted two ways in " + t[2]);
+
+        win.rules.add(new Rule(names.size(), t[0], op, hits, over));
+        names.add(t[0]);
+      }
+      catch (IllegalArgumentException e)
+      {
+        throw new IllegalArgumentException("Rule line " + ln + ": " + e.getMessage(), e);
+      }
+    }
+
+    return new VelRules(stores.values(), names);
+  }
+
+  /**
+   *  Count a transaction against every rule
+   *
+   * @param  fields   The transaction's fields, by name
+   * @param  amount   The transaction's amount, added for value, or and and
+   * @param  now      The time in minutes
+   * @return        The rules fired, by their order in the text
+   */
+  public BitSet evaluate(Map<String, String> fields, double amount, int now)
+  {
+    BitSet fired = new BitSet(names.length);
+    StringBuilder sb = new StringBuilder(64);
+    int amt = Vel.toFix(amount);
+
+    for (Store st : stores)
+    {
+      Vel vel = st.handle.get();
+      int n = st.keys.size();
+      long[] hashes = new long[n];
+      boolean[] built = new boolean[n];
+
+      for (int k = 0; k != n; k++)
+      {
+        String key = st.keys.get(k).build(fields, sb);
+
+        if (key != null)
+        {
+          hashes[k] = vel.keyHash(key);
+          built[k] = true;
+        }
+      }
+
+      for (Window w : st.windows)
+      {
+        if (! built[w.key])
+          continue;
+
+        int val = w.op == COUNT ? 1 : w.op == CHANGE ? 0 : amt;
+        Base base = vel.velUpdate(CALLS[w.op], hashes[w.key], val, w.op == COUNT ? 0 : val, w.dur, now);
+
+        if (base == null)
+          continue;
+
+        for (Rule r : w.checks)
+          if (r.fires(base))
+            fired.set(r.index);
+      }
+    }
+
+    return fired;
+  }
+
+  /**
+   * @return        The names of the rules fired
+   */
+  public List<String> fired(Map<String, String> fields, double amount, int now)
+  {
+    BitSet fired = evaluate(fields, amount, now);
+    List<String> res = new ArrayList<>(fired.cardinality());
+
+    for (int i = fired.nextSetBit(0); i >= 0; i = fired.nextSetBit(i + 1))
+      res.add(names[i]);
+
+    return res;
+  }
+
+  /**
+   * @return        The rule names in order, as evaluate numbers them
+   */
+  public String[] names()
+  {
+    return names.clone();
+  }
+
+  public int windows()
+  {
+    return windows;
+  }
+
+  public int keys()
+  {
+    return keys;
+  }
+
+  public String toString()
+  {
+    return names.length + " rules, " + windows + " windows on " + keys + " keys in " + stores.length + " stores";
+  }
+}
@@ -0,0 +1,477 @@
+package uk.co.inet.veltime;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ *  A small non blocking server so many scoring JVMs can share one set of
+ *  velocity stores. Requests are binary frames, each answered with a frame
+ *  carrying the same id, in order, so a client may pipeline as many
+ *  requests down a connection as it likes before reading any answers.
+ *
+ *  Request  : int length, int id, byte op, arguments
+ *  Response : int length, int id, byte status, result
+ *
+ *  Strings are a short length (-1 for null) and UTF-8 bytes. A time of 0
+ *  means now. Results are a long (ints as is, booleans 0 or 1, doubles as
+ *  their bits), a batch answers with an int count and a long per request.
+ *  On failure the status is ERROR and the result is the message.
+ *
+ *  A frame longer than MAX_FRAME, or too short for an id and op, closes
+ *  the connection. Once BACKLOG bytes of answers wait to be sent, a
+ *  connection's frames are held and it is not read until the client
+ *  takes its answers.
+ *
+ *  There is no authentication, so a server listens on the loopback address
+ *  unless given another. Stores already open are served by name, and a
+ *  client may open others up to a limit, named without a path.
+ */
+public class VelServer implements Runnable, Closeable
+{
+  static final byte VEL_COUNT = 1;
+  static final byte VEL_VALUE = 2;
+  static final byte VEL_OR = 3;
+  static final byte VEL_AND = 4;
+  static final byte GET_COUNT = 5;
+  static final byte VEL_CHANGE = 6;
+  static final byte BATCH = 7;
+
+  static final byte OK = 0;
+  static final byte ERROR = 1;
+
+  private static final int BUFFER = 64 * 1024;
+  static final int MAX_FRAME = 1 << 20;
+  private static final int BACKLOG = 4 << 20;
+  private static final int MAX_STORES = 256;
+
+  private final Selector selector;
+  private final ServerSocketChannel server;
+  private final String imp;
+  private volatile boolean running = true;
+  private volatile int maxStores = MAX_STORES;
+
+  // Stores by name, only used on the server thread
+  private final Map<String, VelHandle> handles = new HashMap<>();
+
+  // Per connection buffers, input is compacted after each read
+  private static final class Conn
+  {
+    ByteBuffer in = ByteBuffer.allocate(BUFFER);
+    ByteBuffer out = ByteBuffer.allocate(BUFFER);
+  }
+
+  /**
+   *  Open a server on the loopback address, stores named by clients that
+   *  do not exist yet are created with the given implementation
+   *
+   * @param  port     The port to listen on, 0 for any free port
+   * @param  imp      The store implementation, e.g. MemoryVel
+   */
+  public VelServer(int port, String imp)
+    throws IOException
+  {
+    this(InetAddress.getLoopbackAddress(), port, imp);
+  }
+
+  /**
+   * @param  addr     The address to listen on, null for every interface
+   * @param  port     The port to listen on, 0 for any free port
+   * @param  imp      The store implementation, e.g. MemoryVel
+   */
+  public VelServer(InetAddress addr, int port, String imp)
+    throws IOException
+  {
+    this.imp = imp;
+
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.configureBlocking(false);
+    server.bind(new InetSocketAddress(addr, port));
+    server.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  /**
+   *  Set how many stores clients may use, MAX_STORES by default
+   */
+  public VelServer setMaxStores(int maxStores)
+  {
+    this.maxStores = maxStores;
+
+    return this;
+  }
+
+  public int getPort()
+  {
+    return server.socket().getLocalPort();
+  }
+
+  public InetAddress getAddress()
+  {
+    return server.socket().getInetAddress();
+  }
+
+  public VelServer start()
+  {
+    Thread t = new Thread(this, "VelServer-" + getPort());
+
+    t.setDaemon(true);
+    t.start();
+
+    return this;
+  }
+
+  public void close()
+  {
+    running = false;
+
+    selector.wakeup();
+  }
+
+  public void run()
+  {
+    try
+    {
+      while (running)
+      {
+        selector.select();
+
+        for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); )
+        {
+          SelectionKey key = it.next();
+
+          it.remove();
+
+          try
+          {
+            if (! key.isValid())
+              continue;
+
+            if (key.isAcceptable())
+              accept();
+            else
+            {
+              if (key.isReadable())
+                read(key);
+              if (key.isValid() && key.isWritable())
+                write(key);
+            }
+          }
+          catch (IOException ioe)
+          {
+            key.cancel();
+            key.channel().close();
+          }
+        }
+      }
+    }
+    catch (IOException ioe)
+    {
+      Vel.log("VelServer failed", ioe);
+    }
+    finally
+    {
+      try
+      {
+        for (SelectionKey key : selector.keys())
+          key.channel().close();
+
+        selector.close();
+      }
+      catch (IOException ioe)
+      {
+        // Ignore
+      }
+    }
+  }
+
+  private void accept()
+    throws IOException
+  {
+    SocketChannel sc = server.accept();
+
+    if (sc != null)
+    {
+      sc.configureBlocking(false);
+      sc.socket().setTcpNoDelay(true);
+      sc.register(selector, SelectionKey.OP_READ, new Conn());
+    }
+  }
+
+  private void read(SelectionKey key)
+    throws IOException
+  {
+    Conn conn = (Conn) key.attachment();
+    SocketChannel sc = (SocketChannel) key.channel();
+
+    if (sc.read(conn.in) < 0)
+    {
+      key.cancel();
+      sc.close();
+
+      return;
+    }
+
+    frames(conn);
+    write(key);
+  }
+
+  // Answer every complete frame, a pipelined read may hold many, until
+  // the answers waiting reach BACKLOG
+  private void frames(Conn conn)
+    throws IOException
+  {
+    ((Buffer) conn.in).flip();
+
+    while (conn.in.remaining() >= 4 && conn.out.position() < BACKLOG)
+    {
+      int len = conn.in.getInt(conn.in.position());
+
+      if (len < 5 || len > MAX_FRAME)
+        throw new IOException("Bad frame length " + len);
+
+      if (conn.in.remaining() < 4 + len)
+        break;
+
+      conn.in.getInt();
+
+      int end = conn.in.position() + len;
+      int limit = conn.in.limit();
+
+      // A frame's arguments can't run on into the next
+      ((Buffer) conn.in).limit(end);
+      conn.out = handle(conn.in, end, conn.out);
+      ((Buffer) conn.in).limit(limit);
+      ((Buffer) conn.in).position(end);
+    }
+
+    conn.in.compact();
+
+    // Make room for a frame larger than the buffer
+    if (! conn.in.hasRemaining() && conn.in.capacity() < 4 + MAX_FRAME)
+      conn.in = grow(conn.in, Math.min(conn.in.capacity() * 2, 4 + MAX_FRAME));
+  }
+
+  private void write(SelectionKey key)
+    throws IOException
+  {
+    Conn conn = (Conn) key.attachment();
+    SocketChannel sc = (SocketChannel) key.channel();
+
+    ((Buffer) conn.out).flip();
+    sc.write(conn.out);
+    conn.out.compact();
+
+    // Answer the frames held while the answers were backed up
+    if (conn.out.position() < BACKLOG && conn.in.position() >= 4)
+    {
+      frames(conn);
+
+      ((Buffer) conn.out).flip();
+      sc.write(conn.out);
+      conn.out.compact();
+    }
+
+    int ops = conn.out.position() > 0 ? SelectionKey.OP_WRITE : 0;
+
+    key.interestOps(conn.out.position() < BACKLOG ? ops | SelectionKey.OP_READ : ops);
+  }
+
+  private static ByteBuffer grow(ByteBuffer bb, int size)
+  {
+    ByteBuffer n = ByteBuffer.allocate(size);
+
+    ((Buffer) bb).flip();
+    n.put(bb);
+
+    return n;
+  }
+
+  private static ByteBuffer ensure(ByteBuffer out, int need)
+  {
+    return out.remaining() >= need ? out : grow(out, Math.max(out.capacity() * 2, out.position() + need));
+  }
+
+  // Handle one frame and append the answer to out
+  private ByteBuffer handle(ByteBuffer in, int end, ByteBuffer out)
+  {
+    int id = in.getInt();
+    int start;
+
+    out = ensure(out, 13);
+    start = ((Buffer) out).position();
+    out.putInt(0);
+    out.putInt(id);
+
+    try
+    {
+      byte op = in.get();
+
+      if (op == BATCH)
+      {
+        int n = in.getInt();
+
+        // Each request is at least an op and a store name's length
+        if (n < 0 || n > (end - in.position()) / 3)
+          throw new IllegalArgumentException("Bad batch count " + n);
+
+        out = ensure(out, 5 + 8 * n);
+        out.put(OK);
+        out.putInt(n);
+
+        for (int i = 0; i != n; i++)
+          out.putLong(call(in.get(), in));
+      }
+      else
+      {
+        long res = call(op, in);
+
+        out.put(OK);
+        out.putLong(res);
+      }
+    }
+    catch (Exception ex)
+    {
+      byte[] mess = String.valueOf(ex).getBytes(StandardCharsets.UTF_8);
+
+      ((Buffer) out).position(start + 8);
+      out = ensure(out, 3 + mess.length);
+      out.put(ERROR);
+      out.putShort((short) mess.length);
+      out.put(mess);
+    }
+
+    out.putInt(start, out.position() - start - 4);
+
+    return out;
+  }
+
+  private long call(byte op, ByteBuffer in)
+  {
+    String db = getString(in);
+    VelHandle h = handles.get(db);
+
+    if (h == null && db != null)
+    {
+      if (handles.size() >= maxStores)
+        throw new IllegalStateException("Too many stores");
+
+      // A name is a file name for disk stores, so one opened here can't
+      // be a path
+      if ((h = Vel.handle(db)) == null)
+      {
+        if (! storeName(db))
+          throw new IllegalArgumentException("Bad store name " + db);
+
+        h = Vel.handle(db, imp);
+      }
+
+      if (h != null)
+        handles.put(db, h);
+    }
+
+    if (h == null)
+      throw new IllegalStateException("No store");
+
+    Vel vel = h.get();
+
+    switch (op)
+    {
+      case VEL_COUNT :
+      {
+        String key = getString(in);
+        String re = getString(in);
+        int dur = in.getInt();
+
+        return vel.velCount(key, re, dur, now(in));
+      }
+      case VEL_VALUE :
+      {
+        String key = getString(in);
+        String re = getString(in);
+        double v = in.getDouble();
+        int dur = in.getInt();
+
+        return Double.doubleToLongBits(vel.velValue(key, re, v, dur, now(in)));
+      }
+      case VEL_OR :
+      case VEL_AND :
+      {
+        String key = getString(in);
+        String re = getString(in);
+        int hitMax = in.getInt();
+        double v = in.getDouble();
+        double valMax = in.getDouble();
+        int dur = in.getInt();
+        int now = now(in);
+        boolean good = op == VEL_OR ? vel.velOr(key, re, hitMax, v, valMax, dur, now)
+                                    : vel.velAnd(key, re, hitMax, v, valMax, dur, now);
+
+        return good ? 1L : 0L;
+      }
+      case GET_COUNT :
+      {
+        String key = getString(in);
+        String re = getString(in);
+
+        return vel.getCount(key, re, now(in));
+      }
+      case VEL_CHANGE :
+      {
+        String key = getString(in);
+        String re = getString(in);
+        String val = getString(in);
+        String vre = getString(in);
+        int dur = in.getInt();
+
+        return vel.velChange(key, re, val, vre, dur, now(in));
+      }
+      default :
+        throw new IllegalArgumentException("Unknown op " + op);
+    }
+  }
+
+  static boolean storeName(String db)
+  {
+    return ! db.isEmpty() && db.indexOf('/') < 0 && db.indexOf('\\') < 0 && db.indexOf(':') < 0 && ! db.contains("..");
+  }
+
+  private static int now(ByteBuffer in)
+  {
+    int now = in.getInt();
+
+    return now == 0 ? Vel.getCurr() : now;
+  }
+
+  static String getString(ByteBuffer in)
+  {
+    int len = in.getShort();
+
+    if (len < 0)
+      return null;
+
+    String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+
+    ((Buffer) in).position(in.position() + len);
+
+    return s;
+  }
+
+  public static void main(String... args)
+    throws IOException
+  {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 7654;
+    String imp = args.length > 1 ? args[1] : "MemoryVel";
+    InetAddress addr = args.length > 2 ? InetAddress.getByName(args[2]) : InetAddress.getLoopbackAddress();
+
+    try (VelServer vs = new VelServer(addr, port, imp))
+    {
+      System.err.println("VelServer listening on " + addr + ":" + vs.getPort() + " using " + imp);
+
+      vs.run();
+    }
+  }
+}
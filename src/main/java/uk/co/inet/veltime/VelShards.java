@@ -0,0 +1,284 @@
+package uk.co.inet.veltime;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.*;
+
+/**
+ *  An execution mode where the keyspace is split over shards, each its own
+ *  store written by a single thread. Callers queue requests on the shard
+ *  that owns the key and get a CompletableFuture, or a callback run on the
+ *  shard's thread, so callers never contend on a store's lock and every
+ *  update to a key is applied in the order it was queued.
+ *
+ *  Shard i is the store db#i, so each shard has its own stats and JMX bean.
+ *  Shards purge themselves as the stores do, at most once a minute every
+ *  100000 requests.
+ */
+public class VelShards implements Closeable
+{
+  private static final int SPIN = 100;
+  private static final int PURGE_EVERY = 100000;
+
+  private final String db;
+  private final Shard[] shards;
+  private final int mask;
+
+  private final class Shard extends Thread
+  {
+    final Vel vel;
+    final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    volatile boolean parked;
+    volatile boolean running = true;
+    int since;
+    long nextPurge;
+
+    Shard(Vel vel, int i)
+    {
+      super("VelShard-" + db + "-" + i);
+
+      this.vel = vel;
+
+      setDaemon(true);
+    }
+
+    void offer(Runnable r)
+    {
+      queue.offer(r);
+
+      if (parked)
+        LockSupport.unpark(this);
+    }
+
+    public void run()
+    {
+      int idle = 0;
+
+      while (running || ! queue.isEmpty())
+      {
+        Runnable r = queue.poll();
+
+        if (r != null)
+        {
+          idle = 0;
+
+          try
+          {
+            r.run();
+          }
+          catch (Throwable t)
+          {
+            Vel.log("Shard task failed " + t);
+          }
+
+          if (++since >= PURGE_EVERY)
+            purge();
+        }
+        else if (++idle < SPIN)
+          Thread.yield();
+        else
+        {
+          parked = true;
+
+          if (queue.isEmpty() && running)
+            LockSupport.park(this);
+
+          parked = false;
+        }
+      }
+    }
+
+    void purge()
+    {
+      long now = System.currentTimeMillis();
+
+      since = 0;
+
+      if (now > nextPurge)
+      {
+        vel.purgeDb();
+        nextPurge = now + 60 * 1000;
+      }
+    }
+  }
+
+  /**
+   *  Start the shards, their stores are created with the given implementation
+   *
+   * @param  db       The store name, shard i is db#i
+   * @param  imp      The store implementation, e.g. MemoryVel
+   * @param  n        The number of shards, rounded up to a power of 2
+   */
+  public VelShards(String db, String imp, int n)
+  {
+    this.db = db;
+
+    int size = Integer.highestOneBit(Math.max(1, n) * 2 - 1);
+
+    shards = new Shard[size];
+    mask = size - 1;
+
+    for (int i = 0; i != size; i++)
+    {
+      Vel vel = Vel.context(db + "#" + i, imp);
+
+      if (vel == null)
+        throw new IllegalStateException("No store " + db + "#" + i);
+
+      shards[i] = new Shard(vel, i);
+    }
+
+    for (Shard s : shards)
+      s.start();
+  }
+
+  public int size()
+  {
+    return shards.length;
+  }
+
+  /**
+   * @return        The store behind shard i, only touch it from that shard
+   */
+  public Vel store(int i)
+  {
+    return shards[i].vel;
+  }
+
+  private Shard shard(String key, String re)
+  {
+    long h = shards[0].vel.keyHash(re != null && key.matches(re) ? re : key);
+
+    return shards[(int) (h ^ (h >>> 32)) & mask];
+  }
+
+  /**
+   *  Run op on the shard owning the key and complete the future with its result
+   */
+  public <T> CompletableFuture<T> submit(String key, String re, Function<Vel, T> op)
+  {
+    CompletableFuture<T> f = new CompletableFuture<>();
+    Shard s = shard(key, re);
+
+    s.offer(() ->
+    {
+      try
+      {
+        f.complete(op.apply(s.vel));
+      }
+      catch (Throwable t)
+      {
+        f.completeExceptionally(t);
+      }
+    });
+
+    return f;
+  }
+
+  /**
+   *  Run op on the shard owning the key, with no future, for callers that
+   *  hand results on themselves
+   */
+  public void execute(String key, String re, Consumer<Vel> op)
+  {
+    Shard s = shard(key, re);
+
+    s.offer(() -> op.accept(s.vel));
+  }
+
+  public CompletableFuture<Integer> velCount(String key, String re, int dur, int now)
+  {
+    return submit(key, re, v -> v.velCount(key, re, dur, now));
+  }
+
+  public void velCount(String key, String re, int dur, int now, IntConsumer done)
+  {
+    execute(key, re, v -> done.accept(v.velCount(key, re, dur, now)));
+  }
+
+  public CompletableFuture<Double> velValue(String key, String re, double val, int dur, int now)
+  {
+    return submit(key, re, v -> v.velValue(key, re, val, dur, now));
+  }
+
+  public CompletableFuture<Boolean> velOr(String key, String re, int hitMax, double val, double valMax, int dur, int now)
+  {
+    return submit(key, re, v -> v.velOr(key, re, hitMax, val, valMax, dur, now));
+  }
+
+  public void velOr(String key, String re, int hitMax, double val, double valMax, int dur, int now, Consumer<Boolean> done)
+  {
+    execute(key, re, v -> done.accept(v.velOr(key, re, hitMax, val, valMax, dur, now)));
+  }
+
+  public CompletableFuture<Boolean> velAnd(String key, String re, int hitMax, double val, double valMax, int dur, int now)
+  {
+    return submit(key, re, v -> v.velAnd(key, re, hitMax, val, valMax, dur, now));
+  }
+
+  public CompletableFuture<Integer> getCount(String key, String re, int now)
+  {
+    return submit(key, re, v -> v.getCount(key, re, now));
+  }
+
+  /**
+   *  Purge every shard on its own thread
+   *
+   * @return        The total purged once every shard is done
+   */
+  public CompletableFuture<Integer> purge(String until)
+  {
+    CompletableFuture<Integer> all = CompletableFuture.completedFuture(0);
+
+    for (Shard s : shards)
+    {
+      CompletableFuture<Integer> f = new CompletableFuture<>();
+
+      s.offer(() -> f.complete(s.vel.purgeDb(until)));
+
+      all = all.thenCombine(f, Integer::sum);
+    }
+
+    return all;
+  }
+
+  /**
+   * @return        Records over all shards, a snapshot as shards keep running
+   */
+  public int recCount()
+  {
+    int n = 0;
+
+    for (Shard s : shards)
+      n += s.vel.recCount();
+
+    return n;
+  }
+
+  /**
+   *  Stop the shards once their queued requests are done
+   */
+  public void close()
+  {
+    for (Shard s : shards)
+    {
+      s.running = false;
+      LockSupport.unpark(s);
+    }
+
+    for (Shard s : shards)
+    {
+      try
+      {
+        s.join();
+      }
+      catch (InterruptedException ie)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
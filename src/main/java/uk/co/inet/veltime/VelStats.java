@@ -0,0 +1,230 @@
+package uk.co.inet.veltime;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ *  Operation counts and latency histograms for one store. Latencies go in
+ *  log linear buckets, 8 per power of 2 so within about 12%, and every
+ *  thread updates its own stripe so writers rarely share a cache line.
+ *  Counts and percentiles are summed over the stripes when read.
+ */
+public class VelStats implements VelStatsMBean
+{
+  static final int GET = 0;
+  static final int SET = 1;
+  static final int VEL_GET = 2;
+  static final int PURGE = 3;
+  private static final int OPS = 4;
+  private static final String[] NAMES = { "get", "set", "velGet", "purge" };
+
+  private static final int SUB = 3;
+  private static final int MAX_EXP = 40;   // about 18 minutes in ns
+  private static final int BUCKETS = (MAX_EXP - SUB + 2) << SUB;
+  private static final int STRIPES = stripes();
+  private static final int MASK = STRIPES - 1;
+
+  private final AtomicLongArray hist = new AtomicLongArray(STRIPES * OPS * BUCKETS);
+  private final AtomicLongArray totals = new AtomicLongArray(STRIPES * OPS);
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder windows = new LongAdder();
+  private final LongAdder purged = new LongAdder();
+  private final AtomicLong purgeMax = new AtomicLong();
+
+  private static int stripes()
+  {
+    int n = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+    return Math.min(n, 8);
+  }
+
+  static int bucket(long v)
+  {
+    if (v < (1 << SUB))
+      return v < 0 ? 0 : (int) v;
+
+    int exp = 63 - Long.numberOfLeadingZeros(v);
+
+    if (exp > MAX_EXP)
+      return BUCKETS - 1;
+
+    return ((exp - SUB + 1) << SUB) | (int) ((v >>> (exp - SUB)) & ((1 << SUB) - 1));
+  }
+
+  // Middle of the values that land in a bucket
+  static long value(int b)
+  {
+    if (b < (1 << SUB))
+      return b;
+
+    int shift = (b >>> SUB) - 1;
+    long low = (long) ((1 << SUB) | (b & ((1 << SUB) - 1))) << shift;
+
+    return low + ((1L << shift) >>> 1);
+  }
+
+  void record(int op, long start)
+  {
+    long d = System.nanoTime() - start;
+    int stripe = (int) Thread.currentThread().getId() & MASK;
+
+    hist.incrementAndGet((stripe * OPS + op) * BUCKETS + bucket(d));
+    totals.addAndGet(stripe * OPS + op, d);
+  }
+
+  void get(long start, boolean hit)
+  {
+    record(GET, start);
+
+    if (hit)
+      hits.increment();
+    else
+      misses.increment();
+  }
+
+  void velGet(long start, int window)
+  {
+    record(VEL_GET, start);
+
+    windows.add(window);
+  }
+
+  void purge(long start, int done)
+  {
+    long d = System.nanoTime() - start;
+
+    record(PURGE, start);
+    purged.add(done);
+
+    for (long m = purgeMax.get(); d > m && ! purgeMax.compareAndSet(m, d); m = purgeMax.get())
+    {
+      // Retry
+    }
+  }
+
+  long count(int op)
+  {
+    long n = 0;
+
+    for (int s = 0; s != STRIPES; s++)
+      for (int b = 0; b != BUCKETS; b++)
+        n += hist.get((s * OPS + op) * BUCKETS + b);
+
+    return n;
+  }
+
+  double percentile(int op, double pct)
+  {
+    long[] counts = new long[BUCKETS];
+    long n = 0;
+
+    for (int s = 0; s != STRIPES; s++)
+      for (int b = 0; b != BUCKETS; b++)
+        n += counts[b] += hist.get((s * OPS + op) * BUCKETS + b);
+
+    long rank = (long) Math.ceil(n * pct / 100.0);
+    long seen = 0;
+
+    for (int b = 0; b != BUCKETS; b++)
+    {
+      seen += counts[b];
+
+      if (seen >= rank && seen > 0)
+        return value(b) / 1000.0;
+    }
+
+    return 0.0;
+  }
+
+  public double percentile(String op, double pct)
+  {
+    for (int i = 0; i != OPS; i++)
+      if (NAMES[i].equalsIgnoreCase(op))
+        return percentile(i, pct);
+
+    throw new IllegalArgumentException("Unknown op " + op);
+  }
+
+  public long getGets() { return count(GET); }
+  public long getSets() { return count(SET); }
+  public long getVelGets() { return count(VEL_GET); }
+  public long getPurges() { return count(PURGE); }
+
+  public long getHits() { return hits.sum(); }
+  public long getMisses() { return misses.sum(); }
+  public long getPurgedRecords() { return purged.sum(); }
+
+  public double getAverageWindow()
+  {
+    long n = count(VEL_GET);
+
+    return n == 0 ? 0.0 : (double) windows.sum() / n;
+  }
+
+  public double getGetP50() { return percentile(GET, 50.0); }
+  public double getGetP99() { return percentile(GET, 99.0); }
+  public double getGetP999() { return percentile(GET, 99.9); }
+  public double getSetP50() { return percentile(SET, 50.0); }
+  public double getSetP99() { return percentile(SET, 99.0); }
+  public double getSetP999() { return percentile(SET, 99.9); }
+  public double getVelGetP50() { return percentile(VEL_GET, 50.0); }
+  public double getVelGetP99() { return percentile(VEL_GET, 99.0); }
+  public double getVelGetP999() { return percentile(VEL_GET, 99.9); }
+
+  public double getPurgeMeanMillis()
+  {
+    long n = count(PURGE);
+    long t = 0;
+
+    for (int s = 0; s != STRIPES; s++)
+      t += totals.get(s * OPS + PURGE);
+
+    return n == 0 ? 0.0 : t / 1000000.0 / n;
+  }
+
+  public double getPurgeMaxMillis()
+  {
+    return purgeMax.get() / 1000000.0;
+  }
+
+  public void reset()
+  {
+    for (int i = 0; i != hist.length(); i++)
+      hist.set(i, 0L);
+    for (int i = 0; i != totals.length(); i++)
+      totals.set(i, 0L);
+
+    hits.reset();
+    misses.reset();
+    windows.reset();
+    purged.reset();
+    purgeMax.set(0L);
+  }
+
+  public String toString()
+  {
+    return getGets() + "|" + getSets() + "|" + getVelGets() + "|" + getPurges() + "|" +
+           getHits() + "|" + getMisses() + "|" + getVelGetP50() + "|" + getVelGetP99();
+  }
+
+  static void register(String nm, VelStats stats)
+  {
+    try
+    {
+      ObjectName on = new ObjectName("uk.co.inet.veltime:type=Vel,name=" + ObjectName.quote(nm));
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+
+      if (mbs.isRegistered(on))
+        mbs.unregisterMBean(on);
+
+      if (stats != null)
+        mbs.registerMBean(stats, on);
+    }
+    catch (JMException jme)
+    {
+      Vel.log("Stats registration failed", jme);
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package uk.co.inet.veltime;
+
+/**
+ *  JMX view of a store's operation stats, latencies are in microseconds
+ */
+public interface VelStatsMBean
+{
+  long getGets();
+  long getSets();
+  long getVelGets();
+  long getPurges();
+
+  long getHits();
+  long getMisses();
+  double getAverageWindow();
+  long getPurgedRecords();
+
+  double getGetP50();
+  double getGetP99();
+  double getGetP999();
+  double getSetP50();
+  double getSetP99();
+  double getSetP999();
+  double getVelGetP50();
+  double getVelGetP99();
+  double getVelGetP999();
+  double getPurgeMeanMillis();
+  double getPurgeMaxMillis();
+
+  /**
+   *  Latency percentile of an operation
+   *
+   * @param  op       get, set, velGet or purge
+   * @param  pct      The percentile, 0 to 100
+   * @return        The latency in microseconds
+   */
+  double percentile(String op, double pct);
+
+  void reset();
+}
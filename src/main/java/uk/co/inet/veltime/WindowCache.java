@@ -0,0 +1,302 @@
+package uk.co.inet.veltime;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ *  A bounded cache of decoded windows by key, so hot keys skip the copy
+ *  out of an off heap store and the decode. Keys are split over stripes,
+ *  each locked on its own.
+ *
+ *  Each stripe works like W-TinyLFU. New keys go in a small LRU window,
+ *  and a key pushed out of the window only gets into the main LRU if it
+ *  has been used more often than the main LRU's next victim, going by a
+ *  count-min sketch of recent use that is halved every so often. So a scan
+ *  of once only keys never pushes out the hot ones.
+ *
+ *  Windows are handed out as copies and the cache keeps its own, because
+ *  the velocity methods change the window they get in place.
+ */
+class WindowCache
+{
+  private static final int STRIPES = 16;
+  private static final int OVERHEAD = 96;   // bytes of map entry, node and boxed key
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final int capacity;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  private static final class Node
+  {
+    final Base base;
+    final int bytes;
+
+    Node(Base base, int bytes)
+    {
+      this.base = base;
+      this.bytes = bytes;
+    }
+  }
+
+  private static final class Stripe
+  {
+    final LinkedHashMap<Long, Node> window = new LinkedHashMap<>(16, 0.75f, true);
+    final LinkedHashMap<Long, Node> main = new LinkedHashMap<>(16, 0.75f, true);
+    final int windowMax;
+    final int mainMax;
+    final long[] sketch;    // 16 four bit counters a word
+    final int mask;
+    int added;
+    long bytes;
+
+    Stripe(int cap)
+    {
+      windowMax = Math.max(1, cap / 100);
+      mainMax = Math.max(1, cap - windowMax);
+      sketch = new long[Integer.highestOneBit(Math.max(16, cap) * 2 - 1) / 4];
+      mask = sketch.length - 1;
+    }
+
+    private static long mix(long key, int i)
+    {
+      key = (key + i) * 0x9E3779B97F4A7C15L;
+
+      return key ^ (key >>> 29);
+    }
+
+    // Count a use, in 4 rows of the sketch, halving all after 10 a slot
+    void touch(long key)
+    {
+      for (int i = 0; i != 4; i++)
+      {
+        long h = mix(key, i);
+        int w = (int) h & mask;
+        int shift = ((int) (h >>> 32) & 15) << 2;
+
+        if (((sketch[w] >>> shift) & 15) != 15)
+          sketch[w] += 1L << shift;
+      }
+
+      if (++added >= sketch.length * 10)
+      {
+        for (int i = 0; i != sketch.length; i++)
+          sketch[i] = (sketch[i] >>> 1) & 0x7777777777777777L;
+
+        added /= 2;
+      }
+    }
+
+    int frequency(long key)
+    {
+      int f = 15;
+
+      for (int i = 0; i != 4; i++)
+      {
+        long h = mix(key, i);
+        int shift = ((int) (h >>> 32) & 15) << 2;
+
+        f = Math.min(f, (int) (sketch[(int) h & mask] >>> shift) & 15);
+      }
+
+      return f;
+    }
+
+    Node get(long key)
+    {
+      touch(key);
+
+      Node n = main.get(key);
+
+      return n != null ? n : window.get(key);
+    }
+
+    void put(long key, Node n)
+    {
+      Node old = main.get(key);
+
+      if (old != null)
+      {
+        main.put(key, n);
+        bytes += n.bytes - old.bytes;
+
+        return;
+      }
+
+      old = window.put(key, n);
+      bytes += n.bytes - (old != null ? old.bytes : 0);
+
+      if (window.size() > windowMax)
+      {
+        Iterator<Map.Entry<Long, Node>> it = window.entrySet().iterator();
+        Map.Entry<Long, Node> cand = it.next();
+
+        it.remove();
+
+        if (main.size() < mainMax)
+          main.put(cand.getKey(), cand.getValue());
+        else
+        {
+          Iterator<Map.Entry<Long, Node>> mi = main.entrySet().iterator();
+          Map.Entry<Long, Node> victim = mi.next();
+
+          // Keep whichever has been used more
+          if (frequency(cand.getKey()) > frequency(victim.getKey()))
+          {
+            mi.remove();
+            bytes -= victim.getValue().bytes;
+            main.put(cand.getKey(), cand.getValue());
+          }
+          else
+            bytes -= cand.getValue().bytes;
+        }
+      }
+    }
+
+    void remove(long key)
+    {
+      Node n = main.remove(key);
+
+      if (n == null)
+        n = window.remove(key);
+
+      if (n != null)
+        bytes -= n.bytes;
+    }
+
+    void clear()
+    {
+      window.clear();
+      main.clear();
+      bytes = 0;
+    }
+  }
+
+  /**
+   * @param  capacity The windows held over all stripes
+   */
+  WindowCache(int capacity)
+  {
+    this.capacity = capacity;
+
+    for (int i = 0; i != STRIPES; i++)
+      stripes[i] = new Stripe(Math.max(1, capacity / STRIPES));
+  }
+
+  private Stripe stripe(long key)
+  {
+    return stripes[(int) (key ^ (key >>> 32) ^ (key >>> 47)) & (STRIPES - 1)];
+  }
+
+  /**
+   * @return        A copy of the cached window, null if not cached
+   */
+  Base get(long key)
+  {
+    Stripe s = stripe(key);
+    Node n;
+
+    synchronized (s)
+    {
+      n = s.get(key);
+    }
+
+    if (n == null)
+    {
+      misses.increment();
+
+      return null;
+    }
+
+    hits.increment();
+
+    return Utils.copyOf(n.base);
+  }
+
+  /**
+   *  Cache a window, which the caller must not change afterwards
+   *
+   * @param  bytes    The window's encoded size, for the memory estimate
+   */
+  void put(long key, Base base, int bytes)
+  {
+    Stripe s = stripe(key);
+
+    synchronized (s)
+    {
+      s.put(key, new Node(base, bytes + OVERHEAD));
+    }
+  }
+
+  void remove(long key)
+  {
+    Stripe s = stripe(key);
+
+    synchronized (s)
+    {
+      s.remove(key);
+    }
+  }
+
+  void clear()
+  {
+    for (Stripe s : stripes)
+      synchronized (s)
+      {
+        s.clear();
+      }
+  }
+
+  int capacity()
+  {
+    return capacity;
+  }
+
+  int size()
+  {
+    int n = 0;
+
+    for (Stripe s : stripes)
+      synchronized (s)
+      {
+        n += s.window.size() + s.main.size();
+      }
+
+    return n;
+  }
+
+  /**
+   * @return        Estimated heap bytes of the cached windows
+   */
+  long bytes()
+  {
+    long n = 0;
+
+    for (Stripe s : stripes)
+      synchronized (s)
+      {
+        n += s.bytes;
+      }
+
+    return n;
+  }
+
+  double hitRatio()
+  {
+    long h = hits.sum();
+    long t = h + misses.sum();
+
+    return t == 0 ? 0.0 : (double) h / t;
+  }
+
+  void resetStats()
+  {
+    hits.reset();
+    misses.reset();
+  }
+
+  public String toString()
+  {
+    return "cache " + size() + "/" + capacity + ", hit ratio " + hitRatio() + ", " + bytes() / 1024 + " KB";
+  }
+}
@@ -0,0 +1,51 @@
+package uk.co.inet.veltime;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ *  The JDK 17 version of the little endian primitives, each read or write
+ *  is a single bounds checked word access the JIT turns into one load or
+ *  store, rather than four byte accesses and shifts.
+ */
+final class Bytes
+{
+  private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+
+  private Bytes()
+  {
+  }
+
+  static String impl()
+  {
+    return "VarHandle";
+  }
+
+  static int getInt(byte[] b, int off)
+  {
+    return (int) INT.get(b, off);
+  }
+
+  static long getLong(byte[] b, int off)
+  {
+    return (long) LONG.get(b, off);
+  }
+
+  static void putInt(byte[] b, int off, int v)
+  {
+    INT.set(b, off, v);
+  }
+
+  static int sum(byte[] b, int off, int stride, int n)
+  {
+    int sum = 0;
+
+    for (int i = 0; i != n; i++, off += stride)
+      sum += (int) INT.get(b, off);
+
+    return sum;
+  }
+}
@@ -0,0 +1,93 @@
+package uk.co.inet.veltime;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit test for the byte codec under the windows and key hashing.
+ */
+public class BytesTest
+{
+  /**
+   * Windows encode and decode as they were, and sums match the items
+   */
+  @Test
+  public void testCodec()
+  {
+    Item[] items = new Item[10];
+
+    for (int i = 0; i != items.length; i++)
+      items[i] = new Item(25000000 + i, i * 100 - 300);
+
+    byte[] bs = Utils.fromBase(new Items(items));
+    Items back = (Items) Utils.toBase(bs);
+
+    for (int i = 0; i != items.length; i++)
+    {
+      assertEquals(items[i].ts, back.items[i].ts);
+      assertEquals(items[i].item, back.items[i].item);
+      assertEquals(items[i].item, Bytes.getInt(bs, i * 8 + 4));
+    }
+
+    assertEquals(4500 - 3000, Bytes.sum(bs, 4, 8, 10));
+    assertEquals(((long) Bytes.getInt(bs, 4) << 32) | (Bytes.getInt(bs, 0) & 0xFFFFFFFFL), Bytes.getLong(bs, 0));
+  }
+
+  /**
+   * Time the codecs and key hashing. The classes directory only has the
+   * Java 8 codec, so to time the JDK 17 one run this with the packaged jar
+   * first on the class path.
+   */
+  @Test
+  public void testSpeed()
+  {
+    int n = 1000000;
+    Item[] items = new Item[10];
+    String[] keys = new String[1024];
+    long sink = 0;
+
+    for (int i = 0; i != items.length; i++)
+      items[i] = new Item(25000000 + i, i * 100);
+
+    for (int i = 0; i != keys.length; i++)
+      keys[i] = "customer:" + i + ":card:4929" + (1000000000L + i * 7919L);
+
+    byte[] bs = Utils.fromBase(new Items(items));
+
+    for (int r = 0; r != 3; r++)
+    {
+      long st = System.nanoTime();
+
+      for (int i = 0; i != n; i++)
+        sink += ((Items) Utils.toBase(bs)).items[i % 10].item;
+
+      long decode = System.nanoTime() - st;
+
+      st = System.nanoTime();
+
+      for (int i = 0; i != n; i++)
+        sink += Utils.fromBase(new Items(items)).length;
+
+      long encode = System.nanoTime() - st;
+
+      st = System.nanoTime();
+
+      for (int i = 0; i != n; i++)
+        sink += Vel.vhash(keys[i & 1023]);
+
+      long hash = System.nanoTime() - st;
+
+      st = System.nanoTime();
+
+      for (int i = 0; i != n; i++)
+        sink += Bytes.sum(bs, 4, 8, 1 + i % 10);
+
+      long sum = System.nanoTime() - st;
+
+      System.err.printf("%s on %s: decode %d ns, encode %d ns, hash %d ns, sum %d ns%n", Bytes.impl(),
+                        System.getProperty("java.version"), decode / n, encode / n, hash / n, sum / n);
+    }
+
+    assertTrue(sink != 0);
+  }
+}
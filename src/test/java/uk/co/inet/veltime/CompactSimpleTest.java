@@ -1,5 +1,6 @@
 package uk.co.inet.veltime;
 
+import java.io.*;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
@@ -129,4 +130,38 @@ public class CompactSimpleTest
       MemoryVel.context("cvel").setMax(max);
     }
   }
+
+  /**
+   * Cursor walks every window once and exports them for import
+   */
+  @Test
+  public void testCursor()
+    throws Exception
+  {
+    Vel vel = CompactVel.context("ccurvel");
+
+    for (int i = 0; i != 1000; i++)
+      vel.velCount("ccurtest" + (i % 100), 1, "2017-01-01 12:12:00");
+
+    assertEquals(100, vel.stream(false).count());
+    assertEquals(1000, vel.stream(true).mapToInt(VelCursor::sum).sum());
+
+    StringWriter sw = new StringWriter();
+
+    assertEquals(100, vel.export(sw));
+
+    File f = File.createTempFile("ccur", ".txt");
+
+    try (Writer w = new FileWriter(f))
+    {
+      w.write(sw.toString());
+    }
+
+    Vel copy = MemoryVel.context("ccurcopy");
+
+    assertEquals(100, copy.importRecs(f.getPath()));
+    assertEquals(10, copy.getValue("ccurtest7", "2017-01-01 12:12:00"), 0.0);
+
+    f.delete();
+  }
 }
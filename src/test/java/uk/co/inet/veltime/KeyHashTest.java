@@ -0,0 +1,90 @@
+package uk.co.inet.veltime;
+
+import static org.junit.Assert.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.junit.Test;
+
+/**
+ * Unit test for key hashing and the collision audit.
+ */
+public class KeyHashTest
+{
+  /**
+   * Known XXH64 values, and chars hash the same as their UTF-16LE bytes
+   */
+  @Test
+  public void testHash64()
+  {
+    assertEquals(0xEF46DB3751D8E999L, Vel.hash64(new byte[0], 0, 0, 0L));
+    assertEquals(0xD24EC4F1A98C6E5BL, Vel.hash64("a".getBytes(StandardCharsets.UTF_8), 0, 1, 0L));
+    assertEquals(0x44BC2CF5AD770999L, Vel.hash64("abc".getBytes(StandardCharsets.UTF_8), 0, 3, 0L));
+
+    Random rnd = new Random(3);
+
+    for (int len = 0; len != 100; len++)
+    {
+      StringBuilder sb = new StringBuilder();
+
+      for (int i = 0; i != len; i++)
+        sb.append(rnd.nextBoolean() ? (char) ('a' + rnd.nextInt(26)) : (char) rnd.nextInt(0xD800));
+
+      String s = sb.toString();
+      byte[] b = s.getBytes(StandardCharsets.UTF_16LE);
+
+      assertEquals(Vel.hash64(b, 0, b.length, 0L), Vel.hash64(s, 0L));
+      assertEquals(Vel.hash64(b, 0, b.length, 7L), Vel.hash64(s, 7L));
+    }
+
+    assertEquals(0L, Vel.vhash(""));
+    assertNotEquals(Vel.vhash("card1234"), Vel.vhash("card1243"));
+  }
+
+  /**
+   * Stores keep the hash their data was written with
+   */
+  @Test
+  public void testLegacy()
+  {
+    Vel vel = new MemoryVel("hashtest");
+
+    assertEquals("xxh64", vel.getHash());
+    assertEquals(Vel.vhash("k1"), vel.keyHash("k1"));
+
+    vel.hash = "legacy";
+
+    assertEquals(Vel.vhash32("k1"), vel.keyHash("k1"));
+  }
+
+  /**
+   * The audit counts distinct items sharing a key
+   */
+  @Test
+  public void testAudit()
+  {
+    KeyAudit ka = new KeyAudit(1);
+
+    ka.sample(42L, "first");
+    ka.sample(42L, "first");
+    ka.sample(43L, "other");
+
+    assertEquals(2, ka.getSampled());
+    assertEquals(0, ka.getCollisions());
+
+    ka.sample(42L, "second");
+    ka.sample(42L, "third");
+
+    assertEquals(1, ka.getCollisions());
+    assertEquals(0.5, ka.getCollisionRate(), 1e-9);
+    assertEquals(1, ka.getExamples().size());
+
+    // Sampling by key checks every item whose key is sampled
+    Vel vel = new MemoryVel("audittest").setKeyAudit(16);
+
+    for (int i = 0; i != 100000; i++)
+      vel.velCount("audit" + i, 60, 1000);
+
+    assertTrue(vel.getKeyAudit().getSampled() > 100000 / 32);
+    assertEquals(0, vel.getKeyAudit().getCollisions());
+  }
+}
@@ -0,0 +1,92 @@
+package uk.co.inet.veltime;
+
+import static org.junit.Assert.*;
+import java.util.*;
+import java.util.stream.*;
+import org.junit.Test;
+
+/**
+ * Unit test for the long keyed hash map.
+ */
+public class LongHashMapTest
+{
+  /**
+   * Puts, gets and removes while resizing match a HashMap
+   */
+  @Test
+  public void testResize()
+  {
+    LongHashMap<Long> lhm = new LongHashMap<>(16);
+    Map<Long, Long> hm = new HashMap<>();
+    Random rnd = new Random(7);
+
+    for (int i = 0; i != 200000; i++)
+    {
+      long key = rnd.nextInt(50000);
+
+      switch (rnd.nextInt(4))
+      {
+        case 0 :
+          assertEquals(hm.remove(key), lhm.remove(key));
+          break;
+        case 1 :
+          assertEquals(hm.get(key), lhm.get(key));
+          break;
+        default :
+          assertEquals(hm.put(key, (long) i), lhm.put(key, (long) i));
+      }
+
+      assertEquals(hm.size(), lhm.size());
+    }
+
+    for (Map.Entry<Long, Long> e : hm.entrySet())
+      assertEquals(e.getValue(), lhm.get(e.getKey()));
+
+    // A cursor sees every entry once, whether or not a resize is under way
+    LongHashMap<Base> bases = new LongHashMap<>(16);
+
+    for (int i = 0; i != 1000; i++)
+    {
+      bases.put(i, new Item(i, 1));
+
+      Set<Long> keys = StreamSupport.stream(new VelCursor.MapSpliterator<>(bases), true)
+                                    .map(VelCursor::key).collect(Collectors.toSet());
+
+      assertEquals(i + 1, keys.size());
+    }
+
+    int n = 0;
+
+    for (Iterator<Long> it = lhm.valuesIterator(); it.hasNext(); it.next())
+      n++;
+
+    assertEquals(hm.size(), n);
+  }
+
+  /**
+   * No single put pays for relinking the whole table, prints the latency tail
+   */
+  @Test
+  public void testPutLatency()
+  {
+    int n = 4000000;
+    long[] lat = new long[n];
+    LongHashMap<Boolean> lhm = new LongHashMap<>(16);
+
+    for (int i = 0; i != n; i++)
+    {
+      long st = System.nanoTime();
+
+      lhm.put(i * 0x9E3779B97F4A7C15L, Boolean.TRUE);
+
+      lat[i] = System.nanoTime() - st;
+    }
+
+    assertEquals(n, lhm.size());
+
+    Arrays.sort(lat);
+
+    System.err.printf("LongHashMap %d puts, p50 %d ns, p999 %d ns, p9999 %d ns, max %d us%n",
+                      n, lat[n / 2], lat[(int) (n * 0.999)], lat[(int) (n * 0.9999)], lat[n - 1] / 1000);
+  }
+}
@@ -1,9 +1,13 @@
 package uk.co.inet.veltime;
 
+import java.lang.management.ManagementFactory;
 import java.util.Date;
+import java.util.List;
+import java.util.Random;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
+import javax.management.ObjectName;
 
 /**
  * Unit test for simple App.
@@ -158,4 +162,510 @@ System.err.println("cnt = " + cnt);
       MemoryVel.context("mvel").setMax(max);
     }
   }
+
+  // Sum of the hits still in the window at now
+  private static int live(Vel vel, String key, int now)
+  {
+    Base base = vel.get(Vel.vhash(key));
+    Item[] items = base instanceof Item ? new Item[] { (Item) base } : ((Items) base).items;
+    int sum = 0;
+
+    for (Item i : items)
+      if (i.ts >= now)
+        sum += i.item;
+
+    return sum;
+  }
+
+  /**
+   * Merging windows counted on two nodes gives the sequential result,
+   * in any order and however many times they are merged
+   */
+  @Test
+  public void testMergeNodes()
+  {
+    Random rnd = new Random(26);
+
+    for (int r = 0; r != 20; r++)
+    {
+      Vel seq = MemoryVel.context("mseq" + r).setMax(100);
+      Vel a = MemoryVel.context("mnodea" + r).setMax(100).setNode(1);
+      Vel b = MemoryVel.context("mnodeb" + r).setMax(100).setNode(2);
+      int now = Vel.getCurr("2017-01-01 12:00:00");
+
+      for (int e = 0; e != 200; e++)
+      {
+        String key = "memmerge" + rnd.nextInt(3);
+
+        now += rnd.nextInt(2);
+
+        seq.velCount(key, 10, now);
+        (rnd.nextBoolean() ? a : b).velCount(key, 10, now);
+      }
+
+      Vel ab = a.merge("MemoryVel", "mmergeab" + r);
+
+      b.merge("MemoryVel", "mmergeab" + r);
+
+      Vel ba = b.merge("CompactVel", "mmergeba" + r);
+
+      a.merge("CompactVel", "mmergeba" + r);
+      b.merge("CompactVel", "mmergeba" + r);
+      a.merge("CompactVel", "mmergeba" + r);
+
+      for (int k = 0; k != 3; k++)
+      {
+        String key = "memmerge" + k;
+        int expected = live(seq, key, now);
+
+        assertEquals(expected, live(ab, key, now));
+        assertEquals(expected, live(ba, key, now));
+      }
+    }
+  }
+
+  /**
+   * Stats count operations and are visible over JMX
+   */
+  @Test
+  public void testStats()
+    throws Exception
+  {
+    Vel vel = MemoryVel.context("mstatvel");
+
+    for (int i = 0; i != 100; i++)
+      vel.velCount("memstat" + (i % 10), 1, "2017-01-01 12:12:00");
+
+    VelStats st = vel.getStats();
+
+    assertEquals(100, st.getGets());
+    assertEquals(100, st.getSets());
+    assertEquals(100, st.getVelGets());
+    assertEquals(90, st.getHits());
+    assertEquals(10, st.getMisses());
+    assertTrue(st.getVelGetP99() >= st.getVelGetP50());
+
+    ObjectName on = new ObjectName("uk.co.inet.veltime:type=Vel,name=\"mstatvel\"");
+
+    assertEquals(100L, ManagementFactory.getPlatformMBeanServer().getAttribute(on, "Gets"));
+
+    vel.setStats(false);
+
+    vel.velCount("memstat0", 1, "2017-01-01 12:12:00");
+
+    assertNull(vel.getStats());
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(on));
+  }
+
+  /**
+   * Token bucket rate limiting, refill, purge and all or nothing batches
+   */
+  @Test
+  public void testTryAcquire()
+  {
+    Vel vel = MemoryVel.context("mbucket");
+    long now = 1483272720000L;     // 2017-01-01 12:12:00
+
+    for (int i = 0; i != 5; i++)
+      assertTrue(vel.tryAcquire("mbucket1", 1, 2.0, 5, now));
+
+    assertFalse(vel.tryAcquire("mbucket1", 1, 2.0, 5, now));
+    assertFalse(vel.tryAcquire("mbucket1", 2, 2.0, 5, now + 500));
+    assertTrue(vel.tryAcquire("mbucket1", 1, 2.0, 5, now + 500));
+    assertTrue(vel.tryAcquire("mbucket1", 2, 2.0, 5, now + 1500));
+
+    // Both keys or neither
+    assertTrue(vel.tryAcquire("mbucket2", 4, 1.0, 5, now));
+    assertFalse(vel.tryAcquireAll(new String[] { "mbucket3", "mbucket2" }, 2, 1.0, 5, now));
+    assertTrue(vel.tryAcquire("mbucket3", 5, 1.0, 5, now));
+    assertArrayEquals(new boolean[] { false, true }, vel.tryAcquire(new String[] { "mbucket3", "mbucket4" }, 1, 1.0, 5, now));
+
+    // Full again after 5 s so purged in the minute after that
+    assertEquals(0, vel.purgeDb((int) (now / 60000)));
+    assertEquals(4, vel.purgeDb((int) (now / 60000) + 2));
+    assertEquals(0, vel.recCount());
+
+    // Buckets travel with copies
+    vel.tryAcquire("mbucket5", 3, 1.0, 5, now);
+
+    Vel copy = vel.copy("CompactVel", "mbucketcopy", false);
+
+    assertFalse(copy.tryAcquire("mbucket5", 3, 1.0, 5, now));
+    assertTrue(copy.tryAcquire("mbucket5", 2, 1.0, 5, now));
+
+    // Asked every ms, a slow bucket still fills at its rate
+    for (double rate : new double[] { 0.5, 1.5 })
+    {
+      String key = "mbucketslow" + rate;
+      int got = 0;
+
+      while (vel.tryAcquire(key, 1, rate, 1, now))
+        ;
+
+      for (int ms = 1; ms <= 10100; ms++)
+        if (vel.tryAcquire(key, 1, rate, 1, now + ms))
+          got++;
+
+      assertEquals((int) (10 * rate), got);
+    }
+  }
+
+  /**
+   * Decayed counters halve every half life and merge across nodes
+   */
+  @Test
+  public void testDecay()
+  {
+    Vel vel = MemoryVel.context("mdecay1").setNode(1);
+    Vel other = MemoryVel.context("mdecay2").setNode(2);
+    long now = 1483272720000L;
+    int[] lives = { 60, 3600 };
+    double[] out = new double[2];
+
+    vel.velDecay("mdecay", 10.0, lives, now, out);
+
+    assertEquals(10.0, out[0], 1e-9);
+    assertEquals(5.0, vel.getDecay("mdecay", 60, now + 60000), 1e-9);
+    assertEquals(10.0, vel.getDecay("mdecay", 60, now), 1e-9);
+
+    vel.velDecay("mdecay", 5.0, lives, now + 60000, out);
+
+    assertEquals(10.0, out[0], 1e-9);
+    assertEquals(10.0 * Math.pow(2, -1.0 / 60) + 5.0, out[1], 1e-9);
+    assertEquals(0.0, vel.getDecay("mdecay", 120, now), 0.0);
+
+    other.velDecay("mdecay", 4.0, lives, now + 60000, null);
+
+    // Merging is idempotent and goes through the encoded form
+    Vel both = vel.copy("CompactVel", "mdecayboth", false);
+
+    other.copy("CompactVel", "mdecayboth", true);
+    other.copy("CompactVel", "mdecayboth", true);
+    vel.copy("CompactVel", "mdecayboth", true);
+
+    assertEquals(14.0, both.getDecay("mdecay", 60, now + 60000), 1e-9);
+    assertEquals(7.0, both.getDecay("mdecay", 60, now + 120000), 1e-9);
+
+    // Gone once decayed to nothing
+    assertEquals(0, vel.purgeDb((int) (now / 60000) + 60));
+    assertEquals(1, vel.purgeDb((int) (now / 60000) + 20 * 60 + 3));
+  }
+
+  @Test
+  public void testOutlier()
+  {
+    Vel vel = MemoryVel.context("moutlier").setVelDur(60);
+    int now = 24721212;
+
+    // Nothing is an outlier until the key has some history
+    for (int i = 0; i != 100; i++)
+      assertFalse(vel.isOutlier("moutlier", 10.0 + i % 10, 99.0, now));
+
+    assertFalse(vel.isOutlier("moutlier", 19.0, 99.0, now));
+    assertTrue(vel.isOutlier("moutlier", 500.0, 99.0, now));
+    assertFalse(vel.isOutlier("moutlier", 15.0, 50.0, now));
+
+    double q = vel.getQuantile("moutlier", 50.0, now);
+
+    assertTrue(q > 12.0 && q <= 15.0);
+
+    // One span on the history is still there, two on it is gone
+    assertTrue(vel.isOutlier("moutlier", 500.0, 95.0, now + 60));
+    assertFalse(vel.isOutlier("moutlier", 500.0, 95.0, now + 180));
+    assertEquals(-1.0, vel.getQuantile("nooutlier", 50.0, now), 0.0);
+
+    // Survives the encoded form
+    Vel copy = vel.copy("CompactVel", "moutliercopy", false);
+
+    assertEquals(vel.getQuantile("moutlier", 50.0, now + 180), copy.getQuantile("moutlier", 50.0, now + 180), 0.0);
+    assertEquals(1, vel.purgeDb(now + 180 + 120 + 1));
+
+    // Bounded however many amounts, and the cost of an update
+    Random rnd = new Random(1);
+    int keys = 10000;
+    int n = 1000000;
+    long t = System.nanoTime();
+
+    for (int i = 0; i != n; i++)
+      vel.isOutlier("mo" + (i % keys), Math.exp(rnd.nextGaussian() * 2 + 4), 99.0, now + i / 100000);
+
+    t = System.nanoTime() - t;
+
+    System.err.printf("isOutlier %d keys %d updates %.0f ns/update %.0f updates/s%n", keys, n, (double) t / n, n * 1e9 / t);
+
+    Base base = ((MemoryVel) vel).get(vel.keyHash("mo1"));
+
+    assertTrue(Utils.fromBase(base).length <= 20 + 8 * Sketch.BUCKETS);
+  }
+
+  @Test
+  public void testTopK()
+  {
+    Vel vel = MemoryVel.context("mtopk").setTopK(16, 60000);
+    int now = 24721212;
+
+    // Two hot keys among many cold ones
+    for (int i = 0; i != 5000; i++)
+    {
+      vel.velCount("cold" + i, null, 60, now);
+
+      if (i % 5 == 0)
+        vel.velCount("hot1", null, 60, now);
+      if (i % 10 == 0)
+        vel.velValue("hot2", null, 1000.0, 60, now);
+    }
+
+    List<HeavyHitters.Hit> top = vel.topK(2);
+
+    assertEquals(vel.keyHash("hot1"), top.get(0).key);
+    assertEquals(vel.keyHash("hot2"), top.get(1).key);
+    assertTrue(top.get(0).count >= 1000 && top.get(0).count - top.get(0).error <= 1000);
+    assertTrue(top.get(1).count >= 500);
+    assertEquals(vel.keyHash("hot2"), vel.topValues(1).get(0).key);
+    assertEquals(500 * Vel.toFix(1000.0), vel.topValues(1).get(0).count);
+    assertTrue(vel.topK(100).size() <= 16);
+
+    assertTrue(vel.setTopK(0, 0).topK(10).isEmpty());
+  }
+
+  @Test
+  public void testQuery()
+  {
+    Vel vel = MemoryVel.context("mquery");
+    int now = 24721212;
+
+    vel.velValue("mquery", null, 5.0, 10, now);
+    vel.velValue("mquery", null, 7.0, 10, now + 5);
+    vel.velValue("mquery", null, 7.0, 10, now + 6);
+
+    String before = vel.show("mquery");
+
+    assertEquals(3, vel.getCount("mquery", null, now));
+    assertEquals(1900, vel.getValue("mquery", null, now), 0.0);
+    assertEquals(2, vel.getCount("mquery", null, now + 11));
+    assertEquals(1400, vel.getValue("mquery", null, now + 11), 0.0);
+    assertEquals(1, vel.getCount("mquery", null, now + 16));
+    assertEquals(0, vel.getCount("mquery", null, now + 17));
+    assertEquals(0, vel.getValue("mquery", null, now + 17), 0.0);
+
+    // Reads leave the window as it was
+    assertEquals(before, vel.show("mquery"));
+
+    vel.velChange("mquerychg", null, "a", null, 10, now);
+    vel.velChange("mquerychg", null, "b", null, 10, now + 5);
+
+    assertEquals(1, vel.getChange("mquerychg", null, "a", null, now));
+    assertEquals(0, vel.getChange("mquerychg", null, "a", null, now + 11));
+  }
+
+  /**
+   * Stores come from factories by type, configured, and handles reach them
+   * without the lookup by name
+   */
+  @Test
+  public void testFactory()
+  {
+    assertTrue(Vel.getTypes().containsAll(java.util.Arrays.asList("MemoryVel", "CompactVel", "PersistentVel")));
+
+    Vel vel = Vel.open(new MemoryVel.Config("mfactory").setOffHeap(true).setMax(3).setVelDur(5));
+
+    assertEquals(3, vel.getMax());
+    assertSame(vel, MemoryVel.context("mfactory"));
+    assertSame(vel, Vel.open(new MemoryVel.Config("mfactory").setMax(7)));
+    assertNull(Vel.open(new VelConfig("NoSuchVel", "mnosuch")));
+    assertNull(Vel.context("mnosuch"));
+
+    Vel.register(new MemoryVel.Factory()
+    {
+      public String type()
+      {
+        return "TestVel";
+      }
+    });
+
+    assertNotNull(Vel.handle("mtestvel", "TestVel"));
+
+    VelHandle h = Vel.handle("mfactory");
+    int now = 24721212;
+
+    assertEquals(1, h.velCount("mfactorykey", 10, now));
+    assertEquals(2, h.velCount("mfactorykey", 10, now + 1));
+    assertEquals(2, h.getCount("mfactorykey", now + 2));
+    assertEquals(2, vel.getCount("mfactorykey", now + 2));
+
+    int n = 2000000;
+    long t = System.nanoTime();
+
+    for (int i = 0; i != n; i++)
+      MemoryVel.context("mfactory").getCount("mfactorykey", now);
+
+    long byName = System.nanoTime() - t;
+
+    t = System.nanoTime();
+
+    for (int i = 0; i != n; i++)
+      h.getCount("mfactorykey", now);
+
+    System.err.printf("getCount by name %d ns, by handle %d ns%n", byName / n, (System.nanoTime() - t) / n);
+  }
+
+  /**
+   * Count, amount and distinct values of one key from one window
+   */
+  @Test
+  public void testMetrics()
+  {
+    int now = 24721212;
+
+    for (Vel vel : new Vel[] { MemoryVel.context("mmetrics"), CompactVel.context("cmetrics") })
+    {
+      vel.velMetrics("card1", 10.0, "shopA", 10, now);
+      vel.velMetrics("card1", 5.5, "shopA", 10, now);
+      vel.velMetrics("card1", 2.0, "shopB", 10, now + 3);
+
+      VelMetrics m = vel.velMetrics("card1", 1.0, null, 10, now + 4);
+
+      assertEquals(4, m.count);
+      assertEquals(18.5, m.amount, 0.001);
+      assertEquals(2, m.distinct);
+
+      // The first two expire first, shopB is left
+      m = vel.getMetrics("card1", now + 11);
+
+      assertEquals(2, m.count);
+      assertEquals(3.0, m.amount, 0.001);
+      assertEquals(1, m.distinct);
+      assertEquals(0, vel.getMetrics("card1", now + 15).count);
+      assertEquals(0, vel.getMetrics("nocard", now).count);
+    }
+
+    // Through the encoding and a join
+    Vel vel = MemoryVel.context("mmetrics");
+    Metrics a = (Metrics) Utils.copyOf(vel.get(vel.keyHash("card1")));
+    Metrics b = (Metrics) Utils.toBase(Utils.fromBase(a));
+
+    assertEquals(0, a.compareTo(b));
+
+    b.add(now + 5, now + 15, 100, Metrics.hash("shopC"), 0, 10);
+
+    Metrics j = (Metrics) a.join(b);
+
+    assertEquals(0, j.compareTo(b.join(a)));
+    assertEquals(0, j.compareTo(j.join(j)));
+    assertEquals(3, j.get(now + 5).distinct);
+
+    // Two nodes counting the same slot add up
+    Metrics n1 = Metrics.of(4);
+    Metrics n2 = Metrics.of(4);
+
+    n1.add(now, now + 10, 100, Metrics.hash("shopA"), 1, 10);
+    n1.add(now, now + 10, 100, Metrics.hash("shopA"), 1, 10);
+    n2.add(now, now + 10, 250, Metrics.hash("shopA"), 2, 10);
+
+    Metrics n12 = (Metrics) n1.join(n2);
+
+    assertEquals(3, n12.get(now).count);
+    assertEquals(4.5, n12.get(now).amount, 0.001);
+    assertEquals(1, n12.get(now).distinct);
+    assertEquals(0, n12.compareTo(n2.join(n1)));
+    assertEquals(0, n12.compareTo(n12.join(n1)));
+
+    n12.add(now, now + 10, 100, Metrics.hash("shopA"), 2, 10);
+
+    assertEquals(4, ((Metrics) n12.join(n1)).get(now).count);
+
+    // The oldest slots go beyond max
+    vel.setMax(3);
+
+    for (int i = 0; i != 10; i++)
+      vel.velMetrics("card2", 1.0, "shop" + i, 60, now + i);
+
+    assertEquals(3, vel.getMetrics("card2", now + 9).count);
+    assertEquals(3, vel.getMetrics("card2", now + 9).distinct);
+
+    vel.setMax(10);
+
+    int n = 200000;
+    long t = System.nanoTime();
+
+    for (int i = 0; i != n; i++)
+    {
+      vel.velCount("card3" + (i & 1023), 60, now);
+      vel.velValue("card3" + (i & 1023) + "|amt", 1.0, 60, now);
+      vel.velChange("card3" + (i & 1023), null, "shop" + (i & 7), 60, now);
+    }
+
+    long three = System.nanoTime() - t;
+
+    t = System.nanoTime();
+
+    for (int i = 0; i != n; i++)
+      vel.velMetrics("card4" + (i & 1023), 1.0, "shop" + (i & 7), 60, now);
+
+    System.err.printf("Three windows %d ns, one multi metric window %d ns%n", three / n, (System.nanoTime() - t) / n);
+  }
+
+  // The running sum of a window matches its items
+  private static void checkSum(Vel vel, String key)
+  {
+    Base base = vel.get(Vel.vhash(key));
+
+    if (base instanceof Items)
+    {
+      int sum = 0;
+
+      for (Item i : ((Items) base).items)
+        sum += i.item;
+
+      assertEquals(sum, ((Items) base).sum);
+    }
+  }
+
+  /**
+   * Windows keep a running sum through adds, expiry, merges and encodings
+   */
+  @Test
+  public void testRunningSum()
+  {
+    Random rnd = new Random(49);
+    Vel a = MemoryVel.context("msuma").setMax(100).setNode(1);
+    Vel b = CompactVel.context("csumb").setMax(100).setNode(2);
+    int now = Vel.getCurr("2017-01-01 12:00:00");
+
+    for (int e = 0; e != 20000; e++)
+    {
+      String key = "memsum" + rnd.nextInt(5);
+      Vel vel = rnd.nextBoolean() ? a : b;
+
+      now += rnd.nextInt(3);
+
+      int v = rnd.nextInt(1000);
+      vel.velValue(key, null, v, 1 + rnd.nextInt(120), now);
+
+      checkSum(vel, key);
+
+      if (rnd.nextInt(100) == 0)
+        vel.setMax(1 + rnd.nextInt(100));
+    }
+
+    Vel ab = a.merge("CompactVel", "csumab");
+
+    b.merge("CompactVel", "csumab");
+
+    for (int k = 0; k != 5; k++)
+    {
+      checkSum(ab, "memsum" + k);
+      checkSum((Vel) MemoryVel.context("msuma"), "memsum" + k);
+    }
+
+    // Window at max, value totals without a loop
+    Vel vel = MemoryVel.context("msumbench").setMax(100);
+    int n = 1000000;
+    long t = System.nanoTime();
+
+    for (int i = 0; i != n; i++)
+      vel.velOr("memsumbench" + (i & 15), null, 0, 1.0, 1e9, 600, now + i / 1000);
+
+    System.err.printf("velOr with 100 minute windows %d ns%n", (System.nanoTime() - t) / n);
+  }
 }
@@ -0,0 +1,105 @@
+package uk.co.inet.veltime;
+
+import static org.junit.Assert.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.stream.*;
+import org.junit.Test;
+
+/**
+ * Unit test for the off heap map.
+ */
+public class OffHeapLongMapTest
+{
+  /**
+   * Puts, gets and removes of inline and overflow windows match a HashMap
+   */
+  @Test
+  public void testMap()
+  {
+    OffHeapLongMap oh = new OffHeapLongMap(16);
+    Map<Long, byte[]> hm = new HashMap<>();
+    Random rnd = new Random(11);
+
+    for (int i = 0; i != 200000; i++)
+    {
+      long key = rnd.nextInt(30000) * 0x9E3779B97F4A7C15L;
+
+      switch (rnd.nextInt(4))
+      {
+        case 0 :
+          assertArrayEquals(hm.remove(key), oh.remove(key));
+          break;
+        case 1 :
+          assertArrayEquals(hm.get(key), oh.get(key));
+          break;
+        default :
+          byte[] bs = new byte[rnd.nextInt(4) == 0 ? 4 : 8 * (1 + rnd.nextInt(40))];
+
+          rnd.nextBytes(bs);
+          hm.put(key, bs);
+          oh.put(key, bs);
+      }
+
+      assertEquals(hm.size(), oh.size());
+    }
+
+    for (Map.Entry<Long, byte[]> e : hm.entrySet())
+      assertArrayEquals(e.getValue(), oh.get(e.getKey()));
+
+    Set<Long> keys = StreamSupport.stream(oh.cursor(), true).map(VelCursor::key).collect(Collectors.toSet());
+
+    assertEquals(hm.keySet(), keys);
+
+    // Removing in a walk still leaves every other entry reachable
+    oh.removeIf((key, bs) -> bs.length > 100);
+    hm.values().removeIf(bs -> bs.length > 100);
+
+    assertEquals(hm.size(), oh.size());
+
+    for (Map.Entry<Long, byte[]> e : hm.entrySet())
+      assertArrayEquals(e.getValue(), oh.get(e.getKey()));
+  }
+
+  /**
+   * The stores give the same answers off heap, prints full GC times for each
+   */
+  @Test
+  public void testStores()
+  {
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+    Vel[] vels = { new MemoryVel("heap", false), new MemoryVel("offheap", true), new CompactVel("offheap", true) };
+
+    for (Vel vel : vels)
+    {
+      for (int i = 0; i != 300000; i++)
+        vel.velCount("offheap" + i % 100000, 60, now + i / 100000);
+
+      assertEquals(100000, vel.recCount());
+      assertEquals(3, vel.getCount("offheap7", now + 2));
+      assertEquals(100000, vel.stream(true).count());
+      assertEquals(100000, vel.purgeDb(now + 120));
+      assertEquals(0, vel.recCount());
+
+      for (int i = 0; i != 300000; i++)
+        vel.velCount("offheap" + i % 100000, 60, now + i / 100000);
+
+      System.err.printf("%s off heap %s, full GC %d ms%n", vel.type, vel != vels[0], fullGc());
+    }
+  }
+
+  private static long fullGc()
+  {
+    long ms = 0;
+
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      ms -= gc.getCollectionTime();
+
+    System.gc();
+
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      ms += gc.getCollectionTime();
+
+    return ms;
+  }
+}
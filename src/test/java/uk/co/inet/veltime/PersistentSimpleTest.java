@@ -2,6 +2,9 @@ package uk.co.inet.veltime;
 
 import java.io.*;
 import java.nio.file.*;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
@@ -163,4 +166,476 @@ public class PersistentSimpleTest
       MemoryVel.context("pvel").setMax(max);
     }
   }
+
+  /**
+   * Cursor walks every window once and exports them for import
+   */
+  @Test
+  public void testCursor()
+    throws Exception
+  {
+    Vel vel = PersistentVel.context("pcurvel");
+
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+
+    for (int i = 0; i != 1000; i++)
+      vel.velCount("pcurtest" + (i % 100), 1, "2017-01-01 12:12:00");
+
+    assertEquals(100, vel.stream(false).count());
+    assertEquals(1000, vel.stream(true).mapToInt(VelCursor::sum).sum());
+
+    // Records other than plain windows go in their encoded form
+    vel.velDecay("pcurdecay", 5.0, 60, 1000L);
+    vel.velMetrics("pcurmetrics", 2.5, "m1", 10, now);
+    vel.velCount("pcurdur", null, 15, now);
+
+    StringWriter sw = new StringWriter();
+
+    assertEquals(103, vel.count(0));
+    assertEquals(103, vel.export(sw));
+
+    File f = File.createTempFile("pcur", ".txt");
+
+    try (Writer w = new FileWriter(f))
+    {
+      w.write(sw.toString());
+    }
+
+    Vel copy = MemoryVel.context("pcurcopy");
+
+    assertEquals(103, copy.importRecs(f.getPath()));
+    assertEquals(10, copy.getValue("pcurtest7", "2017-01-01 12:12:00"), 0.0);
+    assertEquals(vel.getDecay("pcurdecay", 60, 1000L), copy.getDecay("pcurdecay", 60, 1000L), 0.0);
+    assertEquals(vel.getMetrics("pcurmetrics", now).toString(), copy.getMetrics("pcurmetrics", now).toString());
+    assertEquals(15, Utils.dur(copy.get(copy.keyHash("pcurdur"))));
+
+    f.delete();
+  }
+
+  /**
+   * Parallel copy from memory moves every window and reports progress
+   */
+  @Test
+  public void testCopy()
+  {
+    Vel vel = MemoryVel.context("pcopysrc");
+
+    for (int i = 0; i != 20000; i++)
+      vel.velValue("pcopytest" + i, i % 7, 1, "2017-01-01 12:12:00");
+
+    AtomicLong done = new AtomicLong();
+    Vel copy = vel.copy("PersistentVel", "pcopyvel", false, done::set);
+
+    assertEquals(20000, done.get());
+    assertEquals(20000, copy.recCount());
+    assertEquals(vel.stream(true).mapToLong(VelCursor::sum).sum(), copy.stream(false).mapToLong(VelCursor::sum).sum());
+
+    // Merging the same windows again changes nothing
+    vel.merge("PersistentVel", "pcopyvel");
+
+    assertEquals(20000, copy.recCount());
+    assertEquals(5, copy.getValue("pcopytest5", "2017-01-01 12:12:00"), 0.0);
+  }
+
+  /**
+   * Absent keys are answered by the filter without going to the file
+   */
+  @Test
+  public void testFilter()
+  {
+    PersistentVel vel = (PersistentVel) PersistentVel.context("pbloom");
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+
+    assertTrue(vel.awaitFilter());
+
+    for (int i = 0; i != 20000; i++)
+      vel.velCount("pbloom" + i, 1, now);
+
+    for (int i = 0; i != 20000; i++)
+      assertEquals(1, vel.getCount("pbloom" + i, null, now));
+
+    String[] stats = vel.stats().split("\\|");
+
+    assertEquals(7, stats.length);
+    assertTrue(Double.parseDouble(stats[3]) < 0.01);
+
+    int n = 1000000;
+    int found = 0;
+    long t = System.nanoTime();
+
+    for (int i = 0; i != n; i++)
+      found += vel.getCount("pbloomabsent" + i, null, now);
+
+    t = System.nanoTime() - t;
+
+    assertEquals(0, found);
+    System.err.printf("PersistentVel absent lookups %.0f ns, filter %s KB%n", (double) t / n, stats[4]);
+
+    // Removed keys are gone though the filter still holds them, until it
+    // is rebuilt without them
+    for (int i = 0; i != 20000; i++)
+      assertNotNull(vel.removeKey("pbloom" + i));
+
+    assertEquals(0, vel.getCount("pbloom7", null, now));
+
+    vel.velCount("pbloomagain", 1, now);
+
+    assertTrue(vel.awaitFilter());
+    assertEquals(0, vel.getCount("pbloom7", null, now));
+    assertEquals(1, vel.getCount("pbloomagain", null, now));
+  }
+
+  /**
+   * Cached windows stay in step with the file, and hot keys are found
+   * in the cache on a skewed load
+   */
+  @Test
+  public void testCache()
+  {
+    PersistentVel vel = ((PersistentVel) PersistentVel.context("pcache")).setCache(10000);
+    PersistentVel plain = (PersistentVel) PersistentVel.context("pnocache");
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+    int keys = 50000;
+
+    for (int i = 0; i != keys; i++)
+    {
+      vel.velCount("pcache" + i, 60, now);
+      plain.velCount("pcache" + i, 60, now);
+    }
+
+    // Updates through the cache reach the file
+    assertEquals(2, vel.velCount("pcache7", 60, now));
+    assertEquals(3, vel.velCount("pcache7", 60, now + 1));
+    assertEquals(2, vel.getCount("pcache7", null, now));
+    assertNotNull(vel.removeKey("pcache7"));
+    assertEquals(0, vel.getCount("pcache7", null, now));
+
+    // Zipf distributed keys, a few are most of the lookups
+    double[] cdf = new double[keys];
+    double sum = 0.0;
+
+    for (int i = 0; i != keys; i++)
+      cdf[i] = sum += 1.0 / (i + 1);
+
+    java.util.Random rnd = new java.util.Random(1);
+    String[] load = new String[1000000];
+
+    for (int i = 0; i != load.length; i++)
+    {
+      int k = java.util.Arrays.binarySearch(cdf, rnd.nextDouble() * sum);
+
+      load[i] = "pcache" + (k < 0 ? -k - 1 : k);
+    }
+
+    for (PersistentVel v : new PersistentVel[] { plain, vel, plain, vel })
+    {
+      long t = System.nanoTime();
+      long n = 0;
+
+      for (String key : load)
+        n += v.getCount(key, null, now);
+
+      t = System.nanoTime() - t;
+
+      assertTrue(n > 0);
+      System.err.printf("PersistentVel zipf lookups %.0f ns, cache hit ratio %.3f, %d KB%n", (double) t / load.length, v.getCacheHitRatio(), v.getCacheBytes() / 1024);
+    }
+
+    assertTrue(vel.getCacheHitRatio() > 0.5);
+    assertTrue(vel.stats().split("\\|").length == 7);
+  }
+
+  /**
+   * Compaction carries on alongside writes and keeps every live window
+   */
+  @Test
+  public void testCompact()
+    throws Exception
+  {
+    PersistentVel vel = (PersistentVel) PersistentVel.context("pcompact");
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+
+    // Windows that grow and are removed leave holes in the file
+    for (int m = 0; m != 5; m++)
+      for (int i = 0; i != 20000; i++)
+        vel.velCount("pcompact" + i, 60, now + m);
+
+    for (int i = 1; i < 20000; i += 2)
+      vel.removeKey("pcompact" + i);
+
+    String[] before = vel.stats().split("\\|");
+    java.util.concurrent.CompletableFuture<Integer> f = vel.compact(50000);
+
+    assertNotNull(f);
+    assertNull(vel.compact(0));
+
+    // Reads and walks carry on through the swap, and never miss a key
+    int[] misses = new int[1];
+    Thread reader = new Thread(() ->
+    {
+      while (! f.isDone())
+      {
+        for (int i = 0; i < 20000; i += 2)
+          if (vel.getCount("pcompact" + i, null, now) < 5)
+            misses[0]++;
+
+        if (vel.stream(false).count() != 10000)
+          misses[0]++;
+      }
+    });
+
+    reader.start();
+
+    for (int i = 0; i != 1000; i += 2)
+      vel.velCount("pcompact" + i, 60, now + 5);
+
+    assertTrue(f.get() <= 10000);
+
+    reader.join();
+
+    assertEquals(0, misses[0]);
+
+    String[] after = vel.stats().split("\\|");
+
+    System.err.printf("PersistentVel compacted, used %s MB to %s MB%n", before[2], after[2]);
+
+    assertEquals(10000, vel.recCount());
+    assertTrue(Integer.parseInt(after[2]) <= Integer.parseInt(before[2]));
+    assertEquals(6, vel.getCount("pcompact10", null, now));
+    assertEquals(5, vel.getCount("pcompact1000", null, now));
+    assertEquals(0, vel.getCount("pcompact11", null, now));
+
+    // The compacted file is the store's file from now on
+    assertEquals(10000, new PersistentVel("pcompact").recCount());
+  }
+
+  /**
+   * Segments split as keys are added, every key stays found, and purge
+   * walks each segment once, all of them in parallel
+   */
+  @Test
+  public void testSegments()
+    throws Exception
+  {
+    PersistentVel vel = ((PersistentVel) PersistentVel.context("pseg")).setSegmentKeys(20000);
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+    int keys = 200000;
+
+    for (int i = 0; i != keys; i++)
+      vel.velCount("pseg" + i, 60, now);
+
+    vel.awaitSplit();
+
+    // Split the rest of the way by hand, as the background split only
+    // starts on a set, while reads look for keys being moved
+    int[] misses = new int[1];
+    AtomicBoolean done = new AtomicBoolean();
+    Thread reader = new Thread(() ->
+    {
+      while (! done.get())
+        for (int i = 0; i < keys && ! done.get(); i += 3)
+          if (vel.getCount("pseg" + i, null, now) != 1)
+            misses[0]++;
+    });
+
+    reader.start();
+
+    while (vel.segments() < 24)
+      vel.split();
+
+    done.set(true);
+    reader.join();
+
+    assertEquals(0, misses[0]);
+
+    assertEquals(keys, vel.recCount());
+    assertEquals(keys, vel.stream(true).count());
+
+    for (int i = 0; i < keys; i += 7)
+      assertEquals(2, vel.velCount("pseg" + i, 60, now + 1));
+
+    // The segments are found again on opening
+    PersistentVel again = new PersistentVel("pseg");
+
+    assertEquals(vel.segments(), again.segments());
+    assertEquals(keys, again.recCount());
+    assertEquals(0, vel.purgeDb(now + 2));
+
+    long t = System.nanoTime();
+
+    assertEquals(keys, vel.purgeDb(now + 62));
+
+    System.err.printf("PersistentVel %d segments purged %d in %d ms%n", vel.segments(), keys, (System.nanoTime() - t) / 1000000);
+
+    assertEquals(0, vel.recCount());
+  }
+
+  /**
+   * A filter rebuilt while segments split still has every key
+   */
+  @Test
+  public void testFilterSplit()
+    throws Exception
+  {
+    PersistentVel vel = ((PersistentVel) PersistentVel.context("pfsplit")).setSegmentKeys(Integer.MAX_VALUE);
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+    int keys = 50000;
+
+    for (int i = 0; i != keys; i++)
+      vel.velCount("pfsplit" + i, 60, now);
+
+    assertTrue(vel.awaitFilter());
+
+    for (int r = 0; r != 8; r++)
+    {
+      vel.rebuildFilter();
+      vel.split();
+
+      assertTrue(vel.awaitFilter());
+    }
+
+    for (int i = 0; i != keys; i++)
+      assertEquals(1, vel.getCount("pfsplit" + i, null, now));
+  }
+
+  /**
+   * A key's duration is kept with its window and the store's is left alone
+   */
+  @Test
+  public void testDuration()
+    throws Exception
+  {
+    Vel vel = PersistentVel.context("pdur").setVelDur(60);
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+
+    for (int i = 0; i != 1000; i++)
+    {
+      vel.velCount("pdur" + i, 5, now);
+      vel.velCount("pdurlong" + i, 120, now);
+    }
+
+    assertEquals(60, vel.getVelDur());
+
+    // No duration uses the key's own
+    assertEquals(2, vel.velCount("pdur1", null, 0, now + 1));
+    assertEquals(2, vel.getCount("pdur1", now + 5));
+    assertEquals(1, vel.getCount("pdur1", now + 6));
+    assertEquals(0, vel.getCount("pdur1", now + 7));
+    assertEquals(2, vel.velCount("pdurlong1", null, 0, now + 1));
+    assertEquals(2, vel.getCount("pdurlong1", now + 120));
+
+    // Kept through the encoding
+    Base base = Utils.toBase(Utils.fromBase(vel.get(vel.keyHash("pdur1"))));
+
+    assertEquals(5, Utils.dur(base));
+    assertEquals(2, VelQuery.count(base, now + 5));
+
+    // The store's is used and not kept for its own duration
+    vel.velCount("pdur2", 60, now);
+    vel.velCount("pdur2", null, 0, now + 1);
+
+    assertEquals(0, Utils.dur(vel.get(vel.keyHash("pdur2"))));
+    assertEquals(2, vel.getCount("pdur2", now + 60));
+
+    vel.setVelDur(30).flushProp();
+
+    Properties prp = new Properties();
+
+    try (Reader r = new FileReader("veldb/pdur.prp"))
+    {
+      prp.load(r);
+    }
+
+    assertEquals("30", prp.getProperty("velDur"));
+  }
+
+  /**
+   * Only settings saved before the hash was recorded mean the old hash,
+   * and a settings file cut short stops the store opening
+   */
+  @Test
+  public void testSavedHash()
+    throws Exception
+  {
+    PersistentVel vel = new PersistentVel("phash");
+    File prp = new File("veldb/phash.prp");
+
+    vel.open("phash", null, false);
+    vel.flushProp();
+    vel.velCount("phash1", 60, "2017-01-01 12:12:00");
+
+    assertEquals("xxh64", vel.getHash());
+
+    try (Writer w = new FileWriter(prp))
+    {
+      w.write("velDur=60\nhitMax=3\n");
+    }
+
+    PersistentVel old = new PersistentVel("phash");
+
+    old.open("phash", null, false);
+    old.flushProp();
+
+    assertEquals("legacy", old.getHash());
+
+    new FileWriter(prp).close();
+
+    try
+    {
+      new PersistentVel("phash").open("phash", null, false);
+      fail("Empty settings");
+    }
+    catch (IllegalStateException e)
+    {
+      assertTrue(e.getMessage().contains("empty"));
+    }
+
+    try (Writer w = new FileWriter(prp))
+    {
+      w.write("hitMax=3\n");
+    }
+
+    try
+    {
+      new PersistentVel("phash").open("phash", null, false);
+      fail("No hash or velDur");
+    }
+    catch (IllegalStateException e)
+    {
+      assertTrue(e.getMessage().contains("cut short"));
+    }
+  }
+
+  /**
+   * The first settings, with the hash, are on disk once the store is open,
+   * and close writes any still queued
+   */
+  @Test
+  public void testSavedOnOpen()
+    throws Exception
+  {
+    PersistentVel vel = new PersistentVel("psaved");
+    File prp = new File("veldb/psaved.prp");
+    Properties p = new Properties();
+
+    vel.open("psaved", null, false);
+
+    try (Reader r = new FileReader(prp))
+    {
+      p.load(r);
+    }
+
+    assertEquals("xxh64", p.getProperty("hash"));
+    assertFalse(new File("veldb/psaved.prp.tmp").exists());
+
+    vel.setVelDur(45);
+    vel.close();
+
+    try (Reader r = new FileReader(prp))
+    {
+      p.load(r);
+    }
+
+    assertEquals("45", p.getProperty("velDur"));
+  }
 }
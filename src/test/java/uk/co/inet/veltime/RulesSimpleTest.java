@@ -0,0 +1,214 @@
+package uk.co.inet.veltime;
+
+import static org.junit.Assert.*;
+import java.util.*;
+import org.junit.Test;
+
+/**
+ * Unit test for rules compiled into a plan.
+ */
+public class RulesSimpleTest
+{
+  private static final String RULES =
+      "# card rules\n" +
+      "cardOr    = STORE or     card:{card}               for 60   hits 5 over 500\n" +
+      "ipAnd     = STORE and    ip:{ip}                   for 30   hits 3 over 200\n" +
+      "cardCount = STORE count  cardc:{card}              for 120  hits 4\n" +
+      "shops     = STORE change card:{card} on {merchant} for 1440 hits 3\n" +
+      "\n" +
+      "binLike   = STORE or     bin:{card} like bin:4.*   for 60   hits 20  # all 4s count together\n";
+
+  // The same rules as calls
+  private static BitSet byHand(Vel vel, String card, String ip, String merchant, double amount, int now)
+  {
+    BitSet fired = new BitSet();
+
+    fired.set(0, ! vel.velOr("card:" + card, null, 5, amount, 500, 60, now));
+    fired.set(1, ! vel.velAnd("ip:" + ip, null, 3, amount, 200, 30, now));
+    fired.set(2, vel.velCount("cardc:" + card, null, 120, now) >= 4);
+    fired.set(3, vel.velChange("card:" + card, null, merchant, null, 1440, now) >= 3);
+    fired.set(4, ! vel.velOr("bin:" + card, "bin:4.*", 20, amount, 0, 60, now));
+
+    return fired;
+  }
+
+  /**
+   * The plan fires the rules the calls would, and shows the same windows
+   */
+  @Test
+  public void testRules()
+  {
+    Vel hand = MemoryVel.context("rhand");
+    VelRules plan = Vel.rules(RULES.replace("STORE", "rplan"), "MemoryVel");
+    Vel planned = MemoryVel.context("rplan");
+    Random rnd = new Random(50);
+    int now = Vel.getCurr("2017-01-01 12:00:00");
+    int fired = 0;
+
+    assertEquals(5, plan.names().length);
+    assertEquals("binLike", plan.names()[4]);
+    assertEquals(5, plan.windows());
+
+    for (int i = 0; i != 20000; i++)
+    {
+      Map<String, String> txn = new HashMap<>();
+      String card = (rnd.nextBoolean() ? "4" : "5") + rnd.nextInt(200);
+      String ip = "10.0.0." + rnd.nextInt(100);
+      String merchant = "m" + rnd.nextInt(6);
+      double amount = rnd.nextInt(20000) / 100.0;
+
+      txn.put("card", card);
+      txn.put("ip", ip);
+      txn.put("merchant", merchant);
+
+      now += rnd.nextInt(2);
+
+      BitSet expect = byHand(hand, card, ip, merchant, amount, now);
+
+      assertEquals("txn " + i, expect, plan.evaluate(txn, amount, now));
+
+      fired += expect.cardinality();
+    }
+
+    assertTrue(fired > 1000);
+    assertEquals(hand.recCount(), planned.recCount());
+    assertEquals(hand.show("card:4100"), planned.show("card:4100"));
+  }
+
+  /**
+   * Rules on one window update it once, and rules missing a field are not
+   * checked
+   */
+  @Test
+  public void testShared()
+  {
+    VelRules plan = Vel.rules("two = rshared count k:{card} for 60 hits 2\n" +
+                              "three = rshared count k:{card} for 60 hits 3\n" +
+                              "big = rshared value v:{card} for 60 over 100\n" +
+                              "bigOr = rshared or v:{card} for 60 hits 9 over 100\n" +
+                              "shop = rshared change k:{card} on {shop} for 60 hits 1\n", "MemoryVel");
+    Map<String, String> txn = Collections.singletonMap("card", "c1");
+    int now = 24721212;
+
+    assertEquals(3, plan.windows());
+    assertEquals(3, plan.keys());
+    assertEquals(Collections.emptyList(), plan.fired(txn, 60.0, now));
+    assertEquals(Arrays.asList("two", "big", "bigOr"), plan.fired(txn, 60.0, now));
+    assertEquals(Arrays.asList("two", "three", "big", "bigOr"), plan.fired(txn, 1.0, now));
+    assertEquals((now + 60) + "|3", MemoryVel.context("rshared").show("k:c1"));
+
+    try
+    {
+      Vel.rules("bad = rshared count k:{card}", null);
+      fail("No threshold");
+    }
+    catch (IllegalArgumentException e)
+    {
+      assertTrue(e.getMessage().startsWith("Rule line 1"));
+    }
+
+    try
+    {
+      Vel.rules("a = rshared count k:{card} hits 1\nb = rshared value k:{card} over 1", null);
+      fail("One key two ways");
+    }
+    catch (IllegalArgumentException e)
+    {
+      assertTrue(e.getMessage().startsWith("Rule line 2"));
+    }
+
+    try
+    {
+      Vel.rules("x = rnosuch count k:{card} hits 1", null);
+      fail("No store");
+    }
+    catch (IllegalArgumentException e)
+    {
+      assertTrue(e.getMessage().contains("rnosuch"));
+    }
+  }
+
+  // Several thresholds on the same keys, by hand a key each so that the
+  // rules don't count each other's hits
+  private static final String THRESHOLDS =
+      "c3  = rplanthr count card:{card} for 60   hits 3\n" +
+      "c5  = rplanthr count card:{card} for 60   hits 5\n" +
+      "c10 = rplanthr count card:{card} for 60   hits 10\n" +
+      "v1  = rplanthr or    amt:{card}  for 1440 hits 50 over 1000\n" +
+      "v2  = rplanthr and   amt:{card}  for 1440 hits 5 over 300\n" +
+      "i20 = rplanthr or    ip:{ip}     for 60   hits 20 over 2000\n";
+
+  private static void thresholdsByHand(Vel vel, String card, String ip, double amount, int now)
+  {
+    vel.velCount("c3:" + card, null, 60, now);
+    vel.velCount("c5:" + card, null, 60, now);
+    vel.velCount("c10:" + card, null, 60, now);
+    vel.velOr("v1:" + card, null, 50, amount, 1000, 1440, now);
+    vel.velAnd("v2:" + card, null, 5, amount, 300, 1440, now);
+    vel.velOr("i20:" + ip, null, 20, amount, 2000, 60, now);
+  }
+
+  /**
+   * The plan against the same rules called one by one
+   */
+  @Test
+  public void testSpeed()
+  {
+    Vel hand = MemoryVel.context("rhandbench");
+    VelRules plan = Vel.rules(RULES.replace("STORE", "rplanbench"), "MemoryVel");
+    VelRules thresholds = Vel.rules(THRESHOLDS, "MemoryVel");
+    int n = 200000;
+    String[] cards = new String[1024];
+    String[] ips = new String[1024];
+    String[] merchants = new String[1024];
+    List<Map<String, String>> txns = new ArrayList<>();
+    int now = 24721212;
+
+    assertEquals(3, thresholds.windows());
+
+    for (int i = 0; i != cards.length; i++)
+    {
+      Map<String, String> txn = new HashMap<>();
+
+      cards[i] = "4929" + (1000000000L + i * 7919L);
+      ips[i] = "10.0." + (i & 255) + ".1";
+      merchants[i] = "m" + (i & 15);
+      txn.put("card", cards[i]);
+      txn.put("ip", ips[i]);
+      txn.put("merchant", merchants[i]);
+      txns.add(txn);
+    }
+
+    for (int r = 0; r != 3; r++)
+    {
+      long t = System.nanoTime();
+
+      for (int i = 0; i != n; i++)
+        byHand(hand, cards[i & 1023], ips[i & 1023], merchants[i & 1023], 10.0, now + i / 10000);
+
+      long byHand = System.nanoTime() - t;
+
+      t = System.nanoTime();
+
+      for (int i = 0; i != n; i++)
+        plan.evaluate(txns.get(i & 1023), 10.0, now + i / 10000);
+
+      long byPlan = System.nanoTime() - t;
+
+      t = System.nanoTime();
+
+      for (int i = 0; i != n; i++)
+        thresholdsByHand(hand, cards[i & 1023], ips[i & 1023], 10.0, now + i / 10000);
+
+      long thrByHand = System.nanoTime() - t;
+
+      t = System.nanoTime();
+
+      for (int i = 0; i != n; i++)
+        thresholds.evaluate(txns.get(i & 1023), 10.0, now + i / 10000);
+
+      System.err.printf("Rules by hand %d ns, by plan %d ns; thresholds by hand %d ns, by plan %d ns a transaction%n",
+                        byHand / n, byPlan / n, thrByHand / n, (System.nanoTime() - t) / n);
+    }
+  }
+}
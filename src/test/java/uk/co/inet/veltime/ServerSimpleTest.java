@@ -0,0 +1,193 @@
+package uk.co.inet.veltime;
+
+import static org.junit.Assert.*;
+import java.io.*;
+import java.net.Socket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for the velocity server.
+ */
+public class ServerSimpleTest
+{
+  private VelServer vs;
+  private VelClient vc;
+
+  @Before
+  public void setup()
+    throws Exception
+  {
+    vs = new VelServer(0, "MemoryVel").start();
+    vc = new VelClient("localhost", vs.getPort());
+  }
+
+  @After
+  public void tearDown()
+    throws Exception
+  {
+    vc.close();
+    vs.close();
+  }
+
+  /**
+   * Simple count test
+   */
+  @Test
+  public void testCountBasic()
+    throws Exception
+  {
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+
+    assertEquals(1, vc.velCount("svel", "srvtest1", null, 1, now));
+    assertEquals(2, vc.velCount("svel", "srvtest1", null, 1, now));
+    assertEquals(MemoryVel.context("svel").getCount("srvtest1", null, now), vc.getCount("svel", "srvtest1", null, now));
+    assertEquals(1, vc.velCount("svel", "srvtest1", null, 1, now + 5));
+    assertEquals(1, vc.velChange("svel", "srvtest1", null, "a", null, 1, now));
+    assertFalse(vc.velOr("svel", "srvtest2", null, 1, 1.0, 0.0, 1, now));
+  }
+
+  /**
+   * Pipelined and batched requests are answered in order
+   */
+  @Test
+  public void testPipeline()
+    throws Exception
+  {
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+
+    for (boolean batch : new boolean[] { false, true })
+    {
+      String key = "srvpipe" + batch;
+      VelClient.Pipeline p = vc.pipeline();
+
+      for (int i = 0; i != 1000; i++)
+        p.velCount("svel", key, null, 1, now);
+
+      p.velValue("svel", key + "v", null, 2.5, 1, now);
+
+      long[] res = batch ? p.batch() : p.sync();
+
+      assertEquals(1001, res.length);
+
+      for (int i = 0; i != 1000; i++)
+        assertEquals(i + 1, res[i]);
+
+      assertEquals(MemoryVel.context("svel").velValue(key + "l", null, 2.5, 1, now), Double.longBitsToDouble(res[1000]), 0.001);
+    }
+  }
+
+  /**
+   * A failed request in a pipeline is thrown once every answer is read,
+   * so the connection carries on in step
+   */
+  @Test
+  public void testPipelineError()
+    throws Exception
+  {
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+    VelClient.Pipeline p = vc.pipeline();
+
+    p.velCount(null, "srverr", null, 1, now);
+    p.velCount("svel", "srverr", null, 1, now);
+
+    try
+    {
+      p.sync();
+      fail("No store");
+    }
+    catch (IOException e)
+    {
+      assertTrue(e.getMessage().contains("No store"));
+    }
+
+    assertEquals(2, vc.velCount("svel", "srverr", null, 1, now));
+  }
+
+  /**
+   * Clients can't name a store by path or open more than the limit, and
+   * the server only listens locally unless told otherwise
+   */
+  @Test
+  public void testStores()
+    throws Exception
+  {
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+
+    assertTrue(vs.getAddress().isLoopbackAddress());
+
+    for (String db : new String[] { "../srvout", "/tmp/srvout", "veldb/srvout", "a\\b", "c:srvout", "" })
+    {
+      try
+      {
+        vc.velCount(db, "srvstore", null, 1, now);
+        fail(db);
+      }
+      catch (IOException e)
+      {
+        assertTrue(e.getMessage().contains("Bad store name"));
+      }
+    }
+
+    vs.setMaxStores(2);
+
+    assertEquals(1, vc.velCount("svel", "srvstore", null, 1, now));
+    assertEquals(1, vc.velCount("svel2", "srvstore", null, 1, now));
+
+    try
+    {
+      vc.velCount("svel3", "srvstore", null, 1, now);
+      fail("Too many stores");
+    }
+    catch (IOException e)
+    {
+      assertTrue(e.getMessage().contains("Too many stores"));
+    }
+
+    assertEquals(2, vc.velCount("svel", "srvstore", null, 1, now));
+  }
+
+  /**
+   * Frames of a bad length close the connection, a bad batch count fails
+   * the request, and other clients carry on
+   */
+  @Test
+  public void testBadFrames()
+    throws Exception
+  {
+    for (int len : new int[] { -8, 0, VelServer.MAX_FRAME + 1 })
+    {
+      try (Socket s = new Socket("localhost", vs.getPort()))
+      {
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+
+        s.setSoTimeout(5000);
+        out.writeInt(len);
+        out.writeInt(1);
+        out.flush();
+
+        assertEquals(-1, s.getInputStream().read());
+      }
+    }
+
+    try (Socket s = new Socket("localhost", vs.getPort()))
+    {
+      DataOutputStream out = new DataOutputStream(s.getOutputStream());
+      DataInputStream in = new DataInputStream(s.getInputStream());
+
+      s.setSoTimeout(5000);
+      out.writeInt(9);
+      out.writeInt(7);
+      out.writeByte(VelServer.BATCH);
+      out.writeInt(Integer.MAX_VALUE);
+      out.flush();
+
+      in.readInt();
+      assertEquals(7, in.readInt());
+      assertEquals(VelServer.ERROR, in.readByte());
+    }
+
+    assertEquals(1, vc.velCount("svel", "srvbad", null, 1, Vel.getCurr("2017-01-01 12:12:00")));
+  }
+}
@@ -0,0 +1,117 @@
+package uk.co.inet.veltime;
+
+import static org.junit.Assert.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.Test;
+
+/**
+ * Unit test for the sharded execution mode.
+ */
+public class ShardSimpleTest
+{
+  /**
+   * Shards give the answers of a single store, in queued order per key
+   */
+  @Test
+  public void testShards()
+    throws Exception
+  {
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+    Vel direct = MemoryVel.context("shardcheck");
+    List<CompletableFuture<Integer>> fs = new ArrayList<>();
+    List<Integer> expect = new ArrayList<>();
+    Random rnd = new Random(5);
+
+    try (VelShards vs = new VelShards("shardtest", "MemoryVel", 4))
+    {
+      assertEquals(4, vs.size());
+
+      for (int i = 0; i != 20000; i++)
+      {
+        String key = "shard" + rnd.nextInt(500);
+        int dt = now + i / 2000;
+
+        fs.add(vs.velCount(key, null, 5, dt));
+        expect.add(direct.velCount(key, null, 5, dt));
+      }
+
+      for (int i = 0; i != fs.size(); i++)
+        assertEquals(expect.get(i), fs.get(i).get());
+
+      assertEquals(direct.recCount(), vs.recCount());
+      assertEquals(direct.velOr("shard7", null, 3, 1.0, 0.0, 5, now + 10), vs.velOr("shard7", null, 3, 1.0, 0.0, 5, now + 10).get());
+
+      CountDownLatch done = new CountDownLatch(1);
+      int[] got = new int[1];
+
+      vs.velCount("shard8", null, 5, now + 10, c -> { got[0] = c; done.countDown(); });
+      done.await();
+
+      assertEquals(direct.velCount("shard8", null, 5, now + 10), got[0]);
+      assertEquals(direct.recCount(), (int) vs.purge("2017-01-02 00:00:00").get());
+      assertEquals(0, vs.recCount());
+    }
+  }
+
+  /**
+   * Throughput of callers sharing one synchronized store against shards,
+   * printed for comparison
+   */
+  @Test
+  public void testThroughput()
+    throws Exception
+  {
+    int threads = 4;
+    int ops = 250000;
+    int now = Vel.getCurr("2017-01-01 12:12:00");
+    Vel direct = MemoryVel.context("shardbench");
+
+    long ms = run(threads, ops, (t, i) -> direct.velCount("bench" + t + ":" + (i & 4095), null, 60, now));
+
+    System.err.printf("synchronized MemoryVel %d threads, %d/s%n", threads, threads * ops * 1000L / Math.max(1, ms));
+
+    try (VelShards vs = new VelShards("shardbench", "MemoryVel", threads))
+    {
+      CompletableFuture<?>[] last = new CompletableFuture<?>[threads];
+
+      ms = run(threads, ops, (t, i) -> last[t] = vs.velCount("bench" + t + ":" + (i & 4095), null, 60, now));
+
+      for (CompletableFuture<?> f : last)
+        f.get();
+
+      System.err.printf("VelShards %d shards, %d threads, %d/s%n", vs.size(), threads, threads * ops * 1000L / Math.max(1, ms));
+    }
+  }
+
+  private interface Op
+  {
+    void run(int thread, int i);
+  }
+
+  private static long run(int threads, int ops, Op op)
+    throws Exception
+  {
+    ExecutorService es = Executors.newFixedThreadPool(threads);
+    List<Future<?>> fs = new ArrayList<>();
+    long start = System.currentTimeMillis();
+
+    for (int t = 0; t != threads; t++)
+    {
+      final int tn = t;
+
+      fs.add(es.submit(() ->
+      {
+        for (int i = 0; i != ops; i++)
+          op.run(tn, i);
+      }));
+    }
+
+    for (Future<?> f : fs)
+      f.get();
+
+    es.shutdown();
+
+    return System.currentTimeMillis() - start;
+  }
+}